@@ -0,0 +1,47 @@
+package com.premature.floscript.scripts.logic;
+
+import android.util.Log;
+
+import java.util.Locale;
+
+/**
+ * Times two ways of doing the same work and logs how they compare. The timings are only reported, a loaded
+ * device or emulator can make either side slow, so the tests check that both sides agree instead
+ */
+public final class Benchmarks {
+    private static final String TAG = "BENCHMARKS";
+
+    /**
+     * One run of the work being timed
+     */
+    public interface Run {
+        void run() throws Exception;
+    }
+
+    private Benchmarks() {
+    }
+
+    /**
+     * Warms both runs up, then times each of them on its own and logs the average time per run
+     */
+    public static void compare(String name, int warmupRuns, int measuredRuns, String baselineName, Run baseline,
+                               String candidateName, Run candidate) throws Exception {
+        for (int i = 0; i < warmupRuns; i++) {
+            baseline.run();
+            candidate.run();
+        }
+        long baselineNanos = time(baseline, measuredRuns);
+        long candidateNanos = time(candidate, measuredRuns);
+        double speedup = (double) baselineNanos / Math.max(1, candidateNanos);
+        Log.i(TAG, String.format(Locale.US, "%s per run: %s %d us, %s %d us, speedup %.1fx", name, baselineName,
+                baselineNanos / 1000, candidateName, candidateNanos / 1000, speedup));
+    }
+
+    private static long time(Run run, int measuredRuns) throws Exception {
+        long start = System.nanoTime();
+        for (int i = 0; i < measuredRuns; i++) {
+            run.run();
+        }
+        return (System.nanoTime() - start) / measuredRuns;
+    }
+}
@@ -0,0 +1,74 @@
+package com.premature.floscript.scripts.logic;
+
+import android.content.Context;
+
+import com.premature.floscript.scripts.ui.diagram.ArrowUiElement;
+import com.premature.floscript.scripts.ui.diagram.ConnectableDiagramElement;
+import com.premature.floscript.scripts.ui.diagram.Diagram;
+import com.premature.floscript.scripts.ui.diagram.DiamondUiElement;
+import com.premature.floscript.scripts.ui.diagram.LogicBlockUiElement;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Builds the diagrams of the tests out of the preinstalled templates
+ */
+public final class DiagramFixtures {
+    public static final String ARITHMETIC_TEMPLATE = "Arithmetic Template";
+    public static final String IF_ELSE_TEMPLATE = "If-Else Template";
+
+    private final Map<String, Script> mTemplates = new HashMap<>();
+
+    public DiagramFixtures(Context context) {
+        for (Script script : Scripts.getPreinstalledScripts(context)) {
+            mTemplates.put(script.getName(), script);
+        }
+    }
+
+    /**
+     * @return a copy of the named template with the given variables
+     */
+    public Script instantiate(String templateName, Script.Type type, String vars) {
+        Script template = mTemplates.get(templateName);
+        return new Script(template.getSourceCode(), template.getName(), type, vars, template.getVarTypes(),
+                template.getDescription());
+    }
+
+    /**
+     * Adds a block running the arithmetic template to the diagram
+     */
+    public LogicBlockUiElement block(Diagram diagram, String vars) {
+        return block(diagram, ARITHMETIC_TEMPLATE, vars);
+    }
+
+    public LogicBlockUiElement block(Diagram diagram, String templateName, String vars) {
+        LogicBlockUiElement block = new LogicBlockUiElement(diagram, 0, 0);
+        block.setScript(instantiate(templateName, Script.Type.BLOCK, vars));
+        diagram.addConnectable(block);
+        return block;
+    }
+
+    /**
+     * Adds a diamond running the if-else template to the diagram
+     */
+    public DiamondUiElement diamond(Diagram diagram, String vars) {
+        DiamondUiElement diamond = new DiamondUiElement(diagram, 0, 0);
+        diamond.setScript(instantiate(IF_ELSE_TEMPLATE, Script.Type.DIAMOND, vars));
+        diagram.addConnectable(diamond);
+        return diamond;
+    }
+
+    public static void connect(Diagram diagram, ConnectableDiagramElement from, ConnectableDiagramElement to) {
+        connect(diagram, from, to, ArrowCondition.NONE);
+    }
+
+    public static void connect(Diagram diagram, ConnectableDiagramElement from, ConnectableDiagramElement to,
+                               ArrowCondition condition) {
+        ArrowUiElement arrow = new ArrowUiElement(diagram, 0, 0);
+        arrow.setStartPoint(from);
+        arrow.setEndPoint(to);
+        arrow.setCondition(condition);
+        diagram.addArrow(arrow);
+    }
+}
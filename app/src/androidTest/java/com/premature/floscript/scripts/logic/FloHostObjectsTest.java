@@ -0,0 +1,54 @@
+package com.premature.floscript.scripts.logic;
+
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that a host function failing in java reaches the script and the caller the way a script error does
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class FloHostObjectsTest {
+
+    private ScriptEngine mEngine;
+
+    @Before
+    public void setUp() {
+        mEngine = new ScriptEngine(InstrumentationRegistry.getTargetContext());
+    }
+
+    @Test
+    public void testThrowingHostCallFailsTheRun() throws Exception {
+        try {
+            // the null url makes the api throw a NullPointerException
+            mEngine.runScript(new Script("floApi.openBrowser(null);", "host_failure_test"));
+            fail("the host call threw");
+        } catch (ScriptExecutionException expected) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testThrowingHostCallCanBeCaughtByTheScript() throws Exception {
+        Script script = new Script("try { floApi.openBrowser(null); 'not thrown'; } catch (e) { 'caught'; }",
+                "host_failure_test");
+        assertEquals("caught", mEngine.runScript(script).getValue());
+    }
+
+    @Test
+    public void testLoggingNullLogsTheText() throws Exception {
+        ScriptResult result = mEngine.runScript(new Script("floApi.logMessage(null); 'done';", "log_null_test"));
+        assertEquals("done", result.getValue());
+        assertEquals(Collections.singletonList("null"), result.getLogLines());
+    }
+}
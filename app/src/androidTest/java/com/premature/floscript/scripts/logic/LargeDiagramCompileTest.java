@@ -0,0 +1,164 @@
+package com.premature.floscript.scripts.logic;
+
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.premature.floscript.scripts.ui.diagram.ConnectableDiagramElement;
+import com.premature.floscript.scripts.ui.diagram.Diagram;
+import com.premature.floscript.scripts.ui.diagram.DiamondUiElement;
+import com.premature.floscript.scripts.ui.diagram.LogicBlockUiElement;
+import com.premature.floscript.util.DiagramUtils;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static com.premature.floscript.scripts.logic.DiagramFixtures.connect;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compiles synthetic diagrams of 10k elements, which used to overflow the stack of the recursive compiler,
+ * and checks that the compilation stays within a time and memory budget
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class LargeDiagramCompileTest {
+    private static final String TAG = "LARGE_COMPILE";
+    private static final int ELEMENTS = 10000;
+    // generous for a device, the compilation is linear in the size of the diagram
+    private static final long TIME_BUDGET_MS = 2000;
+    // the compiled source is about 500 characters per element, which is 10MB of utf-16 for 10k elements
+    private static final long MEMORY_BUDGET_BYTES = 32L * 1024 * 1024;
+
+    private Context mContext;
+    private DiagramFixtures mFixtures;
+
+    @Before
+    public void setUp() {
+        mContext = InstrumentationRegistry.getTargetContext();
+        mFixtures = new DiagramFixtures(mContext);
+    }
+
+    @Test
+    public void testLongChainOfBlocks() throws Exception {
+        Diagram diagram = DiagramUtils.createEmptyDiagram();
+        ConnectableDiagramElement last = diagram.getEntryElement();
+        for (int i = 0; i < ELEMENTS; i++) {
+            LogicBlockUiElement block = mFixtures.block(diagram, "{'result_var':'i','expression':'$i + 1'}");
+            connect(diagram, last, block, ArrowCondition.NONE);
+            last = block;
+        }
+        Script script = assertCompilesWithinBudget("chain", diagram, true);
+        assertFalse(script.getSourceCode().contains("function_stack"));
+    }
+
+    @Test
+    public void testRecompilingAfterAnEditRegeneratesOnlyTheEditedElement() throws Exception {
+        Diagram diagram = DiagramUtils.createEmptyDiagram();
+        ConnectableDiagramElement last = diagram.getEntryElement();
+        LogicBlockUiElement edited = null;
+        for (int i = 0; i < ELEMENTS; i++) {
+            LogicBlockUiElement block = mFixtures.block(diagram, "{'result_var':'i','expression':'$i + 1'}");
+            connect(diagram, last, block, ArrowCondition.NONE);
+            last = block;
+            if (i == ELEMENTS / 2) {
+                edited = block;
+            }
+        }
+        DiagramToScriptCompiler compiler = new DiagramToScriptCompiler(mContext);
+        long start = System.nanoTime();
+        compiler.compile(diagram);
+        long fullMillis = (System.nanoTime() - start) / 1000000;
+        int regenerated = compiler.getRegeneratedCount();
+
+        edited.setScript(mFixtures.instantiate(DiagramFixtures.ARITHMETIC_TEMPLATE, Script.Type.BLOCK,
+                "{'result_var':'i','expression':'$i + 2'}"));
+        compiler.markDirty(edited);
+        start = System.nanoTime();
+        Script script = compiler.compile(diagram);
+        long editMillis = (System.nanoTime() - start) / 1000000;
+
+        Log.i(TAG, "edit: full compile " + fullMillis + " ms, after editing one element " + editMillis + " ms");
+        assertEquals(1, compiler.getRegeneratedCount() - regenerated);
+        assertEquals(new DiagramToScriptCompiler(mContext).compile(diagram).getSourceCode(), script.getSourceCode());
+    }
+
+    /**
+     * if $i > 5 -> (yes) i = $i + 1 -> join / (no) -> join, over and over, so every other element is a merge node
+     */
+    @Test
+    public void testLongChainOfDecisions() throws Exception {
+        Diagram diagram = DiagramUtils.createEmptyDiagram();
+        ConnectableDiagramElement last = diagram.getEntryElement();
+        for (int i = 0; i < ELEMENTS / 3; i++) {
+            DiamondUiElement decision = mFixtures.diamond(diagram, "{'expression':'$i > 5'}");
+            LogicBlockUiElement increment = mFixtures.block(diagram, "{'result_var':'i','expression':'$i + 1'}");
+            LogicBlockUiElement join = mFixtures.block(diagram, "{'result_var':'j','expression':'$i'}");
+            connect(diagram, last, decision, ArrowCondition.NONE);
+            connect(diagram, decision, increment, ArrowCondition.YES);
+            connect(diagram, decision, join, ArrowCondition.NO);
+            connect(diagram, increment, join, ArrowCondition.NONE);
+            last = join;
+        }
+        Script script = assertCompilesWithinBudget("decisions", diagram, true);
+        assertFalse(script.getSourceCode().contains("function_stack"));
+    }
+
+    /**
+     * Each loop is followed by the element it exits to, so loops one after the other don't nest their
+     * structured code and don't push the compiler back to the script shell
+     */
+    @Test
+    public void testLongChainOfLoops() throws Exception {
+        Diagram diagram = DiagramUtils.createEmptyDiagram();
+        ConnectableDiagramElement last = diagram.getEntryElement();
+        for (int i = 0; i < ELEMENTS / 2; i++) {
+            LogicBlockUiElement body = mFixtures.block(diagram, "{'result_var':'i','expression':'$i + 1'}");
+            DiamondUiElement test = mFixtures.diamond(diagram, "{'expression':'$i % 10 != 0'}");
+            connect(diagram, last, body, ArrowCondition.NONE);
+            connect(diagram, body, test, ArrowCondition.NONE);
+            connect(diagram, test, body, ArrowCondition.YES);
+            last = test;
+        }
+        // the no arrow of each test leads to the next loop, and of the last one to the end
+        LogicBlockUiElement done = mFixtures.block(diagram, "{'result_var':'done','expression':'1'}");
+        connect(diagram, last, done, ArrowCondition.NO);
+        Script script = assertCompilesWithinBudget("loops", diagram, false);
+        assertFalse(script.getSourceCode().contains("function_stack"));
+    }
+
+    private Script assertCompilesWithinBudget(String name, Diagram diagram, boolean alsoTrampolined) throws Exception {
+        // warm up on the same diagram, so we time the compilation and not class loading, with another compiler
+        // so that the one we time doesn't have the code of the elements cached yet
+        new DiagramToScriptCompiler(mContext).compile(diagram);
+        DiagramToScriptCompiler compiler = new DiagramToScriptCompiler(mContext);
+
+        Runtime runtime = Runtime.getRuntime();
+        runtime.gc();
+        long memoryBefore = runtime.totalMemory() - runtime.freeMemory();
+        long start = System.nanoTime();
+        Script script = compiler.compile(diagram);
+        long millis = (System.nanoTime() - start) / 1000000;
+        runtime.gc();
+        long retained = runtime.totalMemory() - runtime.freeMemory() - memoryBefore;
+
+        Log.i(TAG, name + ": compiled " + diagram.getConnectables().size() + " elements in " + millis + " ms, "
+                + script.getSourceCode().length() + " characters, " + retained / 1024 + " KB retained");
+        assertTrue(name + " took " + millis + " ms", millis < TIME_BUDGET_MS);
+        assertTrue(name + " retained " + retained + " bytes", retained < MEMORY_BUDGET_BYTES);
+
+        if (alsoTrampolined) {
+            start = System.nanoTime();
+            compiler.compileTrampolined(diagram);
+            millis = (System.nanoTime() - start) / 1000000;
+            Log.i(TAG, name + ": trampolined in " + millis + " ms");
+            assertTrue(name + " trampolined took " + millis + " ms", millis < TIME_BUDGET_MS);
+        }
+        return script;
+    }
+}
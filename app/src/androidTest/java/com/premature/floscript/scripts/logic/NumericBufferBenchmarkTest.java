@@ -0,0 +1,73 @@
+package com.premature.floscript.scripts.logic;
+
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.test.suitebuilder.annotation.LargeTest;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that crunching an array of numbers in a javascript loop gives what handing it to
+ * <code>floApi.numbers</code> gives, and reports how long each way takes
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class NumericBufferBenchmarkTest {
+    private static final int WARMUP_RUNS = 3;
+    private static final int MEASURED_RUNS = 10;
+
+    private static final String CREATE_DATA =
+            "var data = [];\n" +
+            "for (var i = 0; i < 20000; i++) { data.push((i * 7919) % 1000); }\n";
+
+    private static final String JS_LOOPS = CREATE_DATA +
+            "var sum = 0, min = data[0], max = data[0];\n" +
+            "for (var i = 0; i < data.length; i++) {\n" +
+            "  sum += data[i]; min = Math.min(min, data[i]); max = Math.max(max, data[i]);\n" +
+            "}\n" +
+            "var hist = [0, 0, 0, 0, 0, 0, 0, 0, 0, 0];\n" +
+            "for (var i = 0; i < data.length; i++) {\n" +
+            "  if (data[i] >= 0 && data[i] <= 1000) { hist[Math.min(Math.floor(data[i] / 100), 9)]++; }\n" +
+            "}\n" +
+            "var avg = [];\n" +
+            "for (var i = 9; i < data.length; i++) {\n" +
+            "  var s = 0;\n" +
+            "  for (var j = i - 9; j <= i; j++) { s += data[j]; }\n" +
+            "  avg.push(s / 10);\n" +
+            "}\n" +
+            "var sorted = data.slice().sort(function(a, b) { return a - b; });\n" +
+            "[sum, min, max, hist[3], avg.length, avg[0], sorted[10000]].join(',');";
+
+    private static final String BUFFER_CALLS = CREATE_DATA +
+            "var buffer = floApi.numbers(data);\n" +
+            "var hist = buffer.histogram(10, 0, 1000);\n" +
+            "var avg = buffer.movingAverage(10);\n" +
+            "var sum = buffer.sum(), min = buffer.min(), max = buffer.max();\n" +
+            "var sorted = buffer.sort();\n" +
+            "[sum, min, max, hist[3], avg.length, avg[0], sorted[10000]].join(',');";
+
+    @Test
+    public void testBufferAgreesWithJavascriptLoops() throws Exception {
+        final ScriptEngine engine = new ScriptEngine(InstrumentationRegistry.getTargetContext());
+        // the javascript loops go well past the default instruction budget
+        final ScriptRunOptions options = ScriptRunOptions.builder().withInstructionBudget(500000000L).build();
+        final Script loops = new Script(JS_LOOPS, "numbers_loops");
+        final Script buffer = new Script(BUFFER_CALLS, "numbers_buffer");
+        assertEquals(engine.runScript(loops, options).getValue(), engine.runScript(buffer, options).getValue());
+
+        Benchmarks.compare("numbers", WARMUP_RUNS, MEASURED_RUNS, "javascript loops", new Benchmarks.Run() {
+            @Override
+            public void run() throws Exception {
+                engine.runScript(loops, options);
+            }
+        }, "numeric buffer", new Benchmarks.Run() {
+            @Override
+            public void run() throws Exception {
+                engine.runScript(buffer, options);
+            }
+        });
+    }
+}
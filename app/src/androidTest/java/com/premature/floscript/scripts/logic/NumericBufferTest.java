@@ -0,0 +1,52 @@
+package com.premature.floscript.scripts.logic;
+
+import android.support.test.runner.AndroidJUnit4;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that the moving average gives what averaging each window in a javascript loop would give, also
+ * once a value that isn't finite has left the window
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class NumericBufferTest {
+
+    @Test
+    public void testNanOnlySpoilsTheWindowsItIsIn() {
+        NumericBuffer averages = buffer(1, 2, Double.NaN, 4, 6, 8).movingAverage(2);
+        assertValues(averages, 1.5, Double.NaN, Double.NaN, 5, 7);
+    }
+
+    @Test
+    public void testInfinitiesOnlySpoilTheWindowsTheyAreIn() {
+        NumericBuffer averages = buffer(2, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, 4, 6).movingAverage(2);
+        assertValues(averages, Double.POSITIVE_INFINITY, Double.NaN, Double.NEGATIVE_INFINITY, 5);
+    }
+
+    @Test
+    public void testOverflowOnlySpoilsTheWindowsItIsIn() {
+        NumericBuffer averages = buffer(1e308, 1e308, 1, 3).movingAverage(2);
+        assertValues(averages, Double.POSITIVE_INFINITY, 5e307, 2);
+    }
+
+    private static NumericBuffer buffer(double... values) {
+        NumericBuffer buffer = new NumericBuffer(values.length);
+        for (int i = 0; i < values.length; i++) {
+            buffer.set(i, values[i]);
+        }
+        return buffer;
+    }
+
+    private static void assertValues(NumericBuffer buffer, double... expected) {
+        assertEquals(expected.length, buffer.length());
+        for (int i = 0; i < expected.length; i++) {
+            // assertEquals treats two NaNs as equal
+            assertEquals("value " + i, expected[i], buffer.get(i), 0);
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package com.premature.floscript.scripts.logic;
+
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that replaying a recorded trace hands the script the same inputs the recorded run saw
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class ScriptTraceTest {
+
+    private static final String SOURCE =
+            "floApi.logMessage('started');\n" +
+            "var buffer = floApi.numbers([3, 1, 2]).sort();\n" +
+            "[Math.random(), new Date().getTime(), Date.now(), buffer[0]].join(',');";
+
+    private ScriptEngine mEngine;
+    private File mTraceFile;
+
+    @Before
+    public void setUp() {
+        Context context = InstrumentationRegistry.getTargetContext();
+        mEngine = new ScriptEngine(context);
+        mTraceFile = new File(context.getCacheDir(), "script_trace_test.trace");
+    }
+
+    @Test
+    public void testReplayReturnsTheRecordedResult() throws Exception {
+        Script script = new Script(SOURCE, "trace_test");
+        ScriptResult recorded = mEngine.recordScript(script, ScriptRunOptions.DEFAULT, mTraceFile);
+        // the clock has moved on and the random numbers differ, so only the trace can produce the same value
+        Thread.sleep(5);
+        ScriptResult replayed = mEngine.replayScript(script, ScriptRunOptions.DEFAULT, mTraceFile);
+
+        assertEquals(recorded.getValue(), replayed.getValue());
+        assertEquals(recorded.getLogLines(), replayed.getLogLines());
+    }
+
+    @Test
+    public void testUntracedRunsSeeTheStandardObjects() throws Exception {
+        mEngine.recordScript(new Script(SOURCE, "trace_test"), ScriptRunOptions.DEFAULT, mTraceFile);
+        Script script = new Script("String(Math) + ' ' + Object.getPrototypeOf(Math) + ' ' + Date.name", "plain_test");
+        assertEquals("[object Math] [object Object] Date", mEngine.runScript(script).getValue());
+    }
+
+    @Test
+    public void testReplayOfAChangedScriptFails() throws Exception {
+        mEngine.recordScript(new Script(SOURCE, "trace_test"), ScriptRunOptions.DEFAULT, mTraceFile);
+        try {
+            mEngine.replayScript(new Script(SOURCE + " // changed", "trace_test"), ScriptRunOptions.DEFAULT, mTraceFile);
+            fail("the trace belongs to a different source");
+        } catch (ScriptExecutionException expected) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package com.premature.floscript.scripts.logic;
+
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.premature.floscript.scripts.ui.diagram.Diagram;
+import com.premature.floscript.scripts.ui.diagram.LogicBlockUiElement;
+import com.premature.floscript.util.DiagramUtils;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static com.premature.floscript.scripts.logic.DiagramFixtures.connect;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that code used by several elements is emitted once and called with the variables of each element,
+ * without changing what the diagram does
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class SharedFunctionsTest {
+    private static final String SUM_CODE = "var value = vars.first + vars.second;\n"
+            + "floApi.logMessage('the sum of the two numbers is ' + value);";
+
+    private Context mContext;
+
+    @Before
+    public void setUp() {
+        mContext = InstrumentationRegistry.getTargetContext();
+    }
+
+    /**
+     * start -> 1 + 2 -> 3 + 4 -> 5 + 6, all with the same code
+     */
+    @Test
+    public void testRepeatedCodeIsEmittedOnce() throws Exception {
+        Diagram diagram = DiagramUtils.createEmptyDiagram();
+        LogicBlockUiElement first = sum(diagram, "{'first':1,'second':2}");
+        LogicBlockUiElement second = sum(diagram, "{'first':3,'second':4}");
+        LogicBlockUiElement third = sum(diagram, "{'first':5,'second':6}");
+        connect(diagram, diagram.getEntryElement(), first);
+        connect(diagram, first, second);
+        connect(diagram, second, third);
+
+        DiagramToScriptCompiler compiler = new DiagramToScriptCompiler(mContext);
+        Script structured = compiler.compile(diagram);
+        Script trampolined = compiler.compileTrampolined(diagram);
+        assertEquals(1, occurrences(structured.getSourceCode(), "the sum of"));
+        assertEquals(1, occurrences(trampolined.getSourceCode(), "the sum of"));
+        assertTrue(structured.getSourceCode().contains("shared_"));
+
+        List<String> expected = Arrays.asList("the sum of the two numbers is 3", "the sum of the two numbers is 7",
+                "the sum of the two numbers is 11");
+        ScriptEngine engine = new ScriptEngine(mContext);
+        assertEquals(expected, engine.runScript(structured).getLogLines());
+        assertEquals(expected, engine.runScript(trampolined).getLogLines());
+    }
+
+    private static LogicBlockUiElement sum(Diagram diagram, String vars) {
+        LogicBlockUiElement block = new LogicBlockUiElement(diagram, 0, 0);
+        block.setScript(new Script(SUM_CODE, "sum", Script.Type.BLOCK, vars, null, "adds two numbers"));
+        diagram.addConnectable(block);
+        return block;
+    }
+
+    private static int occurrences(String code, String text) {
+        int count = 0;
+        for (int at = code.indexOf(text); at != -1; at = code.indexOf(text, at + 1)) {
+            count++;
+        }
+        return count;
+    }
+}
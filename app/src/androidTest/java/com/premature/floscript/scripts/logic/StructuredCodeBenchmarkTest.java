@@ -0,0 +1,129 @@
+package com.premature.floscript.scripts.logic;
+
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.test.suitebuilder.annotation.LargeTest;
+
+import com.premature.floscript.scripts.ui.diagram.Diagram;
+import com.premature.floscript.scripts.ui.diagram.DiamondUiElement;
+import com.premature.floscript.scripts.ui.diagram.LogicBlockUiElement;
+import com.premature.floscript.scripts.ui.diagram.StartUiElement;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static com.premature.floscript.scripts.logic.DiagramFixtures.connect;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that a branch heavy diagram compiled into structured javascript does the same as when it runs through
+ * the trampoline of the script shell, and reports how long a trigger takes each way
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class StructuredCodeBenchmarkTest {
+    private static final int WARMUP_RUNS = 20;
+    private static final int MEASURED_RUNS = 200;
+
+    private Context mContext;
+    private DiagramFixtures mFixtures;
+
+    @Before
+    public void setUp() {
+        mContext = InstrumentationRegistry.getTargetContext();
+        mFixtures = new DiagramFixtures(mContext);
+    }
+
+    @Test
+    public void testStructuredCodeAgreesWithTheTrampoline() throws Exception {
+        Diagram diagram = createCountingDiagram(20);
+        DiagramToScriptCompiler compiler = new DiagramToScriptCompiler(mContext);
+        final Script structured = compiler.compile(diagram);
+        final Script trampolined = compiler.compileTrampolined(diagram);
+        assertFalse(structured.getSourceCode().contains("function_stack"));
+
+        final ScriptEngine engine = new ScriptEngine(mContext);
+        final ScriptRunOptions options = ScriptRunOptions.DEFAULT;
+        ScriptResult structuredResult = engine.runScript(structured, options);
+        ScriptResult trampolinedResult = engine.runScript(trampolined, options);
+        assertEquals(Boolean.TRUE, structuredResult.getValue());
+        assertEquals(Boolean.TRUE, trampolinedResult.getValue());
+        // the templates log every value they compute
+        assertEquals(trampolinedResult.getLogLines(), structuredResult.getLogLines());
+
+        Benchmarks.compare("counting diagram", WARMUP_RUNS, MEASURED_RUNS, "trampoline", new Benchmarks.Run() {
+            @Override
+            public void run() throws Exception {
+                engine.runScript(trampolined, options);
+            }
+        }, "structured", new Benchmarks.Run() {
+            @Override
+            public void run() throws Exception {
+                engine.runScript(structured, options);
+            }
+        });
+    }
+
+    @Test
+    public void testLoopsAreOnlyCappedByTheInstructionBudget() throws Exception {
+        DiagramToScriptCompiler compiler = new DiagramToScriptCompiler(mContext);
+        ScriptEngine engine = new ScriptEngine(mContext);
+        Diagram diagram = createCountingDiagram(50);
+        assertEquals(Boolean.TRUE, engine.runScript(compiler.compile(diagram)).getValue());
+        assertEquals(Boolean.TRUE, engine.runScript(compiler.compileTrampolined(diagram)).getValue());
+
+        Diagram endless = createCountingDiagram(Integer.MAX_VALUE);
+        ScriptRunOptions options = ScriptRunOptions.builder().withInstructionBudget(100000).build();
+        assertBudgetExceeded(engine, compiler.compile(endless), options);
+        assertBudgetExceeded(engine, compiler.compileTrampolined(endless), options);
+    }
+
+    private static void assertBudgetExceeded(ScriptEngine engine, Script script, ScriptRunOptions options)
+            throws ScriptExecutionException {
+        try {
+            engine.runScript(script, options);
+            fail("the run should have used up its instruction budget");
+        } catch (ScriptBudgetExceededException expected) {
+            // expected
+        }
+    }
+
+    /**
+     * start -> i = 0 -> (loop) if $i < rounds -> (yes) if $i % 2 == 0 -> (yes) a = $a + 1 / (no) b = $b + 1
+     * -> i = $i + 1 -> (loop), where the no branch of the loop test ends the script
+     */
+    private Diagram createCountingDiagram(int rounds) {
+        Diagram diagram = new Diagram();
+        StartUiElement start = new StartUiElement(diagram);
+        diagram.setEntryElement(start);
+        LogicBlockUiElement init = mFixtures.block(diagram, "{'result_var':'i','expression':'0'}");
+        LogicBlockUiElement initA = mFixtures.block(diagram, "{'result_var':'a','expression':'0'}");
+        LogicBlockUiElement initB = mFixtures.block(diagram, "{'result_var':'b','expression':'0'}");
+        DiamondUiElement loop = mFixtures.diamond(diagram, "{'expression':'$i < " + rounds + "'}");
+        DiamondUiElement even = mFixtures.diamond(diagram, "{'expression':'$i % 2 == 0'}");
+        LogicBlockUiElement incA = mFixtures.block(diagram, "{'result_var':'a','expression':'$a + 1'}");
+        LogicBlockUiElement incB = mFixtures.block(diagram, "{'result_var':'b','expression':'$b + 1'}");
+        LogicBlockUiElement incI = mFixtures.block(diagram, "{'result_var':'i','expression':'$i + 1'}");
+
+        connect(diagram, start, init, ArrowCondition.NONE);
+        connect(diagram, init, initA, ArrowCondition.NONE);
+        connect(diagram, initA, initB, ArrowCondition.NONE);
+        connect(diagram, initB, loop, ArrowCondition.NONE);
+        connect(diagram, loop, even, ArrowCondition.YES);
+        connect(diagram, even, incA, ArrowCondition.YES);
+        connect(diagram, even, incB, ArrowCondition.NO);
+        connect(diagram, incA, incI, ArrowCondition.NONE);
+        connect(diagram, incB, incI, ArrowCondition.NONE);
+        connect(diagram, incI, loop, ArrowCondition.NONE);
+        // the no branch goes to an empty block which ends the script
+        LogicBlockUiElement done = new LogicBlockUiElement(diagram, 0, 0);
+        done.setScript(new Script("", "done"));
+        diagram.addConnectable(done);
+        connect(diagram, loop, done, ArrowCondition.NO);
+        return diagram;
+    }
+}
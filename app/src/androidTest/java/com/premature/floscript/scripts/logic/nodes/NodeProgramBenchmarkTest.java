@@ -0,0 +1,113 @@
+package com.premature.floscript.scripts.logic.nodes;
+
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.test.suitebuilder.annotation.LargeTest;
+
+import com.premature.floscript.scripts.logic.ArrowCondition;
+import com.premature.floscript.scripts.logic.Benchmarks;
+import com.premature.floscript.scripts.logic.DiagramFixtures;
+import com.premature.floscript.scripts.logic.DiagramToScriptCompiler;
+import com.premature.floscript.scripts.logic.Script;
+import com.premature.floscript.scripts.logic.ScriptEngine;
+import com.premature.floscript.scripts.logic.ScriptResult;
+import com.premature.floscript.scripts.logic.ScriptRunOptions;
+import com.premature.floscript.scripts.ui.diagram.Diagram;
+import com.premature.floscript.scripts.ui.diagram.DiamondUiElement;
+import com.premature.floscript.scripts.ui.diagram.LogicBlockUiElement;
+import com.premature.floscript.scripts.ui.diagram.StartUiElement;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static com.premature.floscript.scripts.logic.DiagramFixtures.connect;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that a template-only diagram does the same as a {@link NodeProgram} as it does in rhino, and reports
+ * how long one trigger takes each way
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class NodeProgramBenchmarkTest {
+    private static final int WARMUP_RUNS = 50;
+    private static final int MEASURED_RUNS = 500;
+
+    private Context mContext;
+    private DiagramFixtures mFixtures;
+
+    @Before
+    public void setUp() {
+        mContext = InstrumentationRegistry.getTargetContext();
+        mFixtures = new DiagramFixtures(mContext);
+    }
+
+    @Test
+    public void testNodeProgramAgreesWithRhinoPerTrigger() throws Exception {
+        Diagram diagram = createTemplateDiagram();
+        final Script script = new DiagramToScriptCompiler(mContext).compile(diagram);
+        final NodeProgram program = new NodeCompiler(mContext).compile(diagram, script);
+        assertEquals(0, program.getRhinoNodeCount());
+
+        final ScriptEngine engine = new ScriptEngine(mContext);
+        final ScriptRunOptions options = ScriptRunOptions.DEFAULT;
+        ScriptResult rhinoResult = engine.runScript(script, options);
+        ScriptResult nodesResult = engine.runProgram(program, options);
+        assertEquals(Boolean.TRUE, rhinoResult.getValue());
+        assertEquals(Boolean.TRUE, nodesResult.getValue());
+        assertEquals(rhinoResult.getLogLines(), nodesResult.getLogLines());
+
+        Benchmarks.compare("template diagram", WARMUP_RUNS, MEASURED_RUNS, "rhino", new Benchmarks.Run() {
+            @Override
+            public void run() throws Exception {
+                engine.runScript(script, options);
+            }
+        }, "nodes", new Benchmarks.Run() {
+            @Override
+            public void run() throws Exception {
+                engine.runProgram(program, options);
+            }
+        });
+    }
+
+    @Test
+    public void testCustomElementFallsBackToRhino() throws Exception {
+        Diagram diagram = new Diagram();
+        StartUiElement start = new StartUiElement(diagram);
+        diagram.setEntryElement(start);
+        LogicBlockUiElement custom = new LogicBlockUiElement(diagram, 0, 0);
+        custom.setScript(new Script("env.vars.x = 40;", "custom"));
+        diagram.addConnectable(custom);
+        LogicBlockUiElement add = mFixtures.block(diagram, "{'result_var':'y','expression':'$x + 2'}");
+        connect(diagram, start, custom, ArrowCondition.NONE);
+        connect(diagram, custom, add, ArrowCondition.NONE);
+
+        Script script = new DiagramToScriptCompiler(mContext).compile(diagram);
+        NodeProgram program = new NodeCompiler(mContext).compile(diagram, script);
+        assertEquals(1, program.getRhinoNodeCount());
+        assertEquals(Boolean.TRUE, new ScriptEngine(mContext).runProgram(program, ScriptRunOptions.DEFAULT).getValue());
+    }
+
+    /**
+     * start -> x = 2 + 3 -> y = $x * 4 -> if $y > 10 -> (yes) z = $y - $x / (no) z = 0
+     */
+    private Diagram createTemplateDiagram() {
+        Diagram diagram = new Diagram();
+        StartUiElement start = new StartUiElement(diagram);
+        diagram.setEntryElement(start);
+        LogicBlockUiElement setX = mFixtures.block(diagram, "{'result_var':'x','expression':'2 + 3'}");
+        LogicBlockUiElement setY = mFixtures.block(diagram, "{'result_var':'y','expression':'$x * 4'}");
+        DiamondUiElement test = mFixtures.diamond(diagram, "{'expression':'$y > 10'}");
+        LogicBlockUiElement yes = mFixtures.block(diagram, "{'result_var':'z','expression':'$y - $x'}");
+        LogicBlockUiElement no = mFixtures.block(diagram, "{'result_var':'z','expression':'0'}");
+
+        connect(diagram, start, setX, ArrowCondition.NONE);
+        connect(diagram, setX, setY, ArrowCondition.NONE);
+        connect(diagram, setY, test, ArrowCondition.NONE);
+        connect(diagram, test, yes, ArrowCondition.YES);
+        connect(diagram, test, no, ArrowCondition.NO);
+        return diagram;
+    }
+}
@@ -0,0 +1,95 @@
+package com.premature.floscript.scripts.logic.nodes;
+
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.premature.floscript.scripts.logic.ArrowCondition;
+import com.premature.floscript.scripts.logic.DiagramFixtures;
+import com.premature.floscript.scripts.logic.DiagramToScriptCompiler;
+import com.premature.floscript.scripts.logic.Script;
+import com.premature.floscript.scripts.logic.ScriptEngine;
+import com.premature.floscript.scripts.logic.ScriptResult;
+import com.premature.floscript.scripts.ui.diagram.Diagram;
+import com.premature.floscript.scripts.ui.diagram.DiamondUiElement;
+import com.premature.floscript.scripts.ui.diagram.LogicBlockUiElement;
+import com.premature.floscript.util.DiagramUtils;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+
+import static com.premature.floscript.scripts.logic.DiagramFixtures.connect;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that folding the template variables into the code leaves out the branches that can never run,
+ * without changing what the diagram does
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class TemplateFolderTest {
+
+    private Context mContext;
+    private DiagramFixtures mFixtures;
+
+    @Before
+    public void setUp() {
+        mContext = InstrumentationRegistry.getTargetContext();
+        mFixtures = new DiagramFixtures(mContext);
+    }
+
+    @Test
+    public void testOnlyDecisionsWithoutLabelsAreConstant() {
+        TemplateFolder folder = new TemplateFolder(mContext);
+        Script constant = mFixtures.instantiate("If-Else Template", Script.Type.DIAMOND, "{'expression':'2 * 3 > 5'}");
+        Script variable = mFixtures.instantiate("If-Else Template", Script.Type.DIAMOND, "{'expression':'$i > 5'}");
+
+        assertEquals(Boolean.TRUE, folder.getConstantDecision(constant));
+        assertNull(folder.getConstantDecision(variable));
+        assertFalse(folder.fold(variable).getSourceCode().contains("vars."));
+        assertSame(folder.fold(variable), folder.fold(variable));
+    }
+
+    @Test
+    public void testMissingVariablesStayUndefined() {
+        TemplateFolder folder = new TemplateFolder(mContext);
+        Script missing = mFixtures.instantiate(DiagramFixtures.ARITHMETIC_TEMPLATE, Script.Type.BLOCK,
+                "{'result_var':'i'}");
+
+        String code = folder.fold(missing).getSourceCode();
+        assertTrue(code.contains("floStd.expr.evaluate(undefined, env.vars)"));
+        assertFalse(code.contains("\"undefined\""));
+    }
+
+    /**
+     * start -> i = 4 -> if 1 > 2 -> (yes) i = 777 / (no) i = $i + 1
+     */
+    @Test
+    public void testBranchThatCanNeverRunIsLeftOut() throws Exception {
+        Diagram diagram = DiagramUtils.createEmptyDiagram();
+        LogicBlockUiElement init = mFixtures.block(diagram, "{'result_var':'i','expression':'4'}");
+        DiamondUiElement never = mFixtures.diamond(diagram, "{'expression':'1 > 2'}");
+        LogicBlockUiElement dead = mFixtures.block(diagram, "{'result_var':'i','expression':'777'}");
+        LogicBlockUiElement increment = mFixtures.block(diagram, "{'result_var':'i','expression':'$i + 1'}");
+        connect(diagram, diagram.getEntryElement(), init, ArrowCondition.NONE);
+        connect(diagram, init, never, ArrowCondition.NONE);
+        connect(diagram, never, dead, ArrowCondition.YES);
+        connect(diagram, never, increment, ArrowCondition.NO);
+
+        Script script = new DiagramToScriptCompiler(mContext).compile(diagram);
+        assertFalse(script.getSourceCode().contains("777"));
+        assertFalse(script.getSourceCode().contains("var vars"));
+
+        ScriptResult result = new ScriptEngine(mContext).runScript(script);
+        assertEquals(Boolean.TRUE, result.getValue());
+        assertEquals(Arrays.asList("4", "1 > 2", "5"), result.getLogLines());
+    }
+}
@@ -4,6 +4,7 @@ import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.support.annotation.Nullable;
 import android.util.Log;
 
 import com.premature.floscript.scripts.logic.ArrowCondition;
@@ -144,6 +145,30 @@ public final class DiagramDao {
         return diagram;
     }
 
+    /**
+     * @return the latest diagram that was compiled into the script with this id or <code>null</code> if
+     * there is none
+     */
+    @Nullable
+    public Diagram getDiagramForScript(long scriptId) {
+        Cursor query = null;
+        String name;
+        try {
+            query = mDb.getReadableDatabase().query(DIAGRAMS_TABLE, new String[]{DIAGRAMS_NAME},
+                    q("{}=? and {} != ?", DIAGRAMS_SCRIPT, DIAGRAMS_NAME), new String[]{Long.toString(scriptId), WORK_IN_PROGRESS_DIAGRAM},
+                    null, null, q("{} desc", DIAGRAMS_VERSION), GLOBAL_DIAGRAMS_QUERY_LIMIT);
+            if (!query.moveToFirst()) {
+                return null;
+            }
+            name = query.getString(query.getColumnIndex(DIAGRAMS_NAME));
+        } finally {
+            if (query != null) {
+                query.close();
+            }
+        }
+        return getDiagram(name);
+    }
+
     public boolean saveDiagram(Diagram diagram) {
         SQLiteDatabase db = mDb.getWritableDatabase();
         db.beginTransaction();
@@ -6,8 +6,11 @@ import android.database.sqlite.SQLiteOpenHelper;
 import android.util.Log;
 
 import com.premature.floscript.R;
+import com.premature.floscript.scripts.logic.CompiledScriptCache;
 import com.premature.floscript.scripts.logic.Script;
+import com.premature.floscript.scripts.logic.ScriptStateStore;
 import com.premature.floscript.scripts.logic.Scripts;
+import com.premature.floscript.scripts.logic.nodes.NodePrograms;
 import com.premature.floscript.util.ResourceAndFileUtils;
 
 import java.util.List;
@@ -22,7 +25,7 @@ import java.util.regex.Pattern;
 public class FloDbHelper extends SQLiteOpenHelper {
 
     public static final String DB_NAME = "floscript_db";
-    public static final int VERSION = 18;
+    public static final int VERSION = 26;
     private static final String TAG = "DB_HELPER";
 
     // singleton db helper
@@ -69,10 +72,15 @@ public class FloDbHelper extends SQLiteOpenHelper {
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
         if (oldVersion < newVersion) {
             db.execSQL("drop table if exists " + JobsDao.JOBS_TABLE);
+            db.execSQL("drop table if exists " + SuspendedRunsDao.SUSPENDED_TABLE);
             db.execSQL("drop table if exists " + ScriptsDao.SCRIPTS_TABLE);
             db.execSQL("drop table if exists " + DiagramDao.ARROWS_TABLE);
             db.execSQL("drop table if exists " + DiagramDao.CONNECT_TABLE);
             db.execSQL("drop table if exists " + DiagramDao.DIAGRAMS_TABLE);
+            db.execSQL("drop table if exists " + ScriptStateDao.STATE_TABLE);
+            CompiledScriptCache.getInstance().invalidateAll();
+            NodePrograms.invalidateAll();
+            ScriptStateStore.getInstance(mContext).invalidateAll();
             onCreate(db);
         }
         Log.d(TAG, "in upgrade " + oldVersion + " , " + newVersion);
@@ -93,10 +101,15 @@ public class FloDbHelper extends SQLiteOpenHelper {
 
     public void wipe() {
         mDbHelper.getWritableDatabase().delete(JobsDao.JOBS_TABLE, null, new String[]{});
+        mDbHelper.getWritableDatabase().delete(SuspendedRunsDao.SUSPENDED_TABLE, null, new String[]{});
         mDbHelper.getWritableDatabase().delete(ScriptsDao.SCRIPTS_TABLE, null, new String[]{});
         mDbHelper.getWritableDatabase().delete(DiagramDao.ARROWS_TABLE, null, new String[]{});
         mDbHelper.getWritableDatabase().delete(DiagramDao.CONNECT_TABLE, null, new String[]{});
         mDbHelper.getWritableDatabase().delete(DiagramDao.DIAGRAMS_TABLE, null, new String[]{});
+        mDbHelper.getWritableDatabase().delete(ScriptStateDao.STATE_TABLE, null, new String[]{});
+        CompiledScriptCache.getInstance().invalidateAll();
+        NodePrograms.invalidateAll();
+        ScriptStateStore.getInstance(mContext).invalidateAll();
 
         List<Script> preinstalledScripts = Scripts.getPreinstalledScripts(mContext);
         // save some basic scripts
@@ -4,11 +4,12 @@ import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.support.annotation.Nullable;
 import android.util.Log;
 
 import com.premature.floscript.jobs.logic.Job;
 import com.premature.floscript.jobs.logic.TimeTrigger;
-import com.premature.floscript.scripts.logic.Script;
+import com.premature.floscript.scripts.logic.ScriptRunOptions;
 
 import java.util.ArrayList;
 import java.util.Date;
@@ -33,8 +34,13 @@ public class JobsDao {
     public static final String JOBS_ENABLED = "enabled";
     public static final String JOBS_EVENT_TRIGGER = "event_trigger";
     public static final String JOBS_TIME_TRIGGER = "time_trigger";
+    public static final String JOBS_INSTRUCTION_BUDGET = "instruction_budget";
+    public static final String JOBS_WALL_DEADLINE = "wall_deadline_ms";
+    public static final String JOBS_READ_BYTE_BUDGET = "read_byte_budget";
+    public static final String JOBS_LINE_PROFILING = "line_profiling";
     public static final String[] JOBS_COLUMNS = new String[]{JOBS_ID, JOBS_NAME, JOBS_SCRIPT, JOBS_COMMENTS,
-            JOBS_CREATED, JOBS_ENABLED, JOBS_EVENT_TRIGGER, JOBS_TIME_TRIGGER};
+            JOBS_CREATED, JOBS_ENABLED, JOBS_EVENT_TRIGGER, JOBS_TIME_TRIGGER, JOBS_INSTRUCTION_BUDGET, JOBS_WALL_DEADLINE,
+            JOBS_READ_BYTE_BUDGET, JOBS_LINE_PROFILING};
 
     private static final String TAG = "JOB_DAO";
 
@@ -77,6 +83,13 @@ public class JobsDao {
             values.put(JOBS_TIME_TRIGGER, TimeTrigger.toString(job.getTimeTrigger()));
             values.put(JOBS_EVENT_TRIGGER, job.getEventTrigger());
             values.put(JOBS_ENABLED, job.isEnabled());
+            putLimit(values, JOBS_INSTRUCTION_BUDGET, job.getRunOptions().getInstructionBudget(),
+                    ScriptRunOptions.DEFAULT_INSTRUCTION_BUDGET);
+            putLimit(values, JOBS_WALL_DEADLINE, job.getRunOptions().getWallDeadlineMs(),
+                    ScriptRunOptions.DEFAULT_WALL_DEADLINE_MS);
+            putLimit(values, JOBS_READ_BYTE_BUDGET, job.getRunOptions().getReadByteBudget(),
+                    ScriptRunOptions.DEFAULT_READ_BYTE_BUDGET);
+            values.put(JOBS_LINE_PROFILING, job.getRunOptions().isLineProfiling() ? 1 : 0);
             long jobId;
             if (mode == SaveMode.INSERT) {
                 jobId = db.insert(JOBS_TABLE, null, values);
@@ -104,15 +117,7 @@ public class JobsDao {
             query = mDb.getReadableDatabase().query(JOBS_TABLE, JOBS_COLUMNS, null, new String[]{}, null, null, null);
             if (query.moveToFirst()) {
                 while (!query.isAfterLast()) {
-                    Job.Builder jobBuilder = Job.builder();
-                    jobBuilder.withName(query.getString(query.getColumnIndex(JOBS_NAME)))
-                            .withComment(query.getString(query.getColumnIndex(JOBS_COMMENTS)))
-                            .createdAt(new Date(query.getLong(query.getColumnIndex(JOBS_CREATED))))
-                            .triggerWhen(query.getString(query.getColumnIndex(JOBS_EVENT_TRIGGER)))
-                            .triggerWhen(TimeTrigger.parseString(query.getString(query.getColumnIndex(JOBS_TIME_TRIGGER))));
-                    Long scriptId = query.getLong(query.getColumnIndex(JOBS_SCRIPT));
-                    jobBuilder.fromScript(mScriptsDao.getScriptById(scriptId));
-                    Job job = jobBuilder.build();
+                    Job job = readJob(query);
                     // now add the mutable part
                     boolean enabled = query.getInt(query.getColumnIndex(JOBS_ENABLED)) == 0 ? false : true;
                     job.setEnabled(enabled);
@@ -128,14 +133,15 @@ public class JobsDao {
         return jobs;
     }
 
-    public Script getScriptForJob(String jobName) {
+    @Nullable
+    public Job getJob(String jobName) {
         Cursor query = null;
         try {
-            // select distinct
-            query = mDb.getReadableDatabase().query(JOBS_TABLE, new String[]{JOBS_SCRIPT}, q("{}=?", JOBS_NAME), new String[]{jobName}, null, null, null);
+            query = mDb.getReadableDatabase().query(JOBS_TABLE, JOBS_COLUMNS, q("{}=?", JOBS_NAME), new String[]{jobName}, null, null, null);
             if (query.moveToFirst()) {
-                Long scriptId = query.getLong(query.getColumnIndex(JOBS_SCRIPT));
-                return mScriptsDao.getScriptById(scriptId);
+                Job job = readJob(query);
+                job.setEnabled(query.getInt(query.getColumnIndex(JOBS_ENABLED)) != 0);
+                return job;
             }
             else {
                 return null;
@@ -155,17 +161,7 @@ public class JobsDao {
             query = mDb.getReadableDatabase().query(JOBS_TABLE, JOBS_COLUMNS, q("{}=1 and {}=?", JOBS_ENABLED, JOBS_EVENT_TRIGGER), new String[]{eventAlias}, null, null, null);
             if (query.moveToFirst()) {
                 do {
-                    Long scriptId = query.getLong(query.getColumnIndex(JOBS_SCRIPT));
-                    Script script = mScriptsDao.getScriptById(scriptId);
-                    String jobName = query.getString(query.getColumnIndex(JOBS_NAME));
-                    String jobComment = query.getString(query.getColumnIndex(JOBS_COMMENTS));
-                    String eventTrigger = query.getString(query.getColumnIndex(JOBS_EVENT_TRIGGER));
-                    TimeTrigger timeTrigger = TimeTrigger.parseString(query.getString(query.getColumnIndex(JOBS_TIME_TRIGGER)));
-                    jobs.add(Job.builder()
-                            .fromScript(script).withName(jobName)
-                            .withComment(jobComment)
-                            .triggerWhen(eventTrigger).triggerWhen(timeTrigger)
-                            .build());
+                    jobs.add(readJob(query));
                 } while (query.moveToNext());
             }
         } finally {
@@ -175,4 +171,50 @@ public class JobsDao {
         }
         return jobs;
     }
+
+    /**
+     * Reads the immutable part of the job the cursor is pointing at
+     */
+    private Job readJob(Cursor query) {
+        Long scriptId = query.getLong(query.getColumnIndex(JOBS_SCRIPT));
+        return Job.builder()
+                .withName(query.getString(query.getColumnIndex(JOBS_NAME)))
+                .fromScript(mScriptsDao.getScriptById(scriptId))
+                .withComment(query.getString(query.getColumnIndex(JOBS_COMMENTS)))
+                .createdAt(new Date(query.getLong(query.getColumnIndex(JOBS_CREATED))))
+                .triggerWhen(query.getString(query.getColumnIndex(JOBS_EVENT_TRIGGER)))
+                .triggerWhen(TimeTrigger.parseString(query.getString(query.getColumnIndex(JOBS_TIME_TRIGGER))))
+                .withRunOptions(readRunOptions(query))
+                .build();
+    }
+
+    /**
+     * A limit left at the engine default is stored as null, so the job follows the default if it changes
+     */
+    private static void putLimit(ContentValues values, String column, long limit, long defaultLimit) {
+        if (limit == defaultLimit) {
+            values.putNull(column);
+        } else {
+            values.put(column, limit);
+        }
+    }
+
+    private static ScriptRunOptions readRunOptions(Cursor query) {
+        ScriptRunOptions.Builder options = ScriptRunOptions.builder();
+        int budgetIdx = query.getColumnIndex(JOBS_INSTRUCTION_BUDGET);
+        if (!query.isNull(budgetIdx)) {
+            options.withInstructionBudget(query.getLong(budgetIdx));
+        }
+        int deadlineIdx = query.getColumnIndex(JOBS_WALL_DEADLINE);
+        if (!query.isNull(deadlineIdx)) {
+            options.withWallDeadline(query.getLong(deadlineIdx));
+        }
+        int readBudgetIdx = query.getColumnIndex(JOBS_READ_BYTE_BUDGET);
+        if (!query.isNull(readBudgetIdx)) {
+            options.withReadByteBudget(query.getLong(readBudgetIdx));
+        }
+        int lineProfilingIdx = query.getColumnIndex(JOBS_LINE_PROFILING);
+        options.withLineProfiling(!query.isNull(lineProfilingIdx) && query.getInt(lineProfilingIdx) == 1);
+        return options.build();
+    }
 }
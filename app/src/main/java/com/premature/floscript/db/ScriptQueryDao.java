@@ -0,0 +1,86 @@
+package com.premature.floscript.db;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.util.LruCache;
+
+import java.util.Locale;
+
+/**
+ * Runs the read only queries scripts make through <code>floApi.query</code>. Only a single select statement
+ * is accepted, and it is wrapped so that sqlite itself stops producing rows once the limit is reached.
+ * <p/>
+ * The statements we already checked are remembered, so a script that runs the same query on every trigger
+ * only pays for the check once. Sqlite in turn keeps the compiled form of recently used statements for each
+ * connection, which saves it from preparing the same sql again.
+ */
+public final class ScriptQueryDao {
+
+    public static final int DEFAULT_ROW_LIMIT = 1000;
+    public static final int MAX_ROW_LIMIT = 10000;
+    private static final int VALIDATED_STATEMENTS = 32;
+
+    // maps the sql a script passed in to the statement we actually run
+    private static final LruCache<String, String> sValidatedStatements = new LruCache<>(VALIDATED_STATEMENTS);
+
+    private final FloDbHelper mDb;
+
+    public ScriptQueryDao(Context ctx) {
+        this.mDb = FloDbHelper.getInstance(ctx);
+    }
+
+    /**
+     * @return a cursor over at most limit rows of the query, which the caller has to close
+     * @throws IllegalArgumentException if the sql isn't a single select statement or the limit is out of range
+     */
+    public Cursor query(String sql, String[] selectionArgs, int limit) {
+        if (limit <= 0 || limit > MAX_ROW_LIMIT) {
+            throw new IllegalArgumentException("The row limit must be between 1 and " + MAX_ROW_LIMIT + " but was " + limit);
+        }
+        String statement = sValidatedStatements.get(sql);
+        if (statement == null) {
+            statement = validate(sql);
+            sValidatedStatements.put(sql, statement);
+        }
+        // the limit is bound as an argument so that the statement text, and with it sqlite's cache entry, stays the same
+        String[] args = new String[selectionArgs.length + 1];
+        System.arraycopy(selectionArgs, 0, args, 0, selectionArgs.length);
+        args[selectionArgs.length] = Integer.toString(limit);
+        return mDb.getReadableDatabase().rawQuery(statement, args);
+    }
+
+    private static String validate(String sql) {
+        String trimmed = sql.trim();
+        while (trimmed.endsWith(";")) {
+            trimmed = trimmed.substring(0, trimmed.length() - 1).trim();
+        }
+        // a select can't change anything, but a with clause can lead into a delete or an update
+        if (!trimmed.toLowerCase(Locale.US).startsWith("select")) {
+            throw new IllegalArgumentException("Only select statements are allowed: " + sql);
+        }
+        if (containsStatementSeparator(trimmed)) {
+            throw new IllegalArgumentException("Only a single statement is allowed: " + sql);
+        }
+        return "select * from (" + trimmed + ") limit ?";
+    }
+
+    /**
+     * @return <code>true</code> if there is a semicolon outside of any string literal or quoted identifier
+     */
+    private static boolean containsStatementSeparator(String sql) {
+        char quote = 0;
+        for (int i = 0; i < sql.length(); i++) {
+            char c = sql.charAt(i);
+            if (quote != 0) {
+                if (c == quote) {
+                    quote = 0;
+                }
+            } else if (c == '\'' || c == '"' || c == '`') {
+                quote = c;
+            } else if (c == ';') {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,86 @@
+package com.premature.floscript.db;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static com.premature.floscript.db.DbUtils.q;
+
+/**
+ * Data access object for the values scripts keep between their runs through <code>floApi.store</code>.
+ * The values of each script live in their own namespace and are stored as json text
+ */
+public final class ScriptStateDao {
+    private static final String TAG = "SCRIPT_STATE_DAO";
+
+    public static final String STATE_TABLE = "script_state";
+    public static final String STATE_ID = "_id";
+    public static final String STATE_NAMESPACE = "namespace";
+    public static final String STATE_KEY = "name";
+    public static final String STATE_VALUE = "value";
+
+    private final FloDbHelper mDb;
+
+    public ScriptStateDao(Context ctx) {
+        this.mDb = FloDbHelper.getInstance(ctx);
+    }
+
+    /**
+     * @return all the keys stored in the namespace, mapped to their json values
+     */
+    public Map<String, String> getValues(String namespace) {
+        Map<String, String> values = new HashMap<>();
+        Cursor query = null;
+        try {
+            query = mDb.getReadableDatabase().query(STATE_TABLE, new String[]{STATE_KEY, STATE_VALUE},
+                    q("{}=?", STATE_NAMESPACE), new String[]{namespace}, null, null, null);
+            int keyIdx = query.getColumnIndex(STATE_KEY);
+            int valueIdx = query.getColumnIndex(STATE_VALUE);
+            while (query.moveToNext()) {
+                values.put(query.getString(keyIdx), query.getString(valueIdx));
+            }
+        } finally {
+            if (query != null) {
+                query.close();
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Write the changed keys of the namespace in a single transaction. A <code>null</code> value deletes the key
+     *
+     * @return false if a key couldn't be written, in which case none of them are
+     */
+    public boolean saveValues(String namespace, Map<String, String> changed) {
+        SQLiteDatabase db = mDb.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (Map.Entry<String, String> change : changed.entrySet()) {
+                if (change.getValue() == null) {
+                    db.delete(STATE_TABLE, q("{}=? and {}=?", STATE_NAMESPACE, STATE_KEY), new String[]{namespace, change.getKey()});
+                } else {
+                    ContentValues columnToValue = new ContentValues();
+                    columnToValue.put(STATE_NAMESPACE, namespace);
+                    columnToValue.put(STATE_KEY, change.getKey());
+                    columnToValue.put(STATE_VALUE, change.getValue());
+                    long id = db.insertWithOnConflict(STATE_TABLE, null, columnToValue, SQLiteDatabase.CONFLICT_REPLACE);
+                    if (id == -1) {
+                        Log.e(TAG, "Failed to store key " + change.getKey() + " of " + namespace);
+                        return false;
+                    }
+                }
+            }
+            db.setTransactionSuccessful(); // commits the tran
+        } finally {
+            // this rolls back the tran unless setTranSuc was called
+            db.endTransaction();
+        }
+        return true;
+    }
+}
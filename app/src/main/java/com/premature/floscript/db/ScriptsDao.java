@@ -7,8 +7,10 @@ import android.database.sqlite.SQLiteDatabase;
 import android.support.annotation.Nullable;
 import android.util.Log;
 
+import com.premature.floscript.scripts.logic.CompiledScriptCache;
 import com.premature.floscript.scripts.logic.Script;
 import com.premature.floscript.scripts.logic.Scripts;
+import com.premature.floscript.scripts.logic.nodes.NodePrograms;
 
 import java.util.ArrayList;
 import java.util.Date;
@@ -32,6 +34,8 @@ public final class ScriptsDao {
     public static final String SCRIPTS_VARIABLES = "variables";
     public static final String SCRIPTS_VAR_TYPES = "var_types";
     public static final String SCRIPTS_TYPE = "type";
+    public static final String SCRIPTS_COMPILED = "compiled";
+    public static final String SCRIPTS_COMPILED_HASH = "compiled_hash";
     public static final String SCRIPTS_TABLE = "scripts";
     private static final String[] SCRIPTS_COLUMNS = {SCRIPTS_ID, SCRIPTS_NAME,
             SCRIPTS_DESCRIPTION, SCRIPTS_CREATED, SCRIPTS_CODE,
@@ -66,6 +70,9 @@ public final class ScriptsDao {
         columnToValue.put(SCRIPTS_TYPE, script.getType().getCode());
         long id = db.insert(SCRIPTS_TABLE, null, columnToValue);
         script.setId((id != -1) ? id : null);
+        // ids get reused after the table is recreated so whatever was compiled under this id is stale
+        CompiledScriptCache.getInstance().invalidate(script.getId());
+        NodePrograms.invalidate(script.getId());
 
         if (script == Scripts.ENTRY_POINT_SCRIPT) {
             startScriptId = id;
@@ -115,6 +122,37 @@ public final class ScriptsDao {
         }
     }
 
+    /**
+     * @return the stored compiled form of the script if it was made from source with this hash, otherwise <code>null</code>
+     */
+    @Nullable
+    public byte[] getCompiledForm(long scriptId, String sourceHash) {
+        Cursor query = null;
+        try {
+            query = mDb.getReadableDatabase().query(SCRIPTS_TABLE, new String[]{SCRIPTS_COMPILED},
+                    q("{}=? and {}=?", SCRIPTS_ID, SCRIPTS_COMPILED_HASH),
+                    new String[]{Long.toString(scriptId), sourceHash}, null, null, null);
+            if (query.moveToFirst()) {
+                return query.getBlob(query.getColumnIndex(SCRIPTS_COMPILED));
+            }
+            return null;
+        } finally {
+            if (query != null) {
+                query.close();
+            }
+        }
+    }
+
+    /**
+     * Store the compiled form of the script next to its source, replacing whatever was stored before
+     */
+    public void saveCompiledForm(long scriptId, String sourceHash, byte[] compiled) {
+        ContentValues columnToValue = new ContentValues();
+        columnToValue.put(SCRIPTS_COMPILED, compiled);
+        columnToValue.put(SCRIPTS_COMPILED_HASH, sourceHash);
+        mDb.getWritableDatabase().update(SCRIPTS_TABLE, columnToValue, q("{}=?", SCRIPTS_ID), new String[]{Long.toString(scriptId)});
+    }
+
     public List<Script> getScripts(String selection, String[] selectionArgs) {
         Cursor query = null;
         List<Script> scripts = new ArrayList<>();
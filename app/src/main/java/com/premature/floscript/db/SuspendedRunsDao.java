@@ -0,0 +1,161 @@
+package com.premature.floscript.db;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.annotation.Nullable;
+import android.util.Pair;
+
+import com.premature.floscript.scripts.logic.ScriptRunOptions;
+import com.premature.floscript.scripts.logic.SuspendedRun;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.premature.floscript.db.DbUtils.q;
+
+/**
+ * Data access object for the script runs that suspended themselves and are waiting to be resumed
+ */
+public final class SuspendedRunsDao {
+
+    public static final String SUSPENDED_TABLE = "suspended_runs";
+    public static final String SUSPENDED_ID = "_id";
+    public static final String SUSPENDED_SCRIPT = "script_id";
+    public static final String SUSPENDED_INSTRUCTION_BUDGET = "instruction_budget";
+    public static final String SUSPENDED_WALL_DEADLINE = "wall_deadline_ms";
+    public static final String SUSPENDED_READ_BYTE_BUDGET = "read_byte_budget";
+    public static final String SUSPENDED_CONTINUATION = "continuation";
+    public static final String SUSPENDED_WAKE_AT = "wake_at";
+    public static final String SUSPENDED_WAKE_EVENT = "wake_event";
+    public static final String SUSPENDED_JOB_NAME = "job_name";
+    public static final String[] SUSPENDED_COLUMNS = new String[]{SUSPENDED_ID, SUSPENDED_SCRIPT,
+            SUSPENDED_INSTRUCTION_BUDGET, SUSPENDED_WALL_DEADLINE, SUSPENDED_READ_BYTE_BUDGET,
+            SUSPENDED_CONTINUATION, SUSPENDED_WAKE_AT, SUSPENDED_WAKE_EVENT, SUSPENDED_JOB_NAME};
+
+    private final FloDbHelper mDb;
+
+    public SuspendedRunsDao(Context ctx) {
+        this.mDb = FloDbHelper.getInstance(ctx);
+    }
+
+    /**
+     * @return the id of the saved run
+     */
+    public long saveSuspendedRun(SuspendedRun run) {
+        ContentValues values = new ContentValues();
+        values.put(SUSPENDED_SCRIPT, run.getScriptId());
+        values.put(SUSPENDED_INSTRUCTION_BUDGET, run.getOptions().getInstructionBudget());
+        values.put(SUSPENDED_WALL_DEADLINE, run.getOptions().getWallDeadlineMs());
+        values.put(SUSPENDED_READ_BYTE_BUDGET, run.getOptions().getReadByteBudget());
+        values.put(SUSPENDED_CONTINUATION, run.getContinuation());
+        values.put(SUSPENDED_WAKE_AT, run.getWakeAtMs());
+        values.put(SUSPENDED_WAKE_EVENT, run.getWakeEvent());
+        values.put(SUSPENDED_JOB_NAME, run.getJobName());
+        long id = mDb.getWritableDatabase().insert(SUSPENDED_TABLE, null, values);
+        if (id == -1) {
+            throw new IllegalStateException("Failed to save suspended run of script " + run.getScriptId());
+        }
+        return id;
+    }
+
+    /**
+     * Load the run and delete it in one transaction, so that a run which is woken twice only gets resumed once
+     *
+     * @return the run or <code>null</code> if it was already taken
+     */
+    @Nullable
+    public SuspendedRun takeSuspendedRun(long id) {
+        SQLiteDatabase db = mDb.getWritableDatabase();
+        Cursor query = null;
+        db.beginTransaction();
+        try {
+            query = db.query(SUSPENDED_TABLE, SUSPENDED_COLUMNS, q("{}=?", SUSPENDED_ID),
+                    new String[]{Long.toString(id)}, null, null, null);
+            if (!query.moveToFirst()) {
+                return null;
+            }
+            SuspendedRun run = readSuspendedRun(query);
+            db.delete(SUSPENDED_TABLE, q("{}=?", SUSPENDED_ID), new String[]{Long.toString(id)});
+            db.setTransactionSuccessful();
+            return run;
+        } finally {
+            if (query != null) {
+                query.close();
+            }
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * @return the ids of the runs waiting for the event with this alias, each with the name of the job it
+     * belongs to, which is <code>null</code> for a run that doesn't belong to a job
+     */
+    public List<Pair<Long, String>> getRunsWaitingForEvent(String eventAlias) {
+        List<Pair<Long, String>> runs = new ArrayList<>();
+        Cursor query = null;
+        try {
+            query = mDb.getReadableDatabase().query(SUSPENDED_TABLE, new String[]{SUSPENDED_ID, SUSPENDED_JOB_NAME},
+                    q("{}=?", SUSPENDED_WAKE_EVENT), new String[]{eventAlias}, null, null, null);
+            while (query.moveToNext()) {
+                runs.add(Pair.create(query.getLong(0), query.isNull(1) ? null : query.getString(1)));
+            }
+        } finally {
+            if (query != null) {
+                query.close();
+            }
+        }
+        return runs;
+    }
+
+    public boolean hasRunsWaitingForEvent(String eventAlias) {
+        return DatabaseUtils.queryNumEntries(mDb.getReadableDatabase(), SUSPENDED_TABLE,
+                q("{}=?", SUSPENDED_WAKE_EVENT), new String[]{eventAlias}) > 0;
+    }
+
+    /**
+     * Delete the runs of the job, so that they are never resumed
+     *
+     * @return the ids of the deleted runs
+     */
+    public List<Long> deleteRunsOfJob(String jobName) {
+        SQLiteDatabase db = mDb.getWritableDatabase();
+        List<Long> ids = new ArrayList<>();
+        Cursor query = null;
+        db.beginTransaction();
+        try {
+            query = db.query(SUSPENDED_TABLE, new String[]{SUSPENDED_ID}, q("{}=?", SUSPENDED_JOB_NAME),
+                    new String[]{jobName}, null, null, null);
+            while (query.moveToNext()) {
+                ids.add(query.getLong(0));
+            }
+            db.delete(SUSPENDED_TABLE, q("{}=?", SUSPENDED_JOB_NAME), new String[]{jobName});
+            db.setTransactionSuccessful();
+        } finally {
+            if (query != null) {
+                query.close();
+            }
+            db.endTransaction();
+        }
+        return ids;
+    }
+
+    private static SuspendedRun readSuspendedRun(Cursor query) {
+        ScriptRunOptions options = ScriptRunOptions.builder()
+                .withInstructionBudget(query.getLong(query.getColumnIndex(SUSPENDED_INSTRUCTION_BUDGET)))
+                .withWallDeadline(query.getLong(query.getColumnIndex(SUSPENDED_WALL_DEADLINE)))
+                .withReadByteBudget(query.getLong(query.getColumnIndex(SUSPENDED_READ_BYTE_BUDGET)))
+                .build();
+        int eventIdx = query.getColumnIndex(SUSPENDED_WAKE_EVENT);
+        int jobNameIdx = query.getColumnIndex(SUSPENDED_JOB_NAME);
+        return new SuspendedRun(query.getLong(query.getColumnIndex(SUSPENDED_ID)),
+                query.getLong(query.getColumnIndex(SUSPENDED_SCRIPT)),
+                options,
+                query.getBlob(query.getColumnIndex(SUSPENDED_CONTINUATION)),
+                query.getLong(query.getColumnIndex(SUSPENDED_WAKE_AT)),
+                query.isNull(eventIdx) ? null : query.getString(eventIdx),
+                query.isNull(jobNameIdx) ? null : query.getString(jobNameIdx));
+    }
+}
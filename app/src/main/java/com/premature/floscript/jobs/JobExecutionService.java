@@ -1,38 +1,84 @@
 package com.premature.floscript.jobs;
 
-import android.app.IntentService;
+import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.support.annotation.Nullable;
 import android.util.Log;
+import android.util.Pair;
 
+import com.premature.floscript.R;
 import com.premature.floscript.db.JobsDao;
+import com.premature.floscript.db.SuspendedRunsDao;
 import com.premature.floscript.jobs.logic.Job;
-import com.premature.floscript.scripts.logic.Script;
+import com.premature.floscript.jobs.logic.JobScheduler;
 import com.premature.floscript.scripts.logic.ScriptEngine;
 import com.premature.floscript.scripts.logic.ScriptExecutionException;
+import com.premature.floscript.scripts.logic.ScriptResult;
+import com.premature.floscript.scripts.logic.ScriptSuspendedException;
+import com.premature.floscript.scripts.logic.ScriptThreadFactory;
+import com.premature.floscript.scripts.logic.SuspendedRun;
+import com.premature.floscript.scripts.logic.nodes.NodeProgram;
+import com.premature.floscript.scripts.logic.nodes.NodePrograms;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- * This class is a {@link IntentService} subclass for handling asynchronous job execution requests in
- * a service on a separate handler thread.
+ * This class is a {@link Service} for handling asynchronous job execution requests on a bounded pool of
+ * worker threads. Different jobs run in parallel, up to the limit in {@link R.integer#job_execution_max_parallel},
+ * while the runs of any one job are executed one after the other in the order they were triggered.
+ * The service stops itself once it has no more work.
+ * <p/>
+ * Job scripts may suspend themselves to wait for a time or an event, in which case the service schedules
+ * their resumption and lets go of the worker right away.
  * <p/>
  * helper methods include {@link #startActionJob(android.content.Context, String)}
  * for queuing a job execution.
  */
-public class JobExecutionService extends IntentService {
+public class JobExecutionService extends Service {
     private static final String TAG = "JOB_EXEC";
+    private static final long IDLE_WORKER_TIMEOUT_SEC = 30;
+    private static final String EVENT_LOOKUP_KEY_PREFIX = "event:";
+    private static final String RESUME_KEY_PREFIX = "resume:";
 
     public static final String ACTION_TIME = "com.premature.floscript.jobs.action.JOB_TIME";
     public static final String ACTION_EVENT = "com.premature.floscript.jobs.action.JOB_EVENT";
+    public static final String ACTION_RESUME = "com.premature.floscript.jobs.action.JOB_RESUME";
     public static final String JOB_NAME = "com.premature.floscript.jobs.extra.JOB_NAME";
     public static final String EVENT_ALIAS = "com.premature.floscript.jobs.extra.EVENT_ALIAS";
+    public static final String SUSPENDED_RUN_ID = "com.premature.floscript.jobs.extra.SUSPENDED_RUN_ID";
     private JobsDao mJobDao;
+    private SuspendedRunsDao mSuspendedRunsDao;
+    private JobScheduler mJobScheduler;
     private ScriptEngine mScriptEngine;
+    private NodePrograms mNodePrograms;
+    private ThreadPoolExecutor mWorkerPool;
+    private KeyedSerialExecutor mJobExecutor;
+    private Handler mMainHandler;
+    // counts the submitted tasks that haven't finished yet, we only stop once this drops to zero
+    private final AtomicInteger mPendingTasks = new AtomicInteger();
+    // only touched on the main thread
+    private int mLastStartId;
+
+    private final Runnable mTaskFinished = new Runnable() {
+        @Override
+        public void run() {
+            if (mPendingTasks.decrementAndGet() == 0) {
+                // if a newer start command arrived in the meantime this won't stop us
+                stopSelf(mLastStartId);
+            }
+        }
+    };
 
     /**
      * Starts this service to perform action Job with the given parameters. If
      * the service is already performing a task this action will be queued.
-     *
-     * @see IntentService
      */
     public static void startActionJob(Context context, String eventActionName) {
         Log.d(TAG, "Received a start action from event trigger for action = " + eventActionName);
@@ -42,8 +88,17 @@ public class JobExecutionService extends IntentService {
         context.startService(intent);
     }
 
-    public JobExecutionService() {
-        super("JobExecutionService");
+    /**
+     * Starts this service to resume a script run which suspended itself
+     *
+     * @param jobName the job the run belongs to, whose other runs it mustn't overlap with
+     */
+    public static void startActionResume(Context context, long suspendedRunId, @Nullable String jobName) {
+        Intent intent = new Intent(context, JobExecutionService.class);
+        intent.setAction(ACTION_RESUME);
+        intent.putExtra(SUSPENDED_RUN_ID, suspendedRunId);
+        intent.putExtra(JOB_NAME, jobName);
+        context.startService(intent);
     }
 
     @Override
@@ -51,27 +106,84 @@ public class JobExecutionService extends IntentService {
         super.onCreate();
         // unlike with activities we aren't required to call the super callbacks
         this.mJobDao = new JobsDao(getApplicationContext());
+        this.mSuspendedRunsDao = new SuspendedRunsDao(getApplicationContext());
+        this.mJobScheduler = new JobScheduler(getApplicationContext());
         this.mScriptEngine = new ScriptEngine(getApplicationContext());
+        this.mNodePrograms = new NodePrograms(getApplicationContext());
+        this.mMainHandler = new Handler(Looper.getMainLooper());
+        int maxParallel = getResources().getInteger(R.integer.job_execution_max_parallel);
+        this.mWorkerPool = new ThreadPoolExecutor(maxParallel, maxParallel, IDLE_WORKER_TIMEOUT_SEC, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ScriptThreadFactory("JobExecution"));
+        this.mWorkerPool.allowCoreThreadTimeOut(true);
+        this.mJobExecutor = new KeyedSerialExecutor(mWorkerPool);
     }
 
     @Override
-    protected void onHandleIntent(Intent intent) {
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        mLastStartId = startId;
         Log.d(TAG, "handling intent");
         if (intent != null) {
             final String action = intent.getAction();
             if (ACTION_TIME.equals(action)) {
                 // time triggers tell us the name of the job inside the pending intent
                 final String jobName = intent.getStringExtra(JOB_NAME);
-                handleJobExecution(jobName);
                 Log.d(TAG, "Doing time triggered job " + jobName);
+                submit(jobName, new Runnable() {
+                    @Override
+                    public void run() {
+                        handleJobExecution(jobName);
+                    }
+                });
             } else if (ACTION_EVENT.equals(action)) {
                 // with eventAlias triggered jobs there is no pending intent so we have to look them up
                 // based on eventAlias type
                 final String eventAlias = intent.getStringExtra(EVENT_ALIAS);
                 Log.d(TAG, "Doing eventAlias triggered jobs " + eventAlias);
-                handleSystemEvent(eventAlias);
+                submit(EVENT_LOOKUP_KEY_PREFIX + eventAlias, new Runnable() {
+                    @Override
+                    public void run() {
+                        handleSystemEvent(eventAlias);
+                    }
+                });
+            } else if (ACTION_RESUME.equals(action)) {
+                long suspendedRunId = intent.getLongExtra(SUSPENDED_RUN_ID, -1);
+                Log.d(TAG, "Resuming suspended run " + suspendedRunId);
+                submitResume(suspendedRunId, intent.getStringExtra(JOB_NAME));
             }
         }
+        if (mPendingTasks.get() == 0) {
+            stopSelf(startId);
+        }
+        return START_NOT_STICKY;
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        // nothing is pending when we get here, this just lets the idle workers go right away
+        mWorkerPool.shutdown();
+    }
+
+    /**
+     * Queue the task behind any other task submitted with the same key
+     */
+    private void submit(String key, final Runnable task) {
+        mPendingTasks.incrementAndGet();
+        mJobExecutor.execute(key, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    task.run();
+                } finally {
+                    mMainHandler.post(mTaskFinished);
+                }
+            }
+        });
     }
 
     /**
@@ -82,32 +194,95 @@ public class JobExecutionService extends IntentService {
      */
     private void handleSystemEvent(String eventAlias) {
         Iterable<Job> jobs = mJobDao.getEnabledJobsForEventTrigger(eventAlias);
-        for (Job job : jobs) {
-            try {
-                String result = null;
-                Log.d(TAG, "Triggering job " + job.getJobName() + " enabled registered event trigger listener");
-                result = mScriptEngine.runScript(job.getScript());
-                Log.d(TAG, "For job " + job.getJobName() + " the job result was = " + result);
-            } catch (ScriptExecutionException e) {
-                Log.e(TAG, "For job " + job.getJobName() + " failed to execute due to exception: " + e.getMessage());
-            }
+        for (final Job job : jobs) {
+            Log.d(TAG, "Triggering job " + job.getJobName() + " enabled registered event trigger listener");
+            // each job goes into its own queue so that a slow script doesn't hold up the others
+            submit(job.getJobName(), new Runnable() {
+                @Override
+                public void run() {
+                    runJob(job);
+                }
+            });
+        }
+        // scripts which suspended themselves in floApi.waitForEvent
+        for (Pair<Long, String> suspendedRun : mSuspendedRunsDao.getRunsWaitingForEvent(eventAlias)) {
+            submitResume(suspendedRun.first, suspendedRun.second);
         }
     }
 
+    /**
+     * A resumed run goes into the queue of its job, so it never runs at the same time as another run of the job
+     */
+    private void submitResume(final long suspendedRunId, @Nullable String jobName) {
+        submit(jobName != null ? jobName : RESUME_KEY_PREFIX + suspendedRunId, new Runnable() {
+            @Override
+            public void run() {
+                resumeRun(suspendedRunId);
+            }
+        });
+    }
+
     /**
      * TODO: make sure this holds onto the cpu wakup lock, or else the device might sleep before we get here
-     * TODO: we are also on a background thread here is if we need some scripts to run in the foreground
+     * TODO: we are also on a worker thread here is if we need some scripts to run in the foreground
      * we will require an activity to receive the action
      */
     private void handleJobExecution(String jobName) {
+        Job job = mJobDao.getJob(jobName);
+        if (job == null) {
+            Log.e(TAG, "Job " + jobName + " no longer exists");
+            return;
+        }
+        Log.d(TAG, "For job " + jobName + " we are going to run script " + job.getScript());
+        runJob(job);
+    }
+
+    private void runJob(Job job) {
+        try {
+            ScriptResult result;
+            // diagrams built from templates run much faster as java nodes than in the rhino interpreter,
+            // unless we want to see the lines of the script in a line profile or the script may suspend itself
+            boolean needsRhino = job.getRunOptions().isLineProfiling() || ScriptEngine.maySuspend(job.getScript());
+            NodeProgram program = needsRhino ? null : mNodePrograms.forScript(job.getScript());
+            if (program != null) {
+                result = mScriptEngine.runProgram(program, job.getRunOptions());
+            } else {
+                result = mScriptEngine.runSuspendableScript(job.getScript(), job.getRunOptions(), job.getJobName());
+            }
+            Log.d(TAG, "For job " + job.getJobName() + " the script result was = " + result.getDisplayValue()
+                    + " after " + result.getDurationMs() + " ms");
+        } catch (ScriptSuspendedException e) {
+            Log.d(TAG, "For job " + job.getJobName() + " the script was suspended");
+            scheduleResume(e.getSuspendedRun());
+        } catch (ScriptExecutionException e) {
+            Log.e(TAG, "For job " + job.getJobName() + " failed to execute due to exception: " + e.getMessage());
+        } catch (RuntimeException e) {
+            // a bug of ours shouldn't take the worker thread and the process down with it
+            Log.e(TAG, "For job " + job.getJobName() + " failed to execute due to exception", e);
+        }
+    }
+
+    private void resumeRun(long suspendedRunId) {
         try {
-            Script script = mJobDao.getScriptForJob(jobName);
-            Log.d(TAG, "For job " + jobName + " we are going to run script " + script);
-            String result = null;
-            result = mScriptEngine.runScript(script);
-            Log.d(TAG, "For job " + jobName + " the script result was = " + result);
+            ScriptResult result = mScriptEngine.resumeScript(suspendedRunId);
+            Log.d(TAG, "For suspended run " + suspendedRunId + " the script result was = "
+                    + result.getDisplayValue() + " after " + result.getDurationMs() + " ms");
+        } catch (ScriptSuspendedException e) {
+            Log.d(TAG, "Suspended run " + suspendedRunId + " was suspended again");
+            scheduleResume(e.getSuspendedRun());
         } catch (ScriptExecutionException e) {
-            Log.e(TAG, "For job " + jobName + " failed to execute due to exception: " + e.getMessage());
+            Log.e(TAG, "Suspended run " + suspendedRunId + " failed to execute due to exception: " + e.getMessage());
+        } catch (RuntimeException e) {
+            // a bug of ours shouldn't take the worker thread and the process down with it
+            Log.e(TAG, "Suspended run " + suspendedRunId + " failed to execute due to exception", e);
+        }
+    }
+
+    private void scheduleResume(SuspendedRun suspendedRun) {
+        if (!mJobScheduler.scheduleResume(suspendedRun)) {
+            // nothing would ever wake it up
+            Log.e(TAG, "Unable to schedule the resumption of " + suspendedRun + ", discarding it");
+            mSuspendedRunsDao.takeSuspendedRun(suspendedRun.getId());
         }
     }
 }
@@ -0,0 +1,65 @@
+package com.premature.floscript.jobs;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/**
+ * Runs tasks on a backing executor so that tasks submitted under the same key execute one after the
+ * other in submission order, while tasks with different keys are free to run in parallel.
+ */
+final class KeyedSerialExecutor {
+
+    private final Executor mExecutor;
+    // a key is present while one of its tasks is running, the deque holds the tasks waiting behind it
+    private final Map<String, ArrayDeque<Runnable>> mWaiting = new HashMap<>();
+
+    KeyedSerialExecutor(Executor executor) {
+        this.mExecutor = executor;
+    }
+
+    void execute(String key, Runnable task) {
+        synchronized (mWaiting) {
+            ArrayDeque<Runnable> waiting = mWaiting.get(key);
+            if (waiting != null) {
+                waiting.add(task);
+                return;
+            }
+            mWaiting.put(key, new ArrayDeque<Runnable>());
+        }
+        mExecutor.execute(new KeyedTask(key, task));
+    }
+
+    private void scheduleNext(String key) {
+        Runnable next;
+        synchronized (mWaiting) {
+            ArrayDeque<Runnable> waiting = mWaiting.get(key);
+            next = waiting.poll();
+            if (next == null) {
+                mWaiting.remove(key);
+                return;
+            }
+        }
+        mExecutor.execute(new KeyedTask(key, next));
+    }
+
+    private final class KeyedTask implements Runnable {
+        private final String mKey;
+        private final Runnable mTask;
+
+        private KeyedTask(String key, Runnable task) {
+            this.mKey = key;
+            this.mTask = task;
+        }
+
+        @Override
+        public void run() {
+            try {
+                mTask.run();
+            } finally {
+                scheduleNext(mKey);
+            }
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package com.premature.floscript.jobs;
+
+import android.app.job.JobParameters;
+import android.app.job.JobService;
+import android.util.Log;
+
+/**
+ * The system {@link android.app.job.JobScheduler} starts this once a script that went to sleep in
+ * <code>floApi.sleep</code> should wake up. It only hands the suspended run over to the
+ * {@link JobExecutionService}, which resumes it on one of its workers, so nothing is held while the script sleeps.
+ */
+public class ResumeScriptJobService extends JobService {
+    private static final String TAG = "RESUME_JOB";
+
+    public static final String SUSPENDED_RUN_ID = "com.premature.floscript.jobs.extra.SUSPENDED_RUN_ID";
+    public static final String JOB_NAME = "com.premature.floscript.jobs.extra.JOB_NAME";
+
+    @Override
+    public boolean onStartJob(JobParameters params) {
+        long suspendedRunId = params.getExtras().getLong(SUSPENDED_RUN_ID, -1);
+        Log.d(TAG, "Waking suspended run " + suspendedRunId);
+        if (suspendedRunId != -1) {
+            JobExecutionService.startActionResume(this, suspendedRunId, params.getExtras().getString(JOB_NAME));
+        }
+        // the execution service does the work, so there is nothing left for this job to do
+        return false;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        return false;
+    }
+}
@@ -5,6 +5,7 @@ import android.os.Parcelable;
 import android.support.annotation.Nullable;
 
 import com.premature.floscript.scripts.logic.Script;
+import com.premature.floscript.scripts.logic.ScriptRunOptions;
 
 import java.util.Date;
 
@@ -20,17 +21,20 @@ public class Job implements Parcelable {
     private final String mComment;
     private final String mEventTrigger;
     private final TimeTrigger mTimeTrigger;
+    private final ScriptRunOptions mRunOptions;
 
     // this is the mutable part of the job
     private boolean mEnabled = true;
 
-    public Job(String mJobName, Script mScript, Date mCreated, String mComment, String eventTriger, TimeTrigger timeTrigger) {
+    public Job(String mJobName, Script mScript, Date mCreated, String mComment, String eventTriger, TimeTrigger timeTrigger,
+               ScriptRunOptions runOptions) {
         this.mJobName = mJobName;
         this.mScript = mScript;
         this.mCreated = mCreated;
         this.mComment = mComment;
         this.mEventTrigger = eventTriger;
         this.mTimeTrigger = timeTrigger;
+        this.mRunOptions = runOptions;
     }
 
     private Job(Parcel in) {
@@ -41,6 +45,12 @@ public class Job implements Parcelable {
         this.mEventTrigger = in.readString();
         this.mTimeTrigger = in.readParcelable(TimeTrigger.class.getClassLoader());
         this.mEnabled = in.readInt() == 0 ? false : true;
+        this.mRunOptions = ScriptRunOptions.builder()
+                .withInstructionBudget(in.readLong())
+                .withWallDeadline(in.readLong())
+                .withReadByteBudget(in.readLong())
+                .withLineProfiling(in.readInt() == 1)
+                .build();
     }
 
     @Override
@@ -57,6 +67,10 @@ public class Job implements Parcelable {
         dest.writeString(mEventTrigger);
         dest.writeParcelable(mTimeTrigger, flags);
         dest.writeInt(mEnabled ? 1 : 0);
+        dest.writeLong(mRunOptions.getInstructionBudget());
+        dest.writeLong(mRunOptions.getWallDeadlineMs());
+        dest.writeLong(mRunOptions.getReadByteBudget());
+        dest.writeInt(mRunOptions.isLineProfiling() ? 1 : 0);
     }
 
     public static final Parcelable.Creator<Job> CREATOR = new Parcelable.Creator<Job>() {
@@ -99,6 +113,13 @@ public class Job implements Parcelable {
         return mComment;
     }
 
+    /**
+     * @return the instruction budget and deadline this job's script is executed with
+     */
+    public ScriptRunOptions getRunOptions() {
+        return mRunOptions;
+    }
+
     public boolean isEnabled() {
         return mEnabled;
     }
@@ -116,6 +137,7 @@ public class Job implements Parcelable {
                 ", mComment='" + mComment + '\'' +
                 ", mEventTrigger='" + mEventTrigger + '\'' +
                 ", mTimeTrigger=" + mTimeTrigger +
+                ", mRunOptions=" + mRunOptions +
                 ", mEnabled=" + mEnabled +
                 '}';
     }
@@ -142,6 +164,7 @@ public class Job implements Parcelable {
 
         private String eventTrigger;
         private TimeTrigger timeTrigger;
+        private ScriptRunOptions mRunOptions = ScriptRunOptions.DEFAULT;
 
         private Builder() {
         }
@@ -177,6 +200,11 @@ public class Job implements Parcelable {
             return this;
         }
 
+        public Builder withRunOptions(ScriptRunOptions runOptions) {
+            mRunOptions = runOptions;
+            return this;
+        }
+
         public Job build() {
             if (mJobName == null) {
                 throw new IllegalArgumentException("Job must have a name");
@@ -184,7 +212,10 @@ public class Job implements Parcelable {
             if (mScript == null) {
                 throw new IllegalArgumentException("Job must have a script attached");
             }
-            return new Job(mJobName, mScript, mCreated, mComment, eventTrigger, timeTrigger);
+            if (mRunOptions == null) {
+                throw new IllegalArgumentException("Job must have run options");
+            }
+            return new Job(mJobName, mScript, mCreated, mComment, eventTrigger, timeTrigger, mRunOptions);
         }
     }
 }
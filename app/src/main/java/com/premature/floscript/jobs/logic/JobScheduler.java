@@ -3,6 +3,7 @@ package com.premature.floscript.jobs.logic;
 import android.annotation.TargetApi;
 import android.app.AlarmManager;
 import android.app.PendingIntent;
+import android.app.job.JobInfo;
 import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.Context;
@@ -10,10 +11,14 @@ import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.net.Uri;
 import android.os.Build;
+import android.os.PersistableBundle;
 import android.util.Log;
 
+import com.premature.floscript.db.SuspendedRunsDao;
 import com.premature.floscript.jobs.EventTriggerReceiver;
 import com.premature.floscript.jobs.JobExecutionService;
+import com.premature.floscript.jobs.ResumeScriptJobService;
+import com.premature.floscript.scripts.logic.SuspendedRun;
 
 import java.util.ArrayList;
 import java.util.Calendar;
@@ -32,12 +37,18 @@ import java.util.concurrent.TimeUnit;
 public final class JobScheduler {
 
     private static final String TAG = "JOB_SCHEDULER";
+    // keeps the ids of our system scheduler jobs apart from any others the app might schedule
+    private static final int RESUME_JOB_ID_OFFSET = 1000000;
+    // how late the system may wake a sleeping script to batch it with other work
+    private static final long RESUME_WINDOW_MS = TimeUnit.MINUTES.toMillis(1);
     private final Context context;
     private final AlarmManager mAlarmManager;
+    private final SuspendedRunsDao mSuspendedRunsDao;
 
     public JobScheduler(Context context) {
         this.context = context.getApplicationContext();
         this.mAlarmManager = (AlarmManager) this.context.getSystemService(Context.ALARM_SERVICE);
+        this.mSuspendedRunsDao = new SuspendedRunsDao(this.context);
     }
 
     private static Map<String, Class<? extends BroadcastReceiver>> eventToReceiver = new HashMap<>();
@@ -96,21 +107,43 @@ public final class JobScheduler {
             }
         }
         if (job.getEventTrigger() != null) {
-            String eventAction = codesToEventActions.get(job.getEventTrigger());
-            Log.d(TAG, "Event action trigger is " + eventAction + " " + eventToReceiver);
-            Class<? extends BroadcastReceiver> receiver = eventToReceiver.get(eventAction);
-            if (receiver != null) {
-                Log.d(TAG, "Event action trigger is " + eventAction + " recever is " + receiver.getSimpleName());
-                ComponentName componentName = new ComponentName(context.getApplicationContext(), receiver);
-                PackageManager packageManager = context.getApplicationContext().getPackageManager();
-                packageManager.setComponentEnabledSetting(componentName, PackageManager.COMPONENT_ENABLED_STATE_ENABLED, PackageManager.DONT_KILL_APP);
-            }
+            setEventReceiverEnabled(job.getEventTrigger(), true);
         }
     }
 
+    /**
+     * Arrange for a script run that suspended itself to be resumed by the {@link JobExecutionService}.
+     * Runs waiting for a time are woken through the system job scheduler, so no alarm or thread of ours
+     * is held while they wait, and runs waiting for an event when the event trigger fires
+     *
+     * @return false if there is no way to wake the run, because it waits for an event we don't know
+     */
+    public boolean scheduleResume(SuspendedRun run) {
+        if (run.getWakeEvent() != null) {
+            return setEventReceiverEnabled(run.getWakeEvent(), true);
+        }
+        long delayMs = Math.max(0, run.getWakeAtMs() - System.currentTimeMillis());
+        PersistableBundle extras = new PersistableBundle();
+        extras.putLong(ResumeScriptJobService.SUSPENDED_RUN_ID, run.getId());
+        extras.putString(ResumeScriptJobService.JOB_NAME, run.getJobName());
+        JobInfo resumeJob = new JobInfo.Builder(RESUME_JOB_ID_OFFSET + run.getId().intValue(),
+                new ComponentName(context, ResumeScriptJobService.class))
+                .setMinimumLatency(delayMs)
+                .setOverrideDeadline(delayMs + RESUME_WINDOW_MS)
+                // survives a reboot, for which we hold the boot completed permission
+                .setPersisted(true)
+                .setExtras(extras)
+                .build();
+        return getSystemScheduler().schedule(resumeJob) == android.app.job.JobScheduler.RESULT_SUCCESS;
+    }
+
+    private android.app.job.JobScheduler getSystemScheduler() {
+        return (android.app.job.JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+    }
+
 
     /**
-     * Cancel the scheduled job
+     * Cancel the scheduled job, along with the runs of it that suspended themselves and are still waiting
      *
      * @param job
      */
@@ -119,17 +152,32 @@ public final class JobScheduler {
         if (job.getTimeTrigger() != null) {
             wrapAsIntent(job).cancel();
         }
-        if (job.getEventTrigger() != null) {
-            String eventAction = codesToEventActions.get(job.getEventTrigger());
-            Log.d(TAG, "Event action trigger is " + eventAction + " for event trigger " + job.getEventTrigger());
-            Class<? extends BroadcastReceiver> receiver = eventToReceiver.get(eventAction);
-            if (receiver != null) {
-                Log.d(TAG, "Event action trigger is " + eventAction + " recever is " + receiver.getSimpleName());
-                ComponentName componentName = new ComponentName(context.getApplicationContext(), receiver);
-                PackageManager packageManager = context.getApplicationContext().getPackageManager();
-                packageManager.setComponentEnabledSetting(componentName, PackageManager.COMPONENT_ENABLED_STATE_DISABLED, PackageManager.DONT_KILL_APP);
-            }
+        for (Long suspendedRunId : mSuspendedRunsDao.deleteRunsOfJob(job.getJobName())) {
+            // runs waiting for an event have no system job, cancelling it does nothing then
+            getSystemScheduler().cancel(RESUME_JOB_ID_OFFSET + suspendedRunId.intValue());
+        }
+        // the runs of other jobs may still be waiting for the event
+        if (job.getEventTrigger() != null && !mSuspendedRunsDao.hasRunsWaitingForEvent(job.getEventTrigger())) {
+            setEventReceiverEnabled(job.getEventTrigger(), false);
+        }
+    }
+
+    /**
+     * @return false if no receiver is registered for the event trigger
+     */
+    private boolean setEventReceiverEnabled(String eventTrigger, boolean enabled) {
+        String eventAction = codesToEventActions.get(eventTrigger);
+        Log.d(TAG, "Event action trigger is " + eventAction + " for event trigger " + eventTrigger);
+        Class<? extends BroadcastReceiver> receiver = eventToReceiver.get(eventAction);
+        if (receiver == null) {
+            return false;
         }
+        Log.d(TAG, "Event action trigger is " + eventAction + " recever is " + receiver.getSimpleName());
+        ComponentName componentName = new ComponentName(context.getApplicationContext(), receiver);
+        PackageManager packageManager = context.getApplicationContext().getPackageManager();
+        packageManager.setComponentEnabledSetting(componentName, enabled ? PackageManager.COMPONENT_ENABLED_STATE_ENABLED
+                : PackageManager.COMPONENT_ENABLED_STATE_DISABLED, PackageManager.DONT_KILL_APP);
+        return true;
     }
 
     private void scheduleExactTimeAt(long millisStartWindow, PendingIntent pendingIntent) {
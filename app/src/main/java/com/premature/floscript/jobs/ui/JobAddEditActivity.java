@@ -4,6 +4,7 @@ import android.content.Context;
 import android.content.Intent;
 import android.os.AsyncTask;
 import android.os.Bundle;
+import android.support.annotation.Nullable;
 import android.support.v4.app.LoaderManager;
 import android.support.v4.content.Loader;
 import android.support.v7.app.AppCompatActivity;
@@ -29,6 +30,7 @@ import com.premature.floscript.jobs.logic.Job;
 import com.premature.floscript.jobs.logic.JobScheduler;
 import com.premature.floscript.jobs.logic.TimeTrigger;
 import com.premature.floscript.scripts.logic.Script;
+import com.premature.floscript.scripts.logic.ScriptRunOptions;
 import com.premature.floscript.scripts.ui.TextPopupDialog;
 import com.premature.floscript.util.FloBus;
 import com.premature.floscript.util.FloEvents;
@@ -70,6 +72,8 @@ public class JobAddEditActivity extends AppCompatActivity implements LoaderManag
 
     private JobActivityMode mMode;
     private boolean mJobEnabled = true;
+    // the read byte budget isn't editable here, but we must not reset it when a job is edited
+    private ScriptRunOptions mJobRunOptions = ScriptRunOptions.DEFAULT;
 
     @BindView(R.id.job_add_spinner)
     Spinner mDiagramNameSpinner;
@@ -85,6 +89,12 @@ public class JobAddEditActivity extends AppCompatActivity implements LoaderManag
     Switch mEventTrigSwitch;
     @BindView(R.id.job_add_time_trig)
     Switch mTimeTrigSwitch;
+    @BindView(R.id.job_add_line_profiling)
+    Switch mLineProfilingSwitch;
+    @BindView(R.id.job_add_instruction_budget_in)
+    EditText mInstructionBudget;
+    @BindView(R.id.job_add_wall_deadline_in)
+    EditText mWallDeadline;
     @BindString(R.string.error_saving_job)
     String ERROR_SAVING_JOB_POPUP_TITLE;
 
@@ -133,6 +143,9 @@ public class JobAddEditActivity extends AppCompatActivity implements LoaderManag
                 timeTriggerDialog.show(getSupportFragmentManager(), TIME_TRIG_DIALOG);
             }
         });
+        // an empty limit leaves the engine default in place, which the hint shows
+        mInstructionBudget.setHint(String.valueOf(ScriptRunOptions.DEFAULT_INSTRUCTION_BUDGET));
+        mWallDeadline.setHint(String.valueOf(ScriptRunOptions.DEFAULT_WALL_DEADLINE_MS));
 
         mMode = JobActivityMode.ADD; // the default is ADD
         Intent startingIntent = getIntent();
@@ -194,6 +207,14 @@ public class JobAddEditActivity extends AppCompatActivity implements LoaderManag
             mJobTime.setTime(jobParcel.getTimeTrigger());
         }
         mJobEnabled = jobParcel.isEnabled();
+        mJobRunOptions = jobParcel.getRunOptions();
+        mLineProfilingSwitch.setChecked(mJobRunOptions.isLineProfiling());
+        if (mJobRunOptions.getInstructionBudget() != ScriptRunOptions.DEFAULT_INSTRUCTION_BUDGET) {
+            mInstructionBudget.setText(String.valueOf(mJobRunOptions.getInstructionBudget()));
+        }
+        if (mJobRunOptions.getWallDeadlineMs() != ScriptRunOptions.DEFAULT_WALL_DEADLINE_MS) {
+            mWallDeadline.setText(String.valueOf(mJobRunOptions.getWallDeadlineMs()));
+        }
     }
 
     @Override
@@ -236,9 +257,17 @@ public class JobAddEditActivity extends AppCompatActivity implements LoaderManag
         if (!validateJobData(script, jobName, comment, timeTrigger, eventTrigger)) {
             return false;
         }
+        Long instructionBudget = readLimit(mInstructionBudget, ScriptRunOptions.DEFAULT_INSTRUCTION_BUDGET,
+                "instruction budget");
+        Long wallDeadline = readLimit(mWallDeadline, ScriptRunOptions.DEFAULT_WALL_DEADLINE_MS, "time limit");
+        if (instructionBudget == null || wallDeadline == null) {
+            return false;
+        }
 
+        ScriptRunOptions runOptions = mJobRunOptions.toBuilder().withInstructionBudget(instructionBudget)
+                .withWallDeadline(wallDeadline).withLineProfiling(mLineProfilingSwitch.isChecked()).build();
         Job job = Job.builder().withName(jobName).fromScript(script).withComment(comment)
-                .triggerWhen(timeTrigger).triggerWhen(eventTrigger).build();
+                .triggerWhen(timeTrigger).triggerWhen(eventTrigger).withRunOptions(runOptions).build();
         job.setEnabled(mJobEnabled);
         Log.d(TAG, "Job to be saved " + job);
 
@@ -261,6 +290,25 @@ public class JobAddEditActivity extends AppCompatActivity implements LoaderManag
         return true;
     }
 
+    /**
+     * @return the limit typed into the input, the default if it was left empty, or <code>null</code> if it isn't
+     * a number, in which case the user has been told
+     */
+    @Nullable
+    private Long readLimit(EditText input, long defaultLimit, String limitName) {
+        String text = input.getText().toString().trim();
+        if (text.isEmpty()) {
+            return defaultLimit;
+        }
+        try {
+            return Long.parseLong(text);
+        } catch (NumberFormatException e) {
+            TextPopupDialog.showErrorPopup(getSupportFragmentManager(), "The " + limitName + " must be a whole number",
+                    ERROR_SAVING_JOB_POPUP_TITLE);
+            return null;
+        }
+    }
+
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
         int id = item.getItemId();
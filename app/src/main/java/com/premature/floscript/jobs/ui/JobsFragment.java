@@ -31,6 +31,9 @@ import com.premature.floscript.jobs.logic.Job;
 import com.premature.floscript.jobs.logic.JobScheduler;
 import com.premature.floscript.scripts.logic.ScriptEngine;
 import com.premature.floscript.scripts.logic.ScriptExecutionException;
+import com.premature.floscript.scripts.logic.ScriptResult;
+import com.premature.floscript.scripts.logic.ScriptRunCallback;
+import com.premature.floscript.scripts.logic.ScriptRunHandle;
 import com.premature.floscript.scripts.ui.TextPopupDialog;
 import com.premature.floscript.tutorial.TutorialManager;
 
@@ -56,6 +59,8 @@ public class JobsFragment extends Fragment implements LoaderManager.LoaderCallba
     private static final String TAG = "JOB_FRAG";
     private ScriptsDao mScriptsDao;
     private ScriptEngine mScriptEngine;
+    // manually executed jobs that haven't finished yet, only touched on the main thread
+    private final List<ScriptRunHandle> mRunningJobs = new ArrayList<>();
 
     @BindView(R.id.tutorial_jobs_btn)
     Button mTutorialBtn;
@@ -183,12 +188,10 @@ public class JobsFragment extends Fragment implements LoaderManager.LoaderCallba
     }
 
     void executeJob(Job job) {
-        try {
-            mScriptEngine.runScript(job.getScript());
-        } catch (ScriptExecutionException e) {
-            Log.e(TAG, "Error executing the job" + e.getMessage());
-            TextPopupDialog.showErrorPopup(getActivity().getSupportFragmentManager(), e.getMessage(), ERROR_RUNNING_DIAGRAM_POPUP_TITLE);
-        }
+        JobRunCallback callback = new JobRunCallback(job);
+        // the callbacks are posted to the main thread, so the handle is set before any of them runs
+        callback.mHandle = mScriptEngine.runScriptAsync(job.getScript(), job.getRunOptions(), callback);
+        mRunningJobs.add(callback.mHandle);
     }
 
     void deleteJob(Job job) {
@@ -217,6 +220,15 @@ public class JobsFragment extends Fragment implements LoaderManager.LoaderCallba
         super.onStart();
     }
 
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        for (ScriptRunHandle runningJob : mRunningJobs) {
+            runningJob.cancel();
+        }
+        mRunningJobs.clear();
+    }
+
     @Override
     public void onLoadFinished(Loader<List<JobContent>> loader, List<JobContent> data) {
         Log.d(TAG, "loading finished of job content");
@@ -243,6 +255,43 @@ public class JobsFragment extends Fragment implements LoaderManager.LoaderCallba
         }
     }
 
+    /**
+     * Reports the outcome of a manually executed job
+     */
+    private class JobRunCallback implements ScriptRunCallback {
+        private final Job mJob;
+        private ScriptRunHandle mHandle;
+
+        private JobRunCallback(Job job) {
+            this.mJob = job;
+        }
+
+        @Override
+        public void onProgress(long instructionsExecuted, long elapsedMs) {
+            Log.d(TAG, "Job " + mJob.getJobName() + " still running after " + elapsedMs + " ms");
+        }
+
+        @Override
+        public void onResult(ScriptResult result) {
+            mRunningJobs.remove(mHandle);
+            Log.d(TAG, "Job " + mJob.getJobName() + " finished with result " + result.getDisplayValue());
+        }
+
+        @Override
+        public void onError(ScriptExecutionException e) {
+            mRunningJobs.remove(mHandle);
+            Log.e(TAG, "Error executing the job" + e.getMessage());
+            if (isAdded()) {
+                TextPopupDialog.showErrorPopup(getActivity().getSupportFragmentManager(), e.getMessage(), ERROR_RUNNING_DIAGRAM_POPUP_TITLE);
+            }
+        }
+
+        @Override
+        public void onCancelled() {
+            mRunningJobs.remove(mHandle);
+        }
+    }
+
     /**
      * This loader provider a list of jobs wrapped in {@link JobContent job content} objects
      */
@@ -0,0 +1,99 @@
+package com.premature.floscript.scripts.logic;
+
+import android.support.annotation.Nullable;
+import android.util.Log;
+import android.util.LruCache;
+
+/**
+ * This class keeps the rhino compiled form of recently executed {@link Script scripts} around, so that
+ * jobs which fire over and over again don't pay for parsing and compiling their source on every trigger.
+ * <p/>
+ * Entries are keyed by the script id (or by the source hash for scripts that were never saved, like the
+ * ones the editor tests) and remember the source they were compiled from. An entry whose source no longer
+ * matches is treated as a miss, so a stale compiled script, or the script of another source with the same
+ * hash, is never executed.
+ */
+public final class CompiledScriptCache {
+
+    private static final String TAG = "SCRIPT_CACHE";
+    public static final int DEFAULT_MAX_ENTRIES = 32;
+
+    private final LruCache<String, Entry> mCache;
+
+    private static class CompiledScriptCacheHolder {
+        // one cache for the whole process so that the daos can invalidate what the engines compiled
+        private static final CompiledScriptCache INSTANCE = new CompiledScriptCache(DEFAULT_MAX_ENTRIES);
+    }
+
+    CompiledScriptCache(int maxEntries) {
+        this.mCache = new LruCache<>(maxEntries);
+    }
+
+    public static CompiledScriptCache getInstance() {
+        return CompiledScriptCacheHolder.INSTANCE;
+    }
+
+    /**
+     * @return the compiled form of the script or <code>null</code> if we don't have an up to date one
+     */
+    @Nullable
+    public org.mozilla.javascript.Script get(Script script) {
+        String source = script.getSourceCode();
+        Entry entry = mCache.get(keyFor(script.getId(), source));
+        if (entry == null || !entry.matches(source)) {
+            return null;
+        }
+        return entry.compiled;
+    }
+
+    public void put(Script script, org.mozilla.javascript.Script compiled) {
+        String source = script.getSourceCode();
+        mCache.put(keyFor(script.getId(), source), new Entry(source, compiled));
+    }
+
+    /**
+     * Drop the compiled form of the script with this id. This should be called whenever the scripts
+     * table is written to
+     */
+    public void invalidate(@Nullable Long scriptId) {
+        if (scriptId == null) {
+            return;
+        }
+        if (mCache.remove(keyFor(scriptId, null)) != null) {
+            Log.d(TAG, "Invalidated compiled script " + scriptId);
+        }
+    }
+
+    public void invalidateAll() {
+        mCache.evictAll();
+    }
+
+    /**
+     * Change the maximum number of compiled scripts we hold on to. The least recently run ones are
+     * evicted first
+     */
+    public void resize(int maxEntries) {
+        mCache.resize(maxEntries);
+    }
+
+    private static String keyFor(@Nullable Long scriptId, @Nullable String source) {
+        // the string hash is cached inside the string, so this is cheap for scripts loaded once from the db
+        return scriptId != null ? "id:" + scriptId : "src:" + source.hashCode();
+    }
+
+    private static final class Entry {
+        // usually the same string object the script holds, so remembering it costs nothing
+        private final String source;
+        private final org.mozilla.javascript.Script compiled;
+
+        private Entry(String source, org.mozilla.javascript.Script compiled) {
+            this.source = source;
+            this.compiled = compiled;
+        }
+
+        private boolean matches(String source) {
+            // instant for the same string object, a character compare for a source loaded again
+            return this.source.equals(source);
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package com.premature.floscript.scripts.logic;
+
+import com.premature.floscript.scripts.logic.nodes.TemplateFolder;
+import com.premature.floscript.scripts.ui.diagram.ArrowUiElement;
+import com.premature.floscript.scripts.ui.diagram.ConnectableDiagramElement;
+import com.premature.floscript.scripts.ui.diagram.Diagram;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The elements reachable from the start of a diagram, numbered from 0 with the start element being 0, and
+ * the arrows between them. Like the element functions we only ever follow the first two arrows of an
+ * element: a single arrow is its next element and two arrows are the yes and no branches of a decision.
+ * A decision the {@link TemplateFolder} knows the result of only keeps the branch it takes, and the elements
+ * that could only be reached through the other branch are left out.
+ */
+final class ControlFlowGraph {
+
+    static final int NONE = -1;
+
+    private final List<ConnectableDiagramElement> mElements;
+    // the next element, or the yes branch of a decision
+    private final int[] mNext;
+    // the no branch of a decision, NONE for all other elements
+    private final int[] mNo;
+
+    private ControlFlowGraph(List<ConnectableDiagramElement> elements, int[] next, int[] no) {
+        this.mElements = elements;
+        this.mNext = next;
+        this.mNo = no;
+    }
+
+    /**
+     * Builds the graph from a single pass over the arrows of the diagram, after which the reachable elements are
+     * collected with a worklist, so neither the size nor the depth of the diagram matter to the java stack
+     */
+    static ControlFlowGraph of(Diagram diagram, TemplateFolder folder) {
+        List<ConnectableDiagramElement> connectables = diagram.getConnectables();
+        Map<ConnectableDiagramElement, Integer> positions = new HashMap<>(connectables.size() * 2);
+        for (int i = 0; i < connectables.size(); i++) {
+            positions.put(connectables.get(i), i);
+        }
+        // the first two arrows leaving each element, indexed by position in the diagram
+        ArrowUiElement[] firstArrows = new ArrowUiElement[connectables.size()];
+        ArrowUiElement[] secondArrows = new ArrowUiElement[connectables.size()];
+        for (ArrowUiElement arrow : diagram.getArrows()) {
+            ConnectableDiagramElement start = arrow.getStartPoint();
+            ConnectableDiagramElement end = arrow.getEndPoint();
+            Integer position = start != null ? positions.get(start) : null;
+            if (position == null || end == null || end == start || !positions.containsKey(end)) {
+                continue;
+            }
+            if (firstArrows[position] == null) {
+                firstArrows[position] = arrow;
+            } else if (secondArrows[position] == null) {
+                secondArrows[position] = arrow;
+            }
+        }
+
+        // the positions of the next element, or the branch taken, and of the no branch of each element
+        int[] nextPositions = new int[connectables.size()];
+        int[] noPositions = new int[connectables.size()];
+        // renumber the reachable elements in the order we discover them, with the entry element first
+        int[] indexes = new int[connectables.size()];
+        Arrays.fill(indexes, NONE);
+        int[] visitOrder = new int[connectables.size()];
+        int visited = 0;
+        int entryPosition = positions.get(diagram.getEntryElement());
+        indexes[entryPosition] = 0;
+        visitOrder[visited++] = entryPosition;
+        for (int i = 0; i < visited; i++) {
+            int position = visitOrder[i];
+            ArrowUiElement first = firstArrows[position];
+            ArrowUiElement second = secondArrows[position];
+            nextPositions[position] = NONE;
+            noPositions[position] = NONE;
+            if (first != null && second == null) {
+                nextPositions[position] = positions.get(first.getEndPoint());
+            } else if (first != null) {
+                ArrowUiElement yes = first.getCondition() == ArrowCondition.YES ? first : second;
+                ArrowUiElement noArrow = first.getCondition() == ArrowCondition.NO ? first : second;
+                Boolean decision = folder.getConstantDecision(connectables.get(position).getScript());
+                if (decision == null) {
+                    nextPositions[position] = positions.get(yes.getEndPoint());
+                    noPositions[position] = positions.get(noArrow.getEndPoint());
+                } else {
+                    nextPositions[position] = positions.get((decision ? yes : noArrow).getEndPoint());
+                }
+            }
+            for (int a = 0; a < 2; a++) {
+                int successor = a == 0 ? nextPositions[position] : noPositions[position];
+                if (successor != NONE && indexes[successor] == NONE) {
+                    indexes[successor] = visited;
+                    visitOrder[visited++] = successor;
+                }
+            }
+        }
+
+        List<ConnectableDiagramElement> elements = new ArrayList<>(visited);
+        int[] next = new int[visited];
+        int[] no = new int[visited];
+        for (int i = 0; i < visited; i++) {
+            int position = visitOrder[i];
+            elements.add(connectables.get(position));
+            next[i] = nextPositions[position] != NONE ? indexes[nextPositions[position]] : NONE;
+            no[i] = noPositions[position] != NONE ? indexes[noPositions[position]] : NONE;
+        }
+        return new ControlFlowGraph(elements, next, no);
+    }
+
+    int size() {
+        return mElements.size();
+    }
+
+    ConnectableDiagramElement getElement(int index) {
+        return mElements.get(index);
+    }
+
+    /**
+     * @return the next element or the yes branch, {@link #NONE} if the element ends the script
+     */
+    int getNext(int index) {
+        return mNext[index];
+    }
+
+    /**
+     * @return the no branch, {@link #NONE} unless the element is a decision
+     */
+    int getNo(int index) {
+        return mNo[index];
+    }
+
+    boolean isBranch(int index) {
+        return mNo[index] != NONE;
+    }
+
+    int getSuccessorCount(int index) {
+        return mNext[index] == NONE ? 0 : (mNo[index] == NONE ? 1 : 2);
+    }
+
+    int getSuccessor(int index, int successor) {
+        return successor == 0 ? mNext[index] : mNo[index];
+    }
+}
@@ -1,10 +1,12 @@
 package com.premature.floscript.scripts.logic;
 
 import android.content.Context;
+import android.support.annotation.Nullable;
 import android.util.Log;
 import android.util.Pair;
 
 import com.premature.floscript.R;
+import com.premature.floscript.scripts.logic.nodes.TemplateFolder;
 import com.premature.floscript.scripts.ui.diagram.ArrowUiElement;
 import com.premature.floscript.scripts.ui.diagram.ConnectableDiagramElement;
 import com.premature.floscript.scripts.ui.diagram.Diagram;
@@ -12,29 +14,67 @@ import com.premature.floscript.scripts.ui.diagram.StartUiElement;
 import com.premature.floscript.util.ResourceAndFileUtils;
 
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 
 /**
  * Created by martin on 15/01/15.
  * <p/>
  * This class turns a diagram representation of a floscript into its source code
- * representation
+ * representation. The code of the elements is cached between compilations, so keep the compiler around
+ * for as long as the diagram is being edited and tell it about the edits with {@link #markDirty}
  */
 public final class DiagramToScriptCompiler {
     private static final String TAG = "COMPILER";
     private String mCodeShell;
+    private final ElementCodeCache mCodeCache = new ElementCodeCache();
+    private final TemplateFolder mTemplateFolder;
+    private final SharedFunctions mSharedFunctions = new SharedFunctions();
 
     public DiagramToScriptCompiler(Context ctx) {
         mCodeShell = ResourceAndFileUtils.readFile(ctx, R.raw.script_shell, true);
+        mTemplateFolder = new TemplateFolder(ctx);
+    }
+
+    /**
+     * The code generated for the element has to be generated again at the next compilation, because an edit
+     * changed something about it that doesn't show in its script id, variables or arrows
+     */
+    public void markDirty(ConnectableDiagramElement element) {
+        mCodeCache.markDirty(element);
+    }
+
+    int getRegeneratedCount() {
+        return mCodeCache.getRegeneratedCount();
     }
 
     public Script compile(Diagram diagram) throws ScriptCompilationException {
-        StringBuilder code = new StringBuilder("function runScript (env) {\n");
+        return compile(diagram, null);
+    }
+
+    /**
+     * Compile the diagram so that running the script records, for every element, how often it was
+     * executed and how long it took into the profile. The profile must have been created for this diagram
+     */
+    public Script compileInstrumented(Diagram diagram, ExecutionProfile profile) throws ScriptCompilationException {
+        return compile(diagram, profile);
+    }
+
+    /**
+     * Compile the diagram the way it was compiled before its control flow was generated as structured javascript,
+     * with every element scheduling the next one on the <code>function_stack</code> of the script shell
+     */
+    Script compileTrampolined(Diagram diagram) throws ScriptCompilationException {
+        return compile(diagram, null, false);
+    }
 
-        Map<ConnectableDiagramElement, String> generatedFunNames = generateFunNames(diagram.getConnectables());
+    private Script compile(Diagram diagram, @Nullable ExecutionProfile profile) throws ScriptCompilationException {
+        return compile(diagram, profile, true);
+    }
+
+    private Script compile(Diagram diagram, @Nullable ExecutionProfile profile, boolean structured)
+            throws ScriptCompilationException {
+        StringBuilder code = new StringBuilder("function runScript (env) {\n");
 
         StartUiElement entryElement = diagram.getEntryElement();
         if (entryElement == null) {
@@ -46,53 +86,97 @@ public final class DiagramToScriptCompiler {
             Log.d(TAG, "connected to start are " + connectedElements);
             throw new ScriptCompilationException(CompilationErrorCode.ENTRY_MUST_HAVE_SINGLE_CHILD);
         }
-        HashSet<ConnectableDiagramElement> visited = new HashSet<>();
-        depthFirstCompile(entryElement, connectedElements, code, generatedFunNames, visited);
+        ControlFlowGraph graph = ControlFlowGraph.of(diagram, mTemplateFolder);
+        String[] functionNames = generateFunNames(diagram.getConnectables(), graph);
+        int[] profileIndexes = profileIndexes(graph, profile);
+        Script[] scripts = elementScripts(graph, code);
+        if (structured && structuredCompile(graph, code, scripts, functionNames, profileIndexes)) {
+            return new Script(code.toString(), diagram.getName(), Script.Type.FUNCTION, diagram.getDescription());
+        }
+        // every element schedules its successor with env.execute on the function stack of the shell
+        for (int i = 0; i < graph.size(); i++) {
+            String next = graph.getNext(i) != ControlFlowGraph.NONE ? functionNames[graph.getNext(i)] : null;
+            String no = graph.isBranch(i) ? functionNames[graph.getNo(i)] : null;
+            code.append(Scripts.createFunctionHeader(functionNames[i]))
+                    .append(mCodeCache.getFunctionBody(graph.getElement(i), scripts[i], functionNames[i],
+                            next, no, profileIndexes[i]));
+        }
 
         code.append(mCodeShell).append("return function_stack.length == 0;\n}\n");
         return new Script(code.toString(), diagram.getName(), Script.Type.FUNCTION, diagram.getDescription());
     }
 
-    private Map<ConnectableDiagramElement, String> generateFunNames(List<ConnectableDiagramElement> connectables) {
-        Map<ConnectableDiagramElement, String> result = new HashMap<>();
+    /**
+     * Appends the element functions followed by the structured statements that call them. Like the shell they
+     * have no step limit, the instruction budget of the run is what stops a diagram that loops forever
+     *
+     * @return false, with nothing appended, if the control flow of the diagram can't be structured
+     */
+    private boolean structuredCompile(ControlFlowGraph graph, StringBuilder code, Script[] scripts,
+                                      String[] functionNames, int[] profileIndexes) throws ScriptCompilationException {
+        String controlFlow = StructuredCodeGenerator.generate(graph, functionNames);
+        if (controlFlow == null) {
+            Log.d(TAG, "control flow can't be structured, falling back to the script shell");
+            return false;
+        }
+        for (int i = 0; i < graph.size(); i++) {
+            code.append(Scripts.createFunctionHeader(functionNames[i]))
+                    .append(mCodeCache.getStructuredFunctionBody(graph.getElement(i), scripts[i], functionNames[i],
+                            graph.getSuccessorCount(i) > 0, graph.isBranch(i), profileIndexes[i]));
+        }
+        code.append(controlFlow).append("}\n");
+        return true;
+    }
+
+    /**
+     * Folds the template variables into the code of each element and then appends the functions for the code
+     * that more than one element has
+     *
+     * @return the script each element of the graph runs, which for the elements with shared code is a call
+     */
+    private Script[] elementScripts(ControlFlowGraph graph, StringBuilder code) {
+        Script[] scripts = new Script[graph.size()];
+        for (int i = 0; i < graph.size(); i++) {
+            scripts[i] = mTemplateFolder.fold(graph.getElement(i).getScript());
+        }
+        String[] sharedNames = mSharedFunctions.emit(scripts, code);
+        for (int i = 0; i < graph.size(); i++) {
+            if (sharedNames[i] != null) {
+                scripts[i] = mSharedFunctions.callSite(scripts[i], sharedNames[i], graph.getSuccessorCount(i) > 0);
+            }
+        }
+        return scripts;
+    }
+
+    /**
+     * Names the element functions by the position of the elements in the diagram, so that the names don't
+     * depend on which elements are reachable
+     *
+     * @return the function name of each element of the graph
+     */
+    private static String[] generateFunNames(List<ConnectableDiagramElement> connectables, ControlFlowGraph graph) {
+        Map<ConnectableDiagramElement, String> names = new HashMap<>(connectables.size() * 2);
         int counter = 0;
         String base = "function";
         for (ConnectableDiagramElement elem : connectables) {
             if (elem.getTypeDesc() == StartUiElement.TYPE_TOKEN) {
-                result.put(elem, Scripts.ENTRY_POINT_SCRIPT.getName());
+                names.put(elem, Scripts.ENTRY_POINT_SCRIPT.getName());
             } else {
-                result.put(elem, base + (++counter));
+                names.put(elem, base + (++counter));
             }
         }
+        String[] result = new String[graph.size()];
+        for (int i = 0; i < graph.size(); i++) {
+            result[i] = names.get(graph.getElement(i));
+        }
         return result;
     }
 
-    private void depthFirstCompile(ConnectableDiagramElement elem,
-                                   List<Pair<ConnectableDiagramElement, ArrowUiElement>> connectedElements,
-                                   StringBuilder code,
-                                   Map<ConnectableDiagramElement, String> generatedFunNames, Set<ConnectableDiagramElement> visited) throws ScriptCompilationException {
-        if (visited.contains(elem)) {
-            return;
-        }
-        visited.add(elem);
-
-        if (connectedElements.size() == 0) {
-            // empty script
-            code.append(Scripts.createFunctionWrapper(elem.getScript(), generatedFunNames.get(elem), null, null));
-        } else if (connectedElements.size() == 1) {
-            Pair<ConnectableDiagramElement, ArrowUiElement> connectedElement = connectedElements.get(0);
-            // we wrap and append the entryFunction which the code shell uses as the entry point
-            code.append(Scripts.createFunctionWrapper(elem.getScript(), generatedFunNames.get(elem), generatedFunNames.get(connectedElement.first), null));
-            depthFirstCompile(connectedElement.first, connectedElement.first.getConnectedElements(), code, generatedFunNames, visited);
-        } else {
-            Pair<ConnectableDiagramElement, ArrowUiElement> connectedElement1 = connectedElements.get(0);
-            Pair<ConnectableDiagramElement, ArrowUiElement> connectedElement2 = connectedElements.get(1);
-
-            ConnectableDiagramElement yes = (connectedElement1.second.getCondition() == ArrowCondition.YES) ? connectedElement1.first : connectedElement2.first;
-            ConnectableDiagramElement no = (connectedElement1.second.getCondition() == ArrowCondition.NO) ? connectedElement1.first : connectedElement2.first;
-            code.append(Scripts.createFunctionWrapper(elem.getScript(), generatedFunNames.get(elem), generatedFunNames.get(yes), generatedFunNames.get(no)));
-            depthFirstCompile(yes, yes.getConnectedElements(), code, generatedFunNames, visited);
-            depthFirstCompile(no, no.getConnectedElements(), code, generatedFunNames, visited);
+    private static int[] profileIndexes(ControlFlowGraph graph, @Nullable ExecutionProfile profile) {
+        int[] result = new int[graph.size()];
+        for (int i = 0; i < graph.size(); i++) {
+            result[i] = profile != null ? profile.indexOf(graph.getElement(i)) : Scripts.NOT_PROFILED;
         }
+        return result;
     }
 }
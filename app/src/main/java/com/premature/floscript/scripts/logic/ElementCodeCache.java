@@ -0,0 +1,115 @@
+package com.premature.floscript.scripts.logic;
+
+import android.support.annotation.Nullable;
+
+import com.premature.floscript.scripts.ui.diagram.ConnectableDiagramElement;
+
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Remembers the function body generated for each element of a diagram, so that compiling the diagram again
+ * after an edit only regenerates the elements the edit touched.
+ * <p/>
+ * A body is reused while the element has the same script id and variables and, for the trampolined functions
+ * which name them, the same successor functions. A script with its template variables folded in has no id, it
+ * is reused as long as it is the same object. Anything the key can't see, like a script whose code was
+ * changed without it getting a new id, has to be reported with {@link #markDirty}, which is what the editing
+ * events of the diagram editor do. The function header with the name of the element isn't part of the body,
+ * so removing an element doesn't invalidate all the elements that get renumbered after it.
+ * <p/>
+ * The elements are held weakly, deleted elements and the elements of diagrams that are no longer open drop out
+ * of the cache on their own.
+ */
+final class ElementCodeCache {
+
+    private final Map<ConnectableDiagramElement, Entry> mEntries = new WeakHashMap<>();
+    private int mRegeneratedCount;
+
+    void markDirty(ConnectableDiagramElement element) {
+        mEntries.remove(element);
+    }
+
+    /**
+     * @param script the code of the element, which is the script of the element itself or a version of it
+     *               that is the same object as long as the script is unchanged
+     * @return the same as {@link Scripts#createFunctionBody}, cached
+     */
+    String getFunctionBody(ConnectableDiagramElement element, @Nullable Script script, String functionName,
+                           @Nullable String next, @Nullable String no, int profileIndex) throws ScriptCompilationException {
+        Entry entry = mEntries.get(element);
+        if (entry != null && !entry.mStructured && entry.matches(script, profileIndex)
+                && equal(entry.mNext, next) && equal(entry.mNo, no)) {
+            return entry.mBody;
+        }
+        String body = Scripts.createFunctionBody(script, functionName, next, no, profileIndex);
+        mEntries.put(element, new Entry(script, false, next, no, profileIndex, body));
+        mRegeneratedCount++;
+        return body;
+    }
+
+    /**
+     * @return the same as {@link Scripts#createStructuredFunctionBody}, cached
+     */
+    String getStructuredFunctionBody(ConnectableDiagramElement element, @Nullable Script script, String functionName,
+                                     boolean hasSuccessor, boolean isBranch, int profileIndex)
+            throws ScriptCompilationException {
+        Entry entry = mEntries.get(element);
+        // the structured body only cares whether there are successors, so we keep markers instead of their names
+        String next = hasSuccessor ? "" : null;
+        String no = isBranch ? "" : null;
+        if (entry != null && entry.mStructured && entry.matches(script, profileIndex)
+                && equal(entry.mNext, next) && equal(entry.mNo, no)) {
+            return entry.mBody;
+        }
+        String body = Scripts.createStructuredFunctionBody(script, functionName, hasSuccessor, isBranch, profileIndex);
+        mEntries.put(element, new Entry(script, true, next, no, profileIndex, body));
+        mRegeneratedCount++;
+        return body;
+    }
+
+    /**
+     * @return how many bodies had to be generated since the cache was created, for seeing how well it works
+     */
+    int getRegeneratedCount() {
+        return mRegeneratedCount;
+    }
+
+    private static boolean equal(@Nullable Object first, @Nullable Object second) {
+        return first == null ? second == null : first.equals(second);
+    }
+
+    private static final class Entry {
+        // the id of the script, or the script itself while it hasn't been saved and has no id
+        private final Object mScriptKey;
+        @Nullable
+        private final String mVariables;
+        private final boolean mStructured;
+        @Nullable
+        private final String mNext;
+        @Nullable
+        private final String mNo;
+        private final int mProfileIndex;
+        private final String mBody;
+
+        private Entry(Script script, boolean structured, @Nullable String next, @Nullable String no,
+                      int profileIndex, String body) {
+            this.mScriptKey = keyOf(script);
+            this.mVariables = script.getVariables();
+            this.mStructured = structured;
+            this.mNext = next;
+            this.mNo = no;
+            this.mProfileIndex = profileIndex;
+            this.mBody = body;
+        }
+
+        private boolean matches(@Nullable Script script, int profileIndex) {
+            return script != null && mScriptKey.equals(keyOf(script)) && equal(mVariables, script.getVariables())
+                    && mProfileIndex == profileIndex;
+        }
+
+        private static Object keyOf(Script script) {
+            return script.getId() != null ? script.getId() : script;
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package com.premature.floscript.scripts.logic;
+
+import android.support.annotation.Nullable;
+
+import com.premature.floscript.scripts.ui.diagram.ConnectableDiagramElement;
+import com.premature.floscript.scripts.ui.diagram.Diagram;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class records how often each element of a diagram was executed and how much time was spent inside
+ * it. It is filled in by a run of a script produced by {@link DiagramToScriptCompiler#compileInstrumented},
+ * where every generated element function reports to <code>floProfiler</code> when it is entered and left.
+ * <p/>
+ * The profile is written by the thread executing the script and should only be read once the run has finished.
+ */
+public final class ExecutionProfile {
+
+    private final List<ConnectableDiagramElement> mElements;
+    // element -> index, the index being the position of the element in the diagram
+    private final Map<ConnectableDiagramElement, Integer> mIndexes;
+    private final int[] mCallCounts;
+    private final long[] mTotalNanos;
+    // the start times of the element functions that haven't returned yet
+    private long[] mEnteredAt = new long[8];
+    private int mDepth = 0;
+
+    public ExecutionProfile(Diagram diagram) {
+        this.mElements = new ArrayList<>(diagram.getConnectables());
+        this.mIndexes = new HashMap<>(mElements.size() * 2);
+        for (int i = 0; i < mElements.size(); i++) {
+            mIndexes.put(mElements.get(i), i);
+        }
+        this.mCallCounts = new int[mElements.size()];
+        this.mTotalNanos = new long[mElements.size()];
+    }
+
+    /**
+     * @return the index the instrumented code uses for the element or -1 if it isn't part of the diagram
+     */
+    int indexOf(ConnectableDiagramElement element) {
+        Integer index = mIndexes.get(element);
+        return index != null ? index : -1;
+    }
+
+    void enter(int index) {
+        if (mDepth == mEnteredAt.length) {
+            mEnteredAt = Arrays.copyOf(mEnteredAt, mDepth * 2);
+        }
+        mEnteredAt[mDepth++] = System.nanoTime();
+        if (isValid(index)) {
+            mCallCounts[index]++;
+        }
+    }
+
+    void exit(int index) {
+        if (mDepth == 0) {
+            return;
+        }
+        long elapsed = System.nanoTime() - mEnteredAt[--mDepth];
+        if (isValid(index)) {
+            mTotalNanos[index] += elapsed;
+        }
+    }
+
+    public int getCallCount(ConnectableDiagramElement element) {
+        int index = indexOf(element);
+        return index < 0 ? 0 : mCallCounts[index];
+    }
+
+    public long getTotalNanos(ConnectableDiagramElement element) {
+        int index = indexOf(element);
+        return index < 0 ? 0 : mTotalNanos[index];
+    }
+
+    /**
+     * @return the time spent in the element relative to the most expensive element of the diagram,
+     * from 0 for elements that never ran to 1 for the most expensive one
+     */
+    public float getHeat(ConnectableDiagramElement element) {
+        long max = 0;
+        for (long nanos : mTotalNanos) {
+            max = Math.max(max, nanos);
+        }
+        if (max == 0) {
+            return 0f;
+        }
+        return (float) getTotalNanos(element) / max;
+    }
+
+    /**
+     * @return the element where the run spent the most time or <code>null</code> if nothing ran
+     */
+    @Nullable
+    public ConnectableDiagramElement getHottestElement() {
+        int hottest = -1;
+        for (int i = 0; i < mTotalNanos.length; i++) {
+            if (mCallCounts[i] > 0 && (hottest == -1 || mTotalNanos[i] > mTotalNanos[hottest])) {
+                hottest = i;
+            }
+        }
+        return hottest == -1 ? null : mElements.get(hottest);
+    }
+
+    private boolean isValid(int index) {
+        return index >= 0 && index < mCallCounts.length;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder bob = new StringBuilder("ExecutionProfile{");
+        for (int i = 0; i < mElements.size(); i++) {
+            if (mCallCounts[i] == 0) {
+                continue;
+            }
+            Script script = mElements.get(i).getScript();
+            bob.append(script != null ? script.getName() : "element" + i)
+                    .append("=").append(mCallCounts[i]).append("x/")
+                    .append(mTotalNanos[i] / 1000).append("us ");
+        }
+        return bob.append('}').toString();
+    }
+}
@@ -0,0 +1,162 @@
+package com.premature.floscript.scripts.logic;
+
+import android.support.annotation.Nullable;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Reads a UTF-8 file one record at a time, where records are separated by a single delimiter character.
+ * The file goes through a fixed size buffer, so however large it is only the current record ever becomes
+ * a java (and javascript) string. Every chunk read is charged to the byte budget of the run.
+ */
+final class FileRecordReader implements Closeable {
+
+    static final char LINE_DELIMITER = '\n';
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // a single record larger than this is almost certainly a wrong delimiter
+    private static final int MAX_RECORD_CHARS = 1024 * 1024;
+
+    private final File mFile;
+    private final FileInputStream mStream;
+    private final FileChannel mChannel;
+    private final char mDelimiter;
+    private final ScriptRun mRun;
+    private final ByteBuffer mBytes = ByteBuffer.allocate(BUFFER_SIZE);
+    private final CharBuffer mChars = CharBuffer.allocate(BUFFER_SIZE);
+    private final CharsetDecoder mDecoder = Charset.forName("UTF-8").newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private final StringBuilder mRecord = new StringBuilder();
+    private boolean mEndOfFile;
+    private boolean mDrained;
+    private boolean mClosed;
+    // the record hasNext read ahead
+    @Nullable
+    private String mNext;
+
+    FileRecordReader(File file, char delimiter, ScriptRun run) throws IOException {
+        this.mFile = file;
+        this.mStream = new FileInputStream(file);
+        this.mChannel = mStream.getChannel();
+        this.mDelimiter = delimiter;
+        this.mRun = run;
+        // nothing decoded yet
+        mChars.flip();
+    }
+
+    boolean hasNext() throws IOException {
+        if (mNext == null) {
+            mNext = readRecord();
+        }
+        return mNext != null;
+    }
+
+    /**
+     * @return the next record or <code>null</code> once the whole file was read
+     */
+    @Nullable
+    String next() throws IOException {
+        hasNext();
+        String record = mNext;
+        mNext = null;
+        return record;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!mClosed) {
+            mClosed = true;
+            mStream.close();
+        }
+    }
+
+    @Nullable
+    private String readRecord() throws IOException {
+        if (mClosed) {
+            throw new IOException("File " + mFile.getName() + " was already closed");
+        }
+        mRecord.setLength(0);
+        boolean sawAnything = false;
+        while (true) {
+            char[] chars = mChars.array();
+            int start = mChars.position();
+            int end = mChars.limit();
+            for (int i = start; i < end; i++) {
+                if (chars[i] == mDelimiter) {
+                    append(chars, start, i - start);
+                    mChars.position(i + 1);
+                    return finishRecord();
+                }
+            }
+            if (end > start) {
+                sawAnything = true;
+                append(chars, start, end - start);
+            }
+            mChars.position(end);
+            if (!fill()) {
+                // the last record doesn't have to end with a delimiter
+                return sawAnything ? finishRecord() : null;
+            }
+        }
+    }
+
+    private void append(char[] chars, int start, int length) throws IOException {
+        if (mRecord.length() + length > MAX_RECORD_CHARS) {
+            throw new IOException("A record in " + mFile.getName() + " is longer than " + MAX_RECORD_CHARS + " characters");
+        }
+        mRecord.append(chars, start, length);
+    }
+
+    private String finishRecord() {
+        int length = mRecord.length();
+        // files written on windows end their lines with \r\n
+        if (mDelimiter == LINE_DELIMITER && length > 0 && mRecord.charAt(length - 1) == '\r') {
+            mRecord.setLength(length - 1);
+        }
+        return mRecord.toString();
+    }
+
+    /**
+     * Decode the next chunk of the file into the char buffer
+     *
+     * @return <code>false</code> if there is nothing left to decode
+     */
+    private boolean fill() throws IOException {
+        if (mDrained) {
+            return false;
+        }
+        mChars.clear();
+        while (true) {
+            if (!mEndOfFile) {
+                int read = mChannel.read(mBytes);
+                if (read == -1) {
+                    mEndOfFile = true;
+                } else if (read > 0) {
+                    mRun.onBytesRead(read);
+                }
+            }
+            mBytes.flip();
+            mDecoder.decode(mBytes, mChars, mEndOfFile);
+            mBytes.compact();
+            if (mEndOfFile) {
+                mDecoder.flush(mChars);
+                mDrained = true;
+                break;
+            }
+            if (mChars.position() > 0) {
+                break;
+            }
+        }
+        mChars.flip();
+        return mChars.hasRemaining();
+    }
+}
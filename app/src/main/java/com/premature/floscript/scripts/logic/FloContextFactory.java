@@ -0,0 +1,68 @@
+package com.premature.floscript.scripts.logic;
+
+import android.support.annotation.Nullable;
+
+import org.mozilla.javascript.ContextFactory;
+
+/**
+ * The rhino {@link ContextFactory} used for running floscripts. Every context it makes is set up for
+ * interpreted mode and asks rhino to report the number of executed instructions, so that a run can be
+ * stopped once it uses up its {@link ScriptRunOptions budget}, even when it is stuck in a tight loop
+ * inside a single diagram element.
+ */
+public final class FloContextFactory extends ContextFactory {
+
+    /**
+     * How many instructions rhino executes between two budget checks. Smaller values stop runaway scripts
+     * more promptly but cost more time in the observer
+     */
+    static final int INSTRUCTION_OBSERVER_THRESHOLD = 10000;
+
+    private static class FloContextFactoryHolder {
+        private static final FloContextFactory INSTANCE = new FloContextFactory();
+    }
+
+    private FloContextFactory() {
+    }
+
+    public static FloContextFactory getInstance() {
+        return FloContextFactoryHolder.INSTANCE;
+    }
+
+    @Override
+    protected org.mozilla.javascript.Context makeContext() {
+        FloContext cx = new FloContext(this);
+        cx.setOptimizationLevel(-1); // turn off because otherwise it does jit generating jvm bytecode not dalvik
+        cx.setInstructionObserverThreshold(INSTRUCTION_OBSERVER_THRESHOLD);
+        return cx;
+    }
+
+    @Override
+    protected void observeInstructionCount(org.mozilla.javascript.Context cx, int instructionCount) {
+        ScriptRun run = ((FloContext) cx).getRun();
+        if (run != null) {
+            run.onInstructionsExecuted(instructionCount);
+        }
+    }
+
+    /**
+     * A rhino context which knows which {@link ScriptRun} it is currently executing
+     */
+    static final class FloContext extends org.mozilla.javascript.Context {
+        @Nullable
+        private ScriptRun mRun;
+
+        private FloContext(ContextFactory factory) {
+            super(factory);
+        }
+
+        @Nullable
+        ScriptRun getRun() {
+            return mRun;
+        }
+
+        void setRun(@Nullable ScriptRun run) {
+            this.mRun = run;
+        }
+    }
+}
@@ -0,0 +1,864 @@
+package com.premature.floscript.scripts.logic;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.SQLException;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import com.google.gson.JsonParseException;
+import com.premature.floscript.db.ScriptQueryDao;
+
+import org.mozilla.javascript.BaseFunction;
+import org.mozilla.javascript.ContinuationPending;
+import org.mozilla.javascript.Function;
+import org.mozilla.javascript.NativeJSON;
+import org.mozilla.javascript.NativeObject;
+import org.mozilla.javascript.RhinoException;
+import org.mozilla.javascript.ScriptRuntime;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
+import org.mozilla.javascript.TopLevel;
+import org.mozilla.javascript.Undefined;
+import org.mozilla.javascript.json.JsonParser;
+import org.mozilla.javascript.serialize.ScriptableOutputStream;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * The <code>floApi</code>, <code>floHelper</code> and <code>floProfiler</code> objects scripts see. Instead of letting rhino wrap
+ * {@link FloJsApi} and {@link FloJsHelper} with {@link org.mozilla.javascript.Context#javaToJS}, which looks
+ * up the java method and converts the arguments through reflection on every call, each method is a
+ * {@link HostFunction} with a fixed id that we dispatch on with a switch.
+ * <p/>
+ * The objects are installed once into the shared scope of an engine and sealed, so scripts can't replace
+ * or add to them.
+ */
+final class FloHostObjects {
+
+    private static final String TAG = "HOST_OBJECTS";
+
+    static final String FLO_API = "floApi";
+    static final String FLO_HELPER = "floHelper";
+    static final String FLO_PROFILER = "floProfiler";
+    static final String STORE = "store";
+
+    private static final int ID_LOG_MESSAGE = 1;
+    private static final int ID_ERROR_MESSAGE = 2;
+    private static final int ID_FLO_NOTIFY = 3;
+    private static final int ID_OPEN_BROWSER = 4;
+    private static final int ID_EXPAND_PASSED_ARGUMENT_LABELS = 5;
+    private static final int ID_PROFILER_ENTER = 6;
+    private static final int ID_PROFILER_EXIT = 7;
+    private static final int ID_STORE_GET = 8;
+    private static final int ID_STORE_PUT = 9;
+    private static final int ID_STORE_INCREMENT = 10;
+    private static final int ID_STORE_REMOVE = 11;
+    private static final int ID_READ_LINES = 12;
+    private static final int ID_READ_RECORDS = 13;
+    private static final int ID_RECORDS_HAS_NEXT = 14;
+    private static final int ID_RECORDS_NEXT = 15;
+    private static final int ID_RECORDS_CLOSE = 16;
+    private static final int ID_QUERY = 17;
+    private static final int ID_ROWS_HAS_NEXT = 18;
+    private static final int ID_ROWS_NEXT = 19;
+    private static final int ID_ROWS_CLOSE = 20;
+    private static final int ID_NUMBERS = 21;
+    private static final int ID_NUMBERS_SUM = 22;
+    private static final int ID_NUMBERS_MIN = 23;
+    private static final int ID_NUMBERS_MAX = 24;
+    private static final int ID_NUMBERS_SORT = 25;
+    private static final int ID_NUMBERS_HISTOGRAM = 26;
+    private static final int ID_NUMBERS_MOVING_AVERAGE = 27;
+    private static final int ID_NUMBERS_TO_ARRAY = 28;
+    private static final int ID_SLEEP = 29;
+    private static final int ID_WAIT_FOR_EVENT = 30;
+    private static final int ID_CURRENT_TIME_MILLIS = 31;
+
+    private final FloJsApi mApi;
+    private final FloJsHelper mHelper;
+    private final ScriptStateStore mStateStore;
+    // scripts may only read files below this directory
+    private final File mFilesDir;
+    private final ScriptQueryDao mQueryDao;
+    // hold the functions of the objects floApi.readLines, floApi.readRecords and floApi.query return
+    private ScriptableObject mRecordsPrototype;
+    private ScriptableObject mRowsPrototype;
+    // holds the bulk operations of the buffers floApi.numbers returns
+    private ScriptableObject mNumbersPrototype;
+
+    private FloHostObjects(FloJsApi api, FloJsHelper helper, Context ctx) {
+        this.mApi = api;
+        this.mHelper = helper;
+        this.mStateStore = ScriptStateStore.getInstance(ctx);
+        this.mFilesDir = ctx.getFilesDir();
+        this.mQueryDao = new ScriptQueryDao(ctx);
+    }
+
+    /**
+     * Define the sealed <code>floApi</code>, <code>floHelper</code> and <code>floProfiler</code> objects in the scope
+     */
+    static void install(ScriptableObject scope, FloJsApi api, FloJsHelper helper, Context ctx) {
+        FloHostObjects host = new FloHostObjects(api, helper, ctx);
+
+        ScriptableObject apiObject = host.newHostObject(scope);
+        host.defineFunction(apiObject, scope, "logMessage", ID_LOG_MESSAGE, 1);
+        host.defineFunction(apiObject, scope, "errorMessage", ID_ERROR_MESSAGE, 1);
+        host.defineFunction(apiObject, scope, "floNotify", ID_FLO_NOTIFY, 1);
+        host.defineFunction(apiObject, scope, "openBrowser", ID_OPEN_BROWSER, 1);
+        // values scripts keep between their runs, see ScriptState
+        ScriptableObject storeObject = host.newHostObject(scope);
+        host.defineFunction(storeObject, scope, "get", ID_STORE_GET, 2);
+        host.defineFunction(storeObject, scope, "put", ID_STORE_PUT, 2);
+        host.defineFunction(storeObject, scope, "increment", ID_STORE_INCREMENT, 2);
+        host.defineFunction(storeObject, scope, "remove", ID_STORE_REMOVE, 1);
+        storeObject.sealObject();
+        apiObject.defineProperty(STORE, storeObject, ScriptableObject.READONLY | ScriptableObject.PERMANENT);
+        // files in the app storage, read one record at a time
+        host.defineFunction(apiObject, scope, "readLines", ID_READ_LINES, 1);
+        host.defineFunction(apiObject, scope, "readRecords", ID_READ_RECORDS, 2);
+        host.mRecordsPrototype = host.newHostObject(scope);
+        host.defineFunction(host.mRecordsPrototype, scope, "hasNext", ID_RECORDS_HAS_NEXT, 0);
+        host.defineFunction(host.mRecordsPrototype, scope, "next", ID_RECORDS_NEXT, 0);
+        host.defineFunction(host.mRecordsPrototype, scope, "close", ID_RECORDS_CLOSE, 0);
+        host.mRecordsPrototype.sealObject();
+        // read only queries against the app database, one row at a time
+        host.defineFunction(apiObject, scope, "query", ID_QUERY, 3);
+        host.mRowsPrototype = host.newHostObject(scope);
+        host.defineFunction(host.mRowsPrototype, scope, "hasNext", ID_ROWS_HAS_NEXT, 0);
+        host.defineFunction(host.mRowsPrototype, scope, "next", ID_ROWS_NEXT, 0);
+        host.defineFunction(host.mRowsPrototype, scope, "close", ID_ROWS_CLOSE, 0);
+        host.mRowsPrototype.sealObject();
+        // primitive number arrays whose bulk operations run in java instead of the interpreter
+        host.defineFunction(apiObject, scope, "numbers", ID_NUMBERS, 1);
+        host.mNumbersPrototype = host.newHostObject(scope);
+        host.defineFunction(host.mNumbersPrototype, scope, "sum", ID_NUMBERS_SUM, 0);
+        host.defineFunction(host.mNumbersPrototype, scope, "min", ID_NUMBERS_MIN, 0);
+        host.defineFunction(host.mNumbersPrototype, scope, "max", ID_NUMBERS_MAX, 0);
+        host.defineFunction(host.mNumbersPrototype, scope, "sort", ID_NUMBERS_SORT, 0);
+        host.defineFunction(host.mNumbersPrototype, scope, "histogram", ID_NUMBERS_HISTOGRAM, 3);
+        host.defineFunction(host.mNumbersPrototype, scope, "movingAverage", ID_NUMBERS_MOVING_AVERAGE, 1);
+        host.defineFunction(host.mNumbersPrototype, scope, "toArray", ID_NUMBERS_TO_ARRAY, 0);
+        host.mNumbersPrototype.sealObject();
+        // give up the thread until a time or an event, only for runs that can be suspended
+        host.defineFunction(apiObject, scope, "sleep", ID_SLEEP, 1);
+        host.defineFunction(apiObject, scope, "waitForEvent", ID_WAIT_FOR_EVENT, 1);
+        apiObject.sealObject();
+        ScriptableObject.defineProperty(scope, FLO_API, apiObject, ScriptableObject.READONLY | ScriptableObject.PERMANENT);
+
+        ScriptableObject helperObject = host.newHostObject(scope);
+        host.defineFunction(helperObject, scope, "expandPassedArgumentLabels", ID_EXPAND_PASSED_ARGUMENT_LABELS, 2);
+        host.defineFunction(helperObject, scope, "currentTimeMillis", ID_CURRENT_TIME_MILLIS, 0);
+        helperObject.sealObject();
+        ScriptableObject.defineProperty(scope, FLO_HELPER, helperObject, ScriptableObject.READONLY | ScriptableObject.PERMANENT);
+
+        // called by instrumented diagrams, the calls go to the profile of the run on the calling thread
+        ScriptableObject profilerObject = host.newHostObject(scope);
+        host.defineFunction(profilerObject, scope, "enter", ID_PROFILER_ENTER, 1);
+        host.defineFunction(profilerObject, scope, "exit", ID_PROFILER_EXIT, 1);
+        profilerObject.sealObject();
+        ScriptableObject.defineProperty(scope, FLO_PROFILER, profilerObject, ScriptableObject.READONLY | ScriptableObject.PERMANENT);
+    }
+
+    private ScriptableObject newHostObject(Scriptable scope) {
+        NativeObject object = new NativeObject();
+        ScriptRuntime.setBuiltinProtoAndParent(object, scope, TopLevel.Builtins.Object);
+        return object;
+    }
+
+    private void defineFunction(ScriptableObject owner, Scriptable scope, String name, int id, int arity) {
+        HostFunction function = new HostFunction(this, name, id, arity);
+        ScriptRuntime.setFunctionProtoAndParent(function, scope);
+        function.sealObject();
+        owner.defineProperty(name, function, ScriptableObject.READONLY | ScriptableObject.PERMANENT);
+    }
+
+    private Object dispatch(int id, org.mozilla.javascript.Context cx, Scriptable scope, Scriptable thisObj, Object[] args) {
+        switch (id) {
+            case ID_LOG_MESSAGE:
+                mApi.logMessage(stringArg(args, 0));
+                return Undefined.instance;
+            case ID_ERROR_MESSAGE:
+                mApi.errorMessage(stringArg(args, 0));
+                return Undefined.instance;
+            case ID_FLO_NOTIFY:
+                mApi.floNotify(stringArg(args, 0));
+                return Undefined.instance;
+            case ID_OPEN_BROWSER:
+                mApi.openBrowser(stringArg(args, 0));
+                return Undefined.instance;
+            case ID_EXPAND_PASSED_ARGUMENT_LABELS:
+                return expandLabels(cx, stringArg(args, 0), stringArg(args, 1));
+            case ID_CURRENT_TIME_MILLIS:
+                return (double) TracedInputs.currentTimeMillis(cx);
+            case ID_PROFILER_ENTER: {
+                ExecutionProfile profile = currentProfile(cx);
+                if (profile != null) {
+                    profile.enter(intArg(args, 0));
+                }
+                return Undefined.instance;
+            }
+            case ID_PROFILER_EXIT: {
+                ExecutionProfile profile = currentProfile(cx);
+                if (profile != null) {
+                    profile.exit(intArg(args, 0));
+                }
+                return Undefined.instance;
+            }
+            case ID_STORE_GET: {
+                String json = currentState(cx).get(stringArg(args, 0));
+                if (json == null) {
+                    // the optional second argument is the default
+                    return args.length > 1 ? args[1] : Undefined.instance;
+                }
+                return parseJson(cx, scope, json);
+            }
+            case ID_STORE_PUT: {
+                ScriptState state = currentState(cx);
+                String key = stringArg(args, 0);
+                Object json = NativeJSON.stringify(cx, scope, args.length > 1 ? args[1] : Undefined.instance, null, null);
+                // like JSON.stringify we drop undefined and functions, which means the key goes away
+                if (json instanceof String) {
+                    state.put(key, (String) json);
+                } else {
+                    state.remove(key);
+                }
+                return Undefined.instance;
+            }
+            case ID_STORE_INCREMENT: {
+                ScriptState state = currentState(cx);
+                String key = stringArg(args, 0);
+                double delta = args.length > 1 ? ScriptRuntime.toNumber(args[1]) : 1;
+                // other runs of the script may be incrementing the same key
+                synchronized (state) {
+                    String json = state.get(key);
+                    double current = json == null ? 0 : ScriptRuntime.toNumber(parseJson(cx, scope, json));
+                    Double next = current + delta;
+                    state.put(key, (String) NativeJSON.stringify(cx, scope, next, null, null));
+                    return next;
+                }
+            }
+            case ID_STORE_REMOVE:
+                currentState(cx).remove(stringArg(args, 0));
+                return Undefined.instance;
+            case ID_READ_LINES:
+                return openRecords(cx, scope, stringArg(args, 0), FileRecordReader.LINE_DELIMITER);
+            case ID_READ_RECORDS: {
+                String delimiter = stringArg(args, 1);
+                if (delimiter == null || delimiter.length() != 1) {
+                    throw ScriptRuntime.constructError("Error", "The record delimiter must be a single character");
+                }
+                return openRecords(cx, scope, stringArg(args, 0), delimiter.charAt(0));
+            }
+            case ID_RECORDS_HAS_NEXT:
+                try {
+                    return readerOf(thisObj).hasNext();
+                } catch (IOException e) {
+                    throw ScriptRuntime.constructError("Error", "Unable to read file: " + e.getMessage());
+                }
+            case ID_RECORDS_NEXT:
+                try {
+                    // null once we reach the end of the file
+                    return readerOf(thisObj).next();
+                } catch (IOException e) {
+                    throw ScriptRuntime.constructError("Error", "Unable to read file: " + e.getMessage());
+                }
+            case ID_RECORDS_CLOSE:
+                try {
+                    readerOf(thisObj).close();
+                } catch (IOException e) {
+                    Log.w(TAG, "Failed to close file", e);
+                }
+                return Undefined.instance;
+            case ID_QUERY:
+                return query(cx, scope, stringArg(args, 0), args.length > 1 ? args[1] : Undefined.instance,
+                        args.length > 2 ? args[2] : Undefined.instance);
+            case ID_ROWS_HAS_NEXT:
+                return rowsOf(thisObj).hasNext();
+            case ID_ROWS_NEXT:
+                return rowsOf(thisObj).next(cx, scope);
+            case ID_ROWS_CLOSE:
+                rowsOf(thisObj).close();
+                return Undefined.instance;
+            case ID_NUMBERS:
+                return newNumbers(scope, createNumericBuffer(cx, args.length > 0 ? args[0] : Undefined.instance));
+            case ID_NUMBERS_SUM:
+                return numbersOf(thisObj).sum();
+            case ID_NUMBERS_MIN:
+                return numbersOf(thisObj).min();
+            case ID_NUMBERS_MAX:
+                return numbersOf(thisObj).max();
+            case ID_NUMBERS_SORT:
+                numbersOf(thisObj).sort();
+                return thisObj;
+            case ID_NUMBERS_HISTOGRAM: {
+                NumericBuffer buffer = numbersOf(thisObj);
+                int[] counts;
+                try {
+                    counts = buffer.histogram(intArg(args, 0), numberArg(args, 1), numberArg(args, 2));
+                } catch (IllegalArgumentException e) {
+                    throw ScriptRuntime.constructError("Error", e.getMessage());
+                }
+                Object[] elements = new Object[counts.length];
+                for (int i = 0; i < counts.length; i++) {
+                    elements[i] = counts[i];
+                }
+                return cx.newArray(scope, elements);
+            }
+            case ID_NUMBERS_MOVING_AVERAGE: {
+                NumericBuffer averages;
+                try {
+                    averages = numbersOf(thisObj).movingAverage(intArg(args, 0));
+                } catch (IllegalArgumentException e) {
+                    throw ScriptRuntime.constructError("Error", e.getMessage());
+                }
+                return newNumbers(scope, averages);
+            }
+            case ID_NUMBERS_TO_ARRAY: {
+                NumericBuffer buffer = numbersOf(thisObj);
+                Object[] elements = new Object[buffer.length()];
+                for (int i = 0; i < elements.length; i++) {
+                    elements[i] = buffer.get(i);
+                }
+                return cx.newArray(scope, elements);
+            }
+            case ID_SLEEP: {
+                double sleepMs = numberArg(args, 0);
+                if (!(sleepMs > 0)) {
+                    throw ScriptRuntime.constructError("Error", "floApi.sleep needs a positive number of ms");
+                }
+                suspendableRun(cx, "floApi.sleep").suspendUntil(System.currentTimeMillis() + (long) sleepMs);
+                throw captureContinuation(cx, "floApi.sleep");
+            }
+            case ID_WAIT_FOR_EVENT: {
+                String eventAlias = stringArg(args, 0);
+                if (eventAlias == null) {
+                    throw ScriptRuntime.constructError("Error", "floApi.waitForEvent needs the name of an event");
+                }
+                suspendableRun(cx, "floApi.waitForEvent").suspendUntilEvent(eventAlias);
+                throw captureContinuation(cx, "floApi.waitForEvent");
+            }
+            default:
+                throw new IllegalStateException("Unknown host function id " + id);
+        }
+    }
+
+    /**
+     * Records the call into the trace, or when replaying hands the script what the recorded call returned
+     * without making the call at all. Only the calls that compute their result from nothing but their
+     * arguments are still made by the replay
+     */
+    private Object tracedDispatch(ScriptTrace trace, int id, org.mozilla.javascript.Context cx, Scriptable scope,
+                                  Scriptable thisObj, Object[] args) {
+        boolean external = readsOrChangesOutsideState(id);
+        if (trace.isReplaying()) {
+            ScriptTrace.Entry entry = trace.take(id);
+            if (!external) {
+                return dispatch(id, cx, scope, thisObj, args);
+            }
+            return replayValue(cx, scope, id, args, entry);
+        }
+        int slot = trace.beginCall(id);
+        if (!external) {
+            return dispatch(id, cx, scope, thisObj, args);
+        }
+        Object result;
+        try {
+            result = dispatch(id, cx, scope, thisObj, args);
+        } catch (RhinoException e) {
+            trace.completeCall(slot, ScriptTrace.VALUE_ERROR, 0, e.details());
+            throw e;
+        }
+        recordValue(cx, scope, trace, slot, result);
+        return result;
+    }
+
+    private static boolean readsOrChangesOutsideState(int id) {
+        switch (id) {
+            case ID_EXPAND_PASSED_ARGUMENT_LABELS:
+            // traces the clock itself, like Date does
+            case ID_CURRENT_TIME_MILLIS:
+            case ID_PROFILER_ENTER:
+            case ID_PROFILER_EXIT:
+            case ID_NUMBERS:
+            case ID_NUMBERS_SUM:
+            case ID_NUMBERS_MIN:
+            case ID_NUMBERS_MAX:
+            case ID_NUMBERS_SORT:
+            case ID_NUMBERS_HISTOGRAM:
+            case ID_NUMBERS_MOVING_AVERAGE:
+            case ID_NUMBERS_TO_ARRAY:
+                return false;
+            default:
+                return true;
+        }
+    }
+
+    private static void recordValue(org.mozilla.javascript.Context cx, Scriptable scope, ScriptTrace trace, int slot,
+                                    Object value) {
+        if (value == null) {
+            trace.completeCall(slot, ScriptTrace.VALUE_NULL, 0, null);
+        } else if (value instanceof Boolean) {
+            trace.completeCall(slot, (Boolean) value ? ScriptTrace.VALUE_TRUE : ScriptTrace.VALUE_FALSE, 0, null);
+        } else if (value instanceof Number) {
+            trace.completeCall(slot, ScriptTrace.VALUE_NUMBER, ((Number) value).doubleValue(), null);
+        } else if (value instanceof CharSequence) {
+            trace.completeCall(slot, ScriptTrace.VALUE_STRING, 0, value.toString());
+        } else if (value instanceof FileRecords) {
+            trace.completeCall(slot, ScriptTrace.VALUE_RECORDS, 0, null);
+        } else if (value instanceof QueryRows) {
+            trace.completeCall(slot, ScriptTrace.VALUE_ROWS, 0, null);
+        } else if (value instanceof Scriptable) {
+            // rows and stored values are plain data, which json captures completely
+            Object json = NativeJSON.stringify(cx, scope, value, null, null);
+            if (json instanceof String) {
+                trace.completeCall(slot, ScriptTrace.VALUE_JSON, 0, (String) json);
+            } else {
+                trace.completeCall(slot, ScriptTrace.VALUE_UNDEFINED, 0, null);
+            }
+        } else {
+            trace.completeCall(slot, ScriptTrace.VALUE_UNDEFINED, 0, null);
+        }
+    }
+
+    private Object replayValue(org.mozilla.javascript.Context cx, Scriptable scope, int id, Object[] args,
+                               ScriptTrace.Entry entry) {
+        if (id == ID_LOG_MESSAGE || id == ID_ERROR_MESSAGE) {
+            // the lines stay part of the result, there just is no logcat output or notification
+            ScriptRun run = currentRun(cx, "floApi.logMessage");
+            String line = String.valueOf(stringArg(args, 0));
+            run.addLogLine(id == ID_ERROR_MESSAGE ? "ERROR: " + line : line);
+        }
+        switch (entry.getValueType()) {
+            case ScriptTrace.VALUE_NULL:
+                return null;
+            case ScriptTrace.VALUE_TRUE:
+                return Boolean.TRUE;
+            case ScriptTrace.VALUE_FALSE:
+                return Boolean.FALSE;
+            case ScriptTrace.VALUE_NUMBER:
+                return entry.getNumber();
+            case ScriptTrace.VALUE_STRING:
+                return entry.getText();
+            case ScriptTrace.VALUE_JSON:
+                return parseJson(cx, scope, entry.getText());
+            case ScriptTrace.VALUE_RECORDS:
+                return newReplayHandle(scope, mRecordsPrototype);
+            case ScriptTrace.VALUE_ROWS:
+                return newReplayHandle(scope, mRowsPrototype);
+            case ScriptTrace.VALUE_ERROR:
+                throw ScriptRuntime.constructError("Error", entry.getText());
+            default:
+                return Undefined.instance;
+        }
+    }
+
+    /**
+     * Stands in for the records or rows of a replay. The calls made on it are replayed as well, so it
+     * never has to read anything
+     */
+    private Scriptable newReplayHandle(Scriptable scope, ScriptableObject prototype) {
+        NativeObject handle = new NativeObject();
+        handle.setPrototype(prototype);
+        handle.setParentScope(ScriptableObject.getTopLevelScope(scope));
+        return handle;
+    }
+
+    /**
+     * Converts an argument the same way rhino converts it for a java String parameter, so
+     * <code>null</code> stays null and everything else (even undefined) goes through javascript ToString
+     */
+    private static String stringArg(Object[] args, int index) {
+        Object arg = index < args.length ? args[index] : Undefined.instance;
+        return arg == null ? null : ScriptRuntime.toString(arg);
+    }
+
+    private static int intArg(Object[] args, int index) {
+        return index < args.length ? ScriptRuntime.toInt32(args[index]) : 0;
+    }
+
+    private static double numberArg(Object[] args, int index) {
+        return index < args.length ? ScriptRuntime.toNumber(args[index]) : Double.NaN;
+    }
+
+    /**
+     * @param source either the length of a zero filled buffer or an array whose values are copied over
+     */
+    private static NumericBuffer createNumericBuffer(org.mozilla.javascript.Context cx, Object source) {
+        try {
+            if (source instanceof Scriptable) {
+                Object[] elements = cx.getElements((Scriptable) source);
+                NumericBuffer buffer = new NumericBuffer(elements.length);
+                for (int i = 0; i < elements.length; i++) {
+                    buffer.set(i, ScriptRuntime.toNumber(elements[i]));
+                }
+                return buffer;
+            }
+            return new NumericBuffer(ScriptRuntime.toInt32(source));
+        } catch (IllegalArgumentException e) {
+            throw ScriptRuntime.constructError("Error", e.getMessage());
+        }
+    }
+
+    private Scriptable newNumbers(Scriptable scope, NumericBuffer buffer) {
+        Numbers numbers = new Numbers(buffer);
+        numbers.setPrototype(mNumbersPrototype);
+        numbers.setParentScope(ScriptableObject.getTopLevelScope(scope));
+        return numbers;
+    }
+
+    private static NumericBuffer numbersOf(Scriptable thisObj) {
+        if (!(thisObj instanceof Numbers)) {
+            throw ScriptRuntime.typeError("Not the result of floApi.numbers");
+        }
+        return ((Numbers) thisObj).mBuffer;
+    }
+
+    private Scriptable openRecords(org.mozilla.javascript.Context cx, Scriptable scope, String path, char delimiter) {
+        ScriptRun run = currentRun(cx, "floApi.readLines");
+        FileRecordReader reader;
+        try {
+            reader = new FileRecordReader(resolveAppFile(path), delimiter, run);
+        } catch (IOException e) {
+            throw ScriptRuntime.constructError("Error", "Unable to open file " + path + ": " + e.getMessage());
+        }
+        // whatever the script forgets to close is closed when the run ends
+        run.addResource(reader);
+        FileRecords records = new FileRecords(reader);
+        records.setPrototype(mRecordsPrototype);
+        records.setParentScope(ScriptableObject.getTopLevelScope(scope));
+        return records;
+    }
+
+    /**
+     * @return the file the path points to, as long as it is inside of the app storage
+     */
+    private File resolveAppFile(String path) throws IOException {
+        if (path == null) {
+            throw new IOException("no path given");
+        }
+        File base = mFilesDir.getCanonicalFile();
+        // the canonical path has any .. and symlinks resolved, so this check can't be walked around
+        File file = new File(base, path).getCanonicalFile();
+        if (!file.getPath().startsWith(base.getPath() + File.separator)) {
+            throw ScriptRuntime.constructError("Error", "Scripts can only read files in the app storage, not " + path);
+        }
+        return file;
+    }
+
+    private Scriptable query(org.mozilla.javascript.Context cx, Scriptable scope, String sql, Object jsArgs, Object jsLimit) {
+        ScriptRun run = currentRun(cx, "floApi.query");
+        String[] selectionArgs = new String[0];
+        if (jsArgs instanceof Scriptable) {
+            Object[] elements = cx.getElements((Scriptable) jsArgs);
+            selectionArgs = new String[elements.length];
+            for (int i = 0; i < elements.length; i++) {
+                if (elements[i] == null || elements[i] == Undefined.instance) {
+                    throw ScriptRuntime.constructError("Error", "Query arguments can't be null or undefined");
+                }
+                selectionArgs[i] = ScriptRuntime.toString(elements[i]);
+            }
+        }
+        int limit = jsLimit == Undefined.instance ? ScriptQueryDao.DEFAULT_ROW_LIMIT : ScriptRuntime.toInt32(jsLimit);
+        Cursor cursor;
+        try {
+            cursor = mQueryDao.query(sql == null ? "" : sql, selectionArgs, limit);
+        } catch (IllegalArgumentException | SQLException e) {
+            throw ScriptRuntime.constructError("Error", "Invalid query: " + e.getMessage());
+        }
+        run.addResource(cursor);
+        QueryRows rows = new QueryRows(cursor);
+        rows.setPrototype(mRowsPrototype);
+        rows.setParentScope(ScriptableObject.getTopLevelScope(scope));
+        return rows;
+    }
+
+    private static QueryRows rowsOf(Scriptable thisObj) {
+        if (!(thisObj instanceof QueryRows)) {
+            throw ScriptRuntime.typeError("Not the result of floApi.query");
+        }
+        return (QueryRows) thisObj;
+    }
+
+    private static FileRecordReader readerOf(Scriptable thisObj) {
+        if (!(thisObj instanceof FileRecords)) {
+            throw ScriptRuntime.typeError("Not a file opened with floApi.readLines or floApi.readRecords");
+        }
+        return ((FileRecords) thisObj).mReader;
+    }
+
+    private String expandLabels(org.mozilla.javascript.Context cx, String globals, String expression) {
+        if (globals == null || expression == null) {
+            throw ScriptRuntime.constructError("Error",
+                    "floHelper.expandPassedArgumentLabels needs the variables and an expression");
+        }
+        ScriptRun run = cx instanceof FloContextFactory.FloContext ? ((FloContextFactory.FloContext) cx).getRun() : null;
+        try {
+            Map<String, String> values = run != null ? run.getGlobals(globals) : FloJsHelper.parseGlobals(globals);
+            return mHelper.expand(values, expression);
+        } catch (JsonParseException | IllegalArgumentException | IllegalStateException e) {
+            // a label without a value, or variables that aren't a json object
+            throw ScriptRuntime.constructError("Error", e.getMessage());
+        }
+    }
+
+    private static ScriptRun currentRun(org.mozilla.javascript.Context cx, String apiName) {
+        ScriptRun run = cx instanceof FloContextFactory.FloContext ? ((FloContextFactory.FloContext) cx).getRun() : null;
+        if (run == null) {
+            throw ScriptRuntime.constructError("Error", apiName + " can only be used by a running script");
+        }
+        return run;
+    }
+
+    private static ScriptRun suspendableRun(org.mozilla.javascript.Context cx, String apiName) {
+        ScriptRun run = currentRun(cx, apiName);
+        if (!run.isSuspendable()) {
+            throw ScriptRuntime.constructError("Error", apiName + " can only be used by saved scripts run as jobs");
+        }
+        return run;
+    }
+
+    /**
+     * Capture the interpreter frames of the run, which the engine catches and stores. When the run is resumed
+     * the host function call returns whatever the engine resumes it with
+     */
+    private static ContinuationPending captureContinuation(org.mozilla.javascript.Context cx, String apiName) {
+        try {
+            return cx.captureContinuation();
+        } catch (IllegalStateException e) {
+            // there is a java frame in between, like the callback of Array.prototype.forEach
+            throw ScriptRuntime.constructError("Error", apiName + " can't be called from here: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Make the serialization of a suspended run write the host objects, the standard library and their functions as references
+     * by name, rather than trying to serialize them
+     */
+    static void excludeFromSerialization(ScriptableOutputStream out, Scriptable scope) {
+        for (String name : new String[]{FLO_API, FLO_HELPER, FLO_PROFILER, FloStdLib.FLO_STD}) {
+            excludeWithProperties(out, name, (Scriptable) ScriptableObject.getProperty(scope, name));
+        }
+    }
+
+    private static void excludeWithProperties(ScriptableOutputStream out, String name, Scriptable object) {
+        out.addExcludedName(name);
+        if (object instanceof Function) {
+            return;
+        }
+        for (Object id : object.getIds()) {
+            Object value = ScriptableObject.getProperty(object, id.toString());
+            if (value instanceof Scriptable) {
+                excludeWithProperties(out, name + "." + id, (Scriptable) value);
+            }
+        }
+    }
+
+    private ScriptState currentState(org.mozilla.javascript.Context cx) {
+        ScriptRun run = currentRun(cx, "floApi.store");
+        ScriptState state = run.getState();
+        if (state == null) {
+            state = mStateStore.forScript(run.getScript());
+            run.setState(state);
+        }
+        return state;
+    }
+
+    private static Object parseJson(org.mozilla.javascript.Context cx, Scriptable scope, String json) {
+        try {
+            return new JsonParser(cx, scope).parseValue(json);
+        } catch (JsonParser.ParseException e) {
+            Log.e(TAG, "Stored value " + json + " is not valid json", e);
+            return Undefined.instance;
+        }
+    }
+
+    @Nullable
+    private static ExecutionProfile currentProfile(org.mozilla.javascript.Context cx) {
+        if (!(cx instanceof FloContextFactory.FloContext)) {
+            return null;
+        }
+        ScriptRun run = ((FloContextFactory.FloContext) cx).getRun();
+        return run != null ? run.getProfile() : null;
+    }
+
+    /**
+     * The javascript side of a {@link FileRecordReader}. Its functions live in the shared records prototype
+     */
+    private static final class FileRecords extends ScriptableObject {
+        private final FileRecordReader mReader;
+
+        private FileRecords(FileRecordReader reader) {
+            this.mReader = reader;
+        }
+
+        @Override
+        public String getClassName() {
+            return "FileRecords";
+        }
+    }
+
+    /**
+     * The javascript side of a {@link NumericBuffer}. It can be indexed and has a length like a javascript
+     * array, but every value is stored as a primitive double and can only ever be a number
+     */
+    private static final class Numbers extends ScriptableObject {
+        private final NumericBuffer mBuffer;
+
+        private Numbers(NumericBuffer buffer) {
+            this.mBuffer = buffer;
+        }
+
+        @Override
+        public String getClassName() {
+            return "Numbers";
+        }
+
+        @Override
+        public boolean has(int index, Scriptable start) {
+            return index >= 0 && index < mBuffer.length();
+        }
+
+        @Override
+        public Object get(int index, Scriptable start) {
+            return has(index, start) ? mBuffer.get(index) : NOT_FOUND;
+        }
+
+        @Override
+        public void put(int index, Scriptable start, Object value) {
+            if (!has(index, start)) {
+                throw ScriptRuntime.constructError("RangeError", "Index " + index + " is outside of a buffer of length "
+                        + mBuffer.length());
+            }
+            mBuffer.set(index, ScriptRuntime.toNumber(value));
+        }
+
+        @Override
+        public boolean has(String name, Scriptable start) {
+            return "length".equals(name) || super.has(name, start);
+        }
+
+        @Override
+        public Object get(String name, Scriptable start) {
+            return "length".equals(name) ? mBuffer.length() : super.get(name, start);
+        }
+
+        @Override
+        public void put(String name, Scriptable start, Object value) {
+            // the length is fixed
+            if (!"length".equals(name)) {
+                super.put(name, start, value);
+            }
+        }
+    }
+
+    /**
+     * The javascript side of a cursor returned by floApi.query. Each row only becomes a javascript object
+     * when the script asks for it, and the cursor is closed as soon as the last one was handed out
+     */
+    private static final class QueryRows extends ScriptableObject {
+        private final Cursor mCursor;
+
+        private QueryRows(Cursor cursor) {
+            this.mCursor = cursor;
+        }
+
+        @Override
+        public String getClassName() {
+            return "QueryRows";
+        }
+
+        private boolean hasNext() {
+            return !mCursor.isClosed() && mCursor.getPosition() + 1 < mCursor.getCount();
+        }
+
+        /**
+         * @return the next row as an object keyed by column name, or <code>null</code> after the last row
+         */
+        private Object next(org.mozilla.javascript.Context cx, Scriptable scope) {
+            if (mCursor.isClosed() || !mCursor.moveToNext()) {
+                close();
+                return null;
+            }
+            Scriptable row = cx.newObject(scope);
+            for (int i = 0; i < mCursor.getColumnCount(); i++) {
+                Object value;
+                switch (mCursor.getType(i)) {
+                    case Cursor.FIELD_TYPE_INTEGER:
+                        value = (double) mCursor.getLong(i);
+                        break;
+                    case Cursor.FIELD_TYPE_FLOAT:
+                        value = mCursor.getDouble(i);
+                        break;
+                    case Cursor.FIELD_TYPE_STRING:
+                        value = mCursor.getString(i);
+                        break;
+                    default:
+                        // there is no sensible javascript value for blobs
+                        value = null;
+                }
+                ScriptableObject.putProperty(row, mCursor.getColumnName(i), value);
+            }
+            return row;
+        }
+
+        private void close() {
+            mCursor.close();
+        }
+    }
+
+    /**
+     * A javascript function which calls straight into one of the host methods
+     */
+    private static final class HostFunction extends BaseFunction {
+        private final FloHostObjects mHost;
+        private final String mName;
+        private final int mId;
+        private final int mArity;
+
+        private HostFunction(FloHostObjects host, String name, int id, int arity) {
+            this.mHost = host;
+            this.mName = name;
+            this.mId = id;
+            this.mArity = arity;
+        }
+
+        @Override
+        public Object call(org.mozilla.javascript.Context cx, Scriptable scope, Scriptable thisObj, Object[] args) {
+            ScriptTrace trace = ScriptTrace.current(cx);
+            try {
+                return trace == null
+                        ? mHost.dispatch(mId, cx, scope, thisObj, args)
+                        : mHost.tracedDispatch(trace, mId, cx, scope, thisObj, args);
+            } catch (RhinoException | ContinuationPending e) {
+                throw e;
+            } catch (RuntimeException e) {
+                // like the reflective bridge did, so the script sees a java failure as an error it can catch
+                // and the engine reports it as a failed run instead of it taking down the thread
+                throw org.mozilla.javascript.Context.throwAsScriptRuntimeEx(e);
+            }
+        }
+
+        @Override
+        public Scriptable construct(org.mozilla.javascript.Context cx, Scriptable scope, Object[] args) {
+            throw ScriptRuntime.typeError(mName + " is not a constructor");
+        }
+
+        @Override
+        public String getFunctionName() {
+            return mName;
+        }
+
+        @Override
+        public int getArity() {
+            return mArity;
+        }
+
+        @Override
+        public int getLength() {
+            return mArity;
+        }
+    }
+}
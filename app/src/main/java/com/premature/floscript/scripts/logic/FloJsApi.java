@@ -1,65 +1,88 @@
 package com.premature.floscript.scripts.logic;
 
-import android.app.NotificationChannel;
-import android.app.NotificationManager;
 import android.content.Context;
 import android.content.Intent;
 import android.net.Uri;
-import android.os.Build;
-import android.support.v4.app.NotificationCompat;
+import android.support.annotation.Nullable;
 import android.util.Log;
 import android.widget.Toast;
 
-import com.premature.floscript.R;
-
-import java.util.concurrent.atomic.AtomicInteger;
-
 /**
- * This class is passed into the rhino scope {@link org.mozilla.javascript.Context} and can
- * be called from inside the javascript runtime
+ * This class is exposed to the rhino scope as the <code>floApi</code> object by {@link FloHostObjects}
+ * and can be called from inside the javascript runtime
  *
  * Created by martin on 21/01/15.
  */
 public class FloJsApi {
     private static final String TAG = "JS_API";
-    private static final AtomicInteger notifIdGen = new AtomicInteger();
 
     private final Context ctx;
+    private final NotificationDispatcher mDispatcher;
 
     public FloJsApi(Context ctx) {
         this.ctx = ctx;
+        this.mDispatcher = NotificationDispatcher.getInstance(ctx);
     }
 
-    public void logMessage(String msg) {
-        Log.d(TAG, "Message from js land: " + msg);
+    public void logMessage(@Nullable String msg) {
+        // a script may log null, which neither logcat nor the log lines accept
+        String line = String.valueOf(msg);
+        Log.d(TAG, line);
+        ScriptRun run = currentRun();
+        if (run != null) {
+            run.addLogLine(line);
+        }
     }
 
-    public void errorMessage(String msg) {
-        Log.e(TAG, "Error from js land: " + msg);
-        floNotify("ERROR: " + msg);
+    public void errorMessage(@Nullable String msg) {
+        msg = String.valueOf(msg);
+        Log.e(TAG, msg);
+        ScriptRun run = currentRun();
+        if (run != null) {
+            run.addLogLine("ERROR: " + msg);
+        }
+        NotificationDispatcher.Batch batch = currentBatch();
+        if (batch != null) {
+            batch.addError(msg);
+        } else {
+            mDispatcher.notifyNow(msg, true);
+        }
     }
 
     public void floNotify(String msg) {
-        NotificationCompat.Builder notifBuilder = new NotificationCompat.Builder(ctx, "floscript_chan_out");
-        notifBuilder.setContentTitle("FloScript Output");
-        notifBuilder.setContentText(msg);
-        notifBuilder.setSmallIcon(R.drawable.flo_notif);
-        NotificationManager manager = (NotificationManager) ctx.getSystemService(Context.NOTIFICATION_SERVICE);
+        Log.d(TAG, "from js land: " + msg);
+        NotificationDispatcher.Batch batch = currentBatch();
+        if (batch != null) {
+            batch.add(msg);
+        } else {
+            mDispatcher.notifyNow(msg, false);
+        }
+    }
 
-        // === Removed some obsoletes
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O)
-        {
-            String channelId = "floscript_chan_out";
-            NotificationChannel channel = new NotificationChannel(
-                    channelId,
-                    "FloScript",
-                    NotificationManager.IMPORTANCE_HIGH);
-            manager.createNotificationChannel(channel);
-            notifBuilder.setChannelId(channelId);
+    /**
+     * @return the batch collecting the messages of the run on this thread, or <code>null</code> if there is none
+     */
+    @Nullable
+    private NotificationDispatcher.Batch currentBatch() {
+        ScriptRun run = currentRun();
+        if (run == null) {
+            return null;
+        }
+        NotificationDispatcher.Batch batch = run.getNotifications();
+        if (batch == null) {
+            batch = mDispatcher.openBatch();
+            run.setNotifications(batch);
         }
+        return batch;
+    }
 
-        manager.notify(notifIdGen.getAndIncrement(), notifBuilder.build());
-        Log.d(TAG, "from js land: " + msg);
+    /**
+     * @return the run executing on this thread, or <code>null</code> if we weren't called by a script
+     */
+    @Nullable
+    private static ScriptRun currentRun() {
+        org.mozilla.javascript.Context cx = org.mozilla.javascript.Context.getCurrentContext();
+        return cx instanceof FloContextFactory.FloContext ? ((FloContextFactory.FloContext) cx).getRun() : null;
     }
 
     public void openBrowser(String url) {
@@ -1,14 +1,18 @@
 package com.premature.floscript.scripts.logic;
 
-import android.util.Log;
-import android.util.Pair;
+import android.util.LruCache;
 
-import com.google.gson.Gson;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
 
+import org.mozilla.javascript.ScriptRuntime;
+import org.mozilla.javascript.Undefined;
+
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -18,33 +22,131 @@ import java.util.regex.Pattern;
  */
 
 public class FloJsHelper {
-    private static final String TAG = "JS_HELPER";
-    private final Pattern pattern = Pattern.compile("\\$[A-Za-z0-9]+");
+    private static final Pattern LABEL_PATTERN = Pattern.compile("\\$[A-Za-z0-9]+");
+    private static final int MAX_CACHED_PLANS = 128;
+
+    /**
+     * The expressions come from the diagram elements, so there are only ever a handful of distinct ones
+     */
+    private static final LruCache<String, ExpansionPlan> sPlans = new LruCache<>(MAX_CACHED_PLANS);
+    private static final JsonParser sParser = new JsonParser();
 
     public FloJsHelper() {
     }
 
     public String expandPassedArgumentLabels(String globals, String expression) {
+        return expand(parseGlobals(globals), expression);
+    }
+
+    /**
+     * Replace every <code>$label</code> in the expression with its value. The values are inserted as they are,
+     * so a <code>$</code> or <code>\</code> in them is never read as a group reference
+     *
+     * @throws IllegalArgumentException if a label has no value
+     */
+    String expand(Map<String, String> values, String expression) {
+        return planFor(expression).expand(values);
+    }
+
+    /**
+     * Expand the expression like <code>floStd.expr.expand</code> does, for the java nodes which keep the diagram
+     * variables as java values rather than as json
+     *
+     * @throws IllegalArgumentException if a label has no value
+     */
+    public static String expandVariables(Map<String, Object> vars, String expression) {
+        return planFor(expression).expand(vars);
+    }
+
+    private static ExpansionPlan planFor(String expression) {
+        ExpansionPlan plan = sPlans.get(expression);
+        if (plan == null) {
+            plan = ExpansionPlan.of(expression);
+            sPlans.put(expression, plan);
+        }
+        return plan;
+    }
+
+    /**
+     * @return the text a value ends up as after the round trip through <code>JSON.stringify</code> and
+     * {@link #parseGlobals}, <code>null</code> for a value that json leaves out
+     */
+    private static String labelText(Object value) {
+        if (value == null) {
+            return "null";
+        }
+        if (value instanceof Undefined) {
+            return null;
+        }
+        if (value instanceof Number) {
+            double number = ((Number) value).doubleValue();
+            return Double.isNaN(number) || Double.isInfinite(number) ? "null" : ScriptRuntime.numberToString(number, 10);
+        }
+        return ScriptRuntime.toString(value);
+    }
+
+    /**
+     * @param globals a json object whose values are all primitives, like the diagram variables
+     */
+    static Map<String, String> parseGlobals(String globals) {
+        JsonObject globalsJson = sParser.parse(globals).getAsJsonObject();
         Map<String, String> globalVals = new HashMap<>();
-        Gson gson = new Gson();
-        JsonParser parser = new JsonParser();
-        JsonObject globalsJson = parser.parse(globals).getAsJsonObject();
         for (Map.Entry<String, JsonElement> entry : globalsJson.entrySet()) {
-            globalVals.put(entry.getKey(), entry.getValue().getAsString());
+            JsonElement value = entry.getValue();
+            globalVals.put(entry.getKey(), value.isJsonPrimitive() ? value.getAsString() : value.toString());
         }
-        Log.d(TAG, "parsed globals [" + globals + "] into = [" + globalVals + "]");
+        return Collections.unmodifiableMap(globalVals);
+    }
 
+    /**
+     * An expression split into the literal text around its labels, so expanding it is only a matter of
+     * joining the pieces with the label values. There is always one more literal than there are labels
+     */
+    static final class ExpansionPlan {
+        private final String[] mLiterals;
+        private final String[] mLabels;
+        private final int mLiteralLength;
 
-        Matcher matcher = pattern.matcher(expression);
-        StringBuffer sb = new StringBuffer();
-        while(matcher.find()){
-            String match = matcher.group();
-            Log.d(TAG, "match " + match + " with current sb = " + sb.toString());
-            matcher.appendReplacement(sb,globalVals.get(match.substring(1)));
+        private ExpansionPlan(String[] literals, String[] labels) {
+            this.mLiterals = literals;
+            this.mLabels = labels;
+            int literalLength = 0;
+            for (String literal : literals) {
+                literalLength += literal.length();
+            }
+            this.mLiteralLength = literalLength;
         }
-        matcher.appendTail(sb);
 
-        Log.d(TAG, "Expand input [" + expression + "] and output [" + sb.toString() + "]");
-        return sb.toString();
+        static ExpansionPlan of(String expression) {
+            List<String> literals = new ArrayList<>();
+            List<String> labels = new ArrayList<>();
+            Matcher matcher = LABEL_PATTERN.matcher(expression);
+            int literalStart = 0;
+            while (matcher.find()) {
+                literals.add(expression.substring(literalStart, matcher.start()));
+                labels.add(expression.substring(matcher.start() + 1, matcher.end()));
+                literalStart = matcher.end();
+            }
+            literals.add(expression.substring(literalStart));
+            return new ExpansionPlan(literals.toArray(new String[literals.size()]),
+                    labels.toArray(new String[labels.size()]));
+        }
+
+        String expand(Map<String, ?> values) {
+            if (mLabels.length == 0) {
+                return mLiterals[0];
+            }
+            StringBuilder sb = new StringBuilder(mLiteralLength + 8 * mLabels.length);
+            for (int i = 0; i < mLabels.length; i++) {
+                Object raw = values.get(mLabels[i]);
+                String value = raw instanceof String ? (String) raw
+                        : raw != null || values.containsKey(mLabels[i]) ? labelText(raw) : null;
+                if (value == null) {
+                    throw new IllegalArgumentException("Variable $" + mLabels[i] + " is not defined");
+                }
+                sb.append(mLiterals[i]).append(value);
+            }
+            return sb.append(mLiterals[mLabels.length]).toString();
+        }
     }
 }
@@ -0,0 +1,69 @@
+package com.premature.floscript.scripts.logic;
+
+import android.content.Context;
+
+import com.premature.floscript.R;
+import com.premature.floscript.util.ResourceAndFileUtils;
+
+import org.mozilla.javascript.ScriptableObject;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+/**
+ * Installs the floscript standard library from <code>res/raw/flo_std.js</code> as the <code>floStd</code>
+ * object. The templates call its helpers instead of each carrying their own copy of the logic.
+ * <p/>
+ * The library is compiled once per process and run into the shared scope of every engine, after which the
+ * whole object graph is sealed, so no run can change what the next one sees.
+ */
+final class FloStdLib {
+
+    static final String FLO_STD = "floStd";
+
+    private static volatile org.mozilla.javascript.Script sCompiled;
+
+    private FloStdLib() {
+    }
+
+    static void install(org.mozilla.javascript.Context cx, ScriptableObject scope, Context ctx) {
+        getCompiled(cx, ctx).exec(cx, scope);
+        Object library = ScriptableObject.getProperty(scope, FLO_STD);
+        if (!(library instanceof ScriptableObject)) {
+            throw new IllegalStateException("flo_std.js didn't define " + FLO_STD);
+        }
+        deepSeal((ScriptableObject) library, Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>()));
+        scope.setAttributes(FLO_STD, ScriptableObject.READONLY | ScriptableObject.PERMANENT);
+    }
+
+    private static org.mozilla.javascript.Script getCompiled(org.mozilla.javascript.Context cx, Context ctx) {
+        org.mozilla.javascript.Script compiled = sCompiled;
+        if (compiled == null) {
+            // two engines racing here both compile it, which is harmless
+            String source = ResourceAndFileUtils.readFile(ctx, R.raw.flo_std, true);
+            compiled = cx.compileString(source, "flo_std.js", 1, null);
+            sCompiled = compiled;
+        }
+        return compiled;
+    }
+
+    /**
+     * Seal the object, its functions and everything nested in it. The prototypes aren't own properties,
+     * so the standard objects are left alone
+     */
+    private static void deepSeal(ScriptableObject object, Set<Object> sealed) {
+        if (!sealed.add(object)) {
+            return;
+        }
+        for (Object id : object.getIds()) {
+            Object value = id instanceof Integer
+                    ? object.get((Integer) id, object)
+                    : object.get(id.toString(), object);
+            if (value instanceof ScriptableObject) {
+                deepSeal((ScriptableObject) value, sealed);
+            }
+        }
+        object.sealObject();
+    }
+}
@@ -0,0 +1,139 @@
+package com.premature.floscript.scripts.logic;
+
+import android.util.SparseArray;
+
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.debug.DebugFrame;
+import org.mozilla.javascript.debug.DebuggableScript;
+import org.mozilla.javascript.debug.Debugger;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * This class accumulates, for every line of a script, how often the interpreter reached it and how much
+ * time was spent on it. It hooks into rhino as a {@link Debugger}, which only gets the line events for
+ * scripts compiled while {@link Context#isGeneratingDebug()} is on, so {@link ScriptEngine} only attaches it
+ * to runs whose {@link ScriptRunOptions#isLineProfiling() options ask for it}. Other runs pay nothing.
+ * <p/>
+ * Time is self time: while a line calls into another javascript function the clock of the line is
+ * paused and the time goes to the lines of the callee instead.
+ */
+final class LineProfiler implements Debugger {
+
+    private final SparseArray<LineStats> mLines = new SparseArray<>();
+    // the frames of the functions currently executing, the innermost one first
+    private final Deque<LineFrame> mFrames = new ArrayDeque<>();
+
+    @Override
+    public void handleCompilationDone(Context cx, DebuggableScript fnOrScript, String source) {
+    }
+
+    @Override
+    public DebugFrame getFrame(Context cx, DebuggableScript fnOrScript) {
+        return new LineFrame();
+    }
+
+    /**
+     * @return the report for the script the profiled run executed, with the most expensive lines first
+     */
+    String createReport(Script script, long elapsedMs) {
+        List<LineStats> lines = new ArrayList<>(mLines.size());
+        for (int i = 0; i < mLines.size(); i++) {
+            lines.add(mLines.valueAt(i));
+        }
+        Collections.sort(lines, new Comparator<LineStats>() {
+            @Override
+            public int compare(LineStats lhs, LineStats rhs) {
+                return lhs.totalNanos < rhs.totalNanos ? 1 : (lhs.totalNanos == rhs.totalNanos ? 0 : -1);
+            }
+        });
+        String[] sourceLines = script.getSourceCode().split("\n", -1);
+        StringBuilder bob = new StringBuilder();
+        bob.append("Line profile of script ").append(script.getName())
+                .append(" (id ").append(script.getId()).append(") run took ").append(elapsedMs).append(" ms\n");
+        bob.append(String.format(Locale.US, "%6s %10s %12s  %s%n", "line", "hits", "total ms", "source"));
+        for (LineStats line : lines) {
+            // FUNCTION scripts are wrapped without adding any lines, so the line numbers match the source
+            String source = line.line >= 1 && line.line <= sourceLines.length ? sourceLines[line.line - 1].trim() : "";
+            bob.append(String.format(Locale.US, "%6d %10d %12.3f  %s%n", line.line, line.hits, line.totalNanos / 1e6, source));
+        }
+        return bob.toString();
+    }
+
+    private LineStats statsFor(int line) {
+        LineStats stats = mLines.get(line);
+        if (stats == null) {
+            stats = new LineStats(line);
+            mLines.put(line, stats);
+        }
+        return stats;
+    }
+
+    private static final class LineStats {
+        private final int line;
+        private int hits;
+        private long totalNanos;
+
+        private LineStats(int line) {
+            this.line = line;
+        }
+    }
+
+    private final class LineFrame implements DebugFrame {
+        private int mLine = -1;
+        private long mLineStartNanos;
+
+        @Override
+        public void onEnter(Context cx, Scriptable activation, Scriptable thisObj, Object[] args) {
+            long now = System.nanoTime();
+            LineFrame caller = mFrames.peekFirst();
+            if (caller != null) {
+                caller.charge(now);
+            }
+            mFrames.addFirst(this);
+        }
+
+        @Override
+        public void onLineChange(Context cx, int lineNumber) {
+            long now = System.nanoTime();
+            charge(now);
+            mLine = lineNumber;
+            mLineStartNanos = now;
+            statsFor(lineNumber).hits++;
+        }
+
+        @Override
+        public void onExceptionThrown(Context cx, Throwable ex) {
+        }
+
+        @Override
+        public void onExit(Context cx, boolean byThrow, Object resultOrException) {
+            long now = System.nanoTime();
+            charge(now);
+            mFrames.remove(this);
+            LineFrame caller = mFrames.peekFirst();
+            if (caller != null) {
+                // the caller's line continues from here
+                caller.mLineStartNanos = now;
+            }
+        }
+
+        @Override
+        public void onDebuggerStatement(Context cx) {
+        }
+
+        private void charge(long now) {
+            if (mLine != -1) {
+                statsFor(mLine).totalNanos += now - mLineStartNanos;
+                mLineStartNanos = now;
+            }
+        }
+    }
+}
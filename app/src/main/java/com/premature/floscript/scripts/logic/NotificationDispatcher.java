@@ -0,0 +1,200 @@
+package com.premature.floscript.scripts.logic;
+
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.content.Context;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.support.v4.app.NotificationCompat;
+import android.util.Log;
+
+import com.premature.floscript.R;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Posts the messages scripts output through <code>floApi.floNotify</code> and <code>floApi.errorMessage</code>.
+ * Every call to the notification manager is an ipc, so instead of a notification per message each run
+ * gets a {@link Batch} that collects its messages into a single summary notification. The summary is
+ * posted when the run ends, and updated at most every {@link #FLUSH_DELAY_MS} while it is still going.
+ * <p/>
+ * Errors are also rate limited across all runs, so a job that keeps failing can't bury the user in them.
+ */
+final class NotificationDispatcher {
+
+    private static final String TAG = "NOTIF_DISPATCH";
+    private static final String CHANNEL_ID = "floscript_chan_out";
+    private static final String TITLE = "FloScript Output";
+    // the inbox style only shows a handful of lines anyway
+    private static final int MAX_LINES = 20;
+    private static final long FLUSH_DELAY_MS = 2000;
+    private static final int MAX_ERRORS_PER_WINDOW = 5;
+    private static final long ERROR_WINDOW_MS = TimeUnit.MINUTES.toMillis(1);
+
+    private static NotificationDispatcher sInstance;
+
+    private final Context mContext;
+    private final NotificationManager mManager;
+    private final Handler mMainHandler;
+    private final AtomicInteger mNotificationIds = new AtomicInteger();
+    // guarded by this
+    private long mErrorWindowStart;
+    private int mErrorsInWindow;
+
+    private NotificationDispatcher(Context ctx) {
+        this.mContext = ctx;
+        this.mManager = (NotificationManager) ctx.getSystemService(Context.NOTIFICATION_SERVICE);
+        this.mMainHandler = new Handler(Looper.getMainLooper());
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            mManager.createNotificationChannel(new NotificationChannel(CHANNEL_ID, "FloScript",
+                    NotificationManager.IMPORTANCE_HIGH));
+        }
+    }
+
+    static synchronized NotificationDispatcher getInstance(Context ctx) {
+        if (sInstance == null) {
+            sInstance = new NotificationDispatcher(ctx.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * @return a batch for the messages of one run, which has to be {@link Batch#close() closed} when the run ends
+     */
+    Batch openBatch() {
+        return new Batch(mNotificationIds.getAndIncrement());
+    }
+
+    /**
+     * Post a message that doesn't belong to any run right away
+     */
+    void notifyNow(String msg, boolean error) {
+        Batch batch = openBatch();
+        if (error) {
+            batch.addError(msg);
+        } else {
+            batch.add(msg);
+        }
+        batch.close();
+    }
+
+    /**
+     * @return true if another error may be shown in the current window
+     */
+    private synchronized boolean tryAcquireErrorSlot() {
+        long now = SystemClock.elapsedRealtime();
+        if (now - mErrorWindowStart > ERROR_WINDOW_MS) {
+            mErrorWindowStart = now;
+            mErrorsInWindow = 0;
+        }
+        if (mErrorsInWindow >= MAX_ERRORS_PER_WINDOW) {
+            return false;
+        }
+        mErrorsInWindow++;
+        return true;
+    }
+
+    /**
+     * The messages of one run. Messages are added on the thread executing the run, while the delayed
+     * flush happens on the main thread
+     */
+    final class Batch {
+        private final int mNotificationId;
+        private final Deque<String> mLines = new ArrayDeque<>();
+        private int mMessageCount;
+        private int mSuppressedErrors;
+        // something was added since the last time we posted
+        private boolean mDirty;
+        private boolean mFlushScheduled;
+        private boolean mClosed;
+
+        private final Runnable mDelayedFlush = new Runnable() {
+            @Override
+            public void run() {
+                synchronized (Batch.this) {
+                    mFlushScheduled = false;
+                    flush();
+                }
+            }
+        };
+
+        private Batch(int notificationId) {
+            this.mNotificationId = notificationId;
+        }
+
+        synchronized void add(String msg) {
+            if (mClosed) {
+                notifyNow(msg, false);
+                return;
+            }
+            mMessageCount++;
+            mLines.addLast(msg);
+            if (mLines.size() > MAX_LINES) {
+                // the newest messages are the interesting ones
+                mLines.removeFirst();
+            }
+            mDirty = true;
+            if (!mFlushScheduled) {
+                mFlushScheduled = true;
+                mMainHandler.postDelayed(mDelayedFlush, FLUSH_DELAY_MS);
+            }
+        }
+
+        synchronized void addError(String msg) {
+            if (tryAcquireErrorSlot()) {
+                add("ERROR: " + msg);
+            } else {
+                mSuppressedErrors++;
+                mDirty = true;
+            }
+        }
+
+        /**
+         * Post the summary of everything that is left and stop the timer
+         */
+        synchronized void close() {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            if (mFlushScheduled) {
+                mFlushScheduled = false;
+                mMainHandler.removeCallbacks(mDelayedFlush);
+            }
+            flush();
+        }
+
+        private void flush() {
+            if (!mDirty) {
+                return;
+            }
+            mDirty = false;
+            NotificationCompat.Builder builder = new NotificationCompat.Builder(mContext, CHANNEL_ID)
+                    .setContentTitle(TITLE)
+                    .setSmallIcon(R.drawable.flo_notif)
+                    .setOnlyAlertOnce(true);
+            String suppressed = mSuppressedErrors > 0 ? mSuppressedErrors + " more errors were not shown" : null;
+            if (mMessageCount == 1 && suppressed == null) {
+                builder.setContentText(mLines.peekLast());
+            } else {
+                NotificationCompat.InboxStyle inbox = new NotificationCompat.InboxStyle();
+                for (String line : mLines) {
+                    inbox.addLine(line);
+                }
+                if (suppressed != null) {
+                    inbox.setSummaryText(suppressed);
+                }
+                builder.setContentText(mLines.isEmpty() ? suppressed : mLines.peekLast())
+                        .setNumber(mMessageCount)
+                        .setStyle(inbox);
+            }
+            mManager.notify(mNotificationId, builder.build());
+            Log.d(TAG, "Posted " + mMessageCount + " messages as notification " + mNotificationId);
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package com.premature.floscript.scripts.logic;
+
+import java.util.Arrays;
+
+/**
+ * A fixed length array of primitive doubles that scripts get through <code>floApi.numbers</code>.
+ * In rhino every number in a javascript array is a boxed {@link Double} and every loop iteration is
+ * interpreted, so the bulk operations here let a script hand over the whole array and do the work in java.
+ */
+final class NumericBuffer {
+
+    // 1M doubles take 8MB, a good share of the heap of a phone, which the app and the other runs need too
+    static final int MAX_LENGTH = 1 << 20;
+
+    private final double[] mValues;
+
+    NumericBuffer(int length) {
+        if (length < 0 || length > MAX_LENGTH) {
+            throw new IllegalArgumentException("A numeric buffer must hold between 0 and " + MAX_LENGTH
+                    + " values but " + length + " were requested");
+        }
+        this.mValues = new double[length];
+    }
+
+    int length() {
+        return mValues.length;
+    }
+
+    double get(int index) {
+        return mValues[index];
+    }
+
+    void set(int index, double value) {
+        mValues[index] = value;
+    }
+
+    double sum() {
+        double sum = 0;
+        for (double value : mValues) {
+            sum += value;
+        }
+        return sum;
+    }
+
+    /**
+     * @return the smallest value, or NaN if the buffer is empty
+     */
+    double min() {
+        if (mValues.length == 0) {
+            return Double.NaN;
+        }
+        double min = mValues[0];
+        for (int i = 1; i < mValues.length; i++) {
+            min = Math.min(min, mValues[i]);
+        }
+        return min;
+    }
+
+    /**
+     * @return the largest value, or NaN if the buffer is empty
+     */
+    double max() {
+        if (mValues.length == 0) {
+            return Double.NaN;
+        }
+        double max = mValues[0];
+        for (int i = 1; i < mValues.length; i++) {
+            max = Math.max(max, mValues[i]);
+        }
+        return max;
+    }
+
+    /**
+     * Sorts the values in place in ascending numeric order, unlike javascript's sort which compares strings
+     */
+    void sort() {
+        Arrays.sort(mValues);
+    }
+
+    /**
+     * Counts the values in each of bins equally wide bins between low and high. The last bin includes high,
+     * while values outside of the range or NaN aren't counted at all
+     */
+    int[] histogram(int bins, double low, double high) {
+        if (bins <= 0 || !(low < high)) {
+            throw new IllegalArgumentException("A histogram needs at least one bin and low < high, but got "
+                    + bins + " bins for [" + low + ", " + high + "]");
+        }
+        int[] counts = new int[bins];
+        double binWidth = (high - low) / bins;
+        for (double value : mValues) {
+            if (value >= low && value <= high) {
+                counts[Math.min((int) ((value - low) / binWidth), bins - 1)]++;
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * @return a new buffer holding the average of every window consecutive values, which is
+     * window - 1 values shorter than this one (or empty if the window is larger than the buffer)
+     */
+    NumericBuffer movingAverage(int window) {
+        if (window <= 0) {
+            throw new IllegalArgumentException("The moving average window must be positive but was " + window);
+        }
+        NumericBuffer averages = new NumericBuffer(Math.max(0, mValues.length - window + 1));
+        // a NaN or an infinity would stay in a running sum after it leaves the window, so the sum only
+        // covers the finite values and the others are counted
+        double windowSum = 0;
+        int nans = 0;
+        int positiveInfinities = 0;
+        int negativeInfinities = 0;
+        int lastOverflow = -1;
+        for (int i = 0; i < mValues.length; i++) {
+            double entering = mValues[i];
+            if (Double.isNaN(entering)) {
+                nans++;
+            } else if (entering == Double.POSITIVE_INFINITY) {
+                positiveInfinities++;
+            } else if (entering == Double.NEGATIVE_INFINITY) {
+                negativeInfinities++;
+            } else {
+                windowSum += entering;
+            }
+            if (i >= window) {
+                double leaving = mValues[i - window];
+                if (Double.isNaN(leaving)) {
+                    nans--;
+                } else if (leaving == Double.POSITIVE_INFINITY) {
+                    positiveInfinities--;
+                } else if (leaving == Double.NEGATIVE_INFINITY) {
+                    negativeInfinities--;
+                } else {
+                    windowSum -= leaving;
+                }
+            }
+            if (Double.isInfinite(windowSum)) {
+                // the finite values overflowed, which would stick in the sum just the same, and subtracting
+                // values that large again would lose the small ones, so the sum is recomputed until they are gone
+                lastOverflow = i;
+            }
+            if (lastOverflow >= 0 && i <= lastOverflow + window) {
+                windowSum = finiteSum(Math.max(0, i - window + 1), i + 1);
+            }
+            if (i >= window - 1) {
+                double average;
+                if (nans > 0 || (positiveInfinities > 0 && negativeInfinities > 0)) {
+                    average = Double.NaN;
+                } else if (positiveInfinities > 0) {
+                    average = Double.POSITIVE_INFINITY;
+                } else if (negativeInfinities > 0) {
+                    average = Double.NEGATIVE_INFINITY;
+                } else {
+                    average = windowSum / window;
+                }
+                averages.mValues[i - window + 1] = average;
+            }
+        }
+        return averages;
+    }
+
+    private double finiteSum(int from, int to) {
+        double sum = 0;
+        for (int i = from; i < to; i++) {
+            if (!Double.isNaN(mValues[i]) && !Double.isInfinite(mValues[i])) {
+                sum += mValues[i];
+            }
+        }
+        return sum;
+    }
+}
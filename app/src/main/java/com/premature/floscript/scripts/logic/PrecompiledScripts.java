@@ -0,0 +1,113 @@
+package com.premature.floscript.scripts.logic;
+
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Helpers for turning the rhino compiled form of a {@link Script} into bytes we can store next to the script
+ * and back. The interpreter's compiled scripts are serializable, so loading them skips the parsing and
+ * compiling a cold process would otherwise have to do on the first run of every script.
+ * <p/>
+ * A stored form is only valid for the exact source, rhino version and optimization level it was made with,
+ * which is what {@link #sourceHash} captures.
+ */
+final class PrecompiledScripts {
+
+    private static final String TAG = "PRECOMPILED";
+    // bump this whenever the way we wrap the source before compiling it changes
+    private static final int FORMAT_VERSION = 1;
+
+    private PrecompiledScripts() {
+    }
+
+    /**
+     * @return the key under which the compiled form of this source is stored
+     */
+    static String sourceHash(org.mozilla.javascript.Context cx, String source) {
+        try {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            String header = FORMAT_VERSION + "|" + cx.getImplementationVersion() + "|" + cx.getOptimizationLevel() + "|";
+            sha1.update(header.getBytes("UTF-8"));
+            sha1.update(source.getBytes("UTF-8"));
+            return toHex(sha1.digest());
+        } catch (NoSuchAlgorithmException | UnsupportedEncodingException e) {
+            // both are guaranteed to be available on android
+            throw new IllegalStateException("Unable to hash script source", e);
+        }
+    }
+
+    /**
+     * @return the serialized compiled script or <code>null</code> if rhino refused to serialize it
+     */
+    @Nullable
+    static byte[] serialize(org.mozilla.javascript.Script compiled) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            ObjectOutputStream out = new ObjectOutputStream(bytes);
+            out.writeObject(compiled);
+            out.close();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to serialize compiled script", e);
+            return null;
+        }
+    }
+
+    /**
+     * @return the compiled script or <code>null</code> if the bytes can't be read back, in which case the
+     * caller should simply compile the source again
+     */
+    @Nullable
+    static org.mozilla.javascript.Script deserialize(byte[] serialized) {
+        try {
+            ObjectInputStream in = new AppClassLoaderObjectInputStream(new ByteArrayInputStream(serialized));
+            try {
+                Object compiled = in.readObject();
+                return compiled instanceof org.mozilla.javascript.Script ? (org.mozilla.javascript.Script) compiled : null;
+            } finally {
+                in.close();
+            }
+        } catch (IOException | ClassNotFoundException | RuntimeException e) {
+            Log.w(TAG, "Unable to deserialize compiled script", e);
+            return null;
+        }
+    }
+
+    private static String toHex(byte[] digest) {
+        StringBuilder bob = new StringBuilder(digest.length * 2);
+        for (byte b : digest) {
+            bob.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return bob.toString();
+    }
+
+    /**
+     * Resolves the rhino classes with the class loader of the app instead of whatever loader the caller
+     * of readObject happens to have
+     */
+    private static final class AppClassLoaderObjectInputStream extends ObjectInputStream {
+        private AppClassLoaderObjectInputStream(InputStream in) throws IOException {
+            super(in);
+        }
+
+        @Override
+        protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+            try {
+                return Class.forName(desc.getName(), false, PrecompiledScripts.class.getClassLoader());
+            } catch (ClassNotFoundException e) {
+                return super.resolveClass(desc);
+            }
+        }
+    }
+}
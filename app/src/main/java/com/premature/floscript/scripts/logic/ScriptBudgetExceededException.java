@@ -0,0 +1,60 @@
+package com.premature.floscript.scripts.logic;
+
+/**
+ * Thrown when a script run is aborted because it used up one of the limits in its {@link ScriptRunOptions}.
+ * It reports how much of each resource the run consumed before it was stopped.
+ */
+public class ScriptBudgetExceededException extends ScriptExecutionException {
+
+    public enum Budget {
+        INSTRUCTIONS, WALL_TIME, READ_BYTES;
+    }
+
+    private final Budget mBudget;
+    private final long mLimit;
+    private final long mInstructionsExecuted;
+    private final long mElapsedMs;
+
+    public ScriptBudgetExceededException(Budget budget, long limit, long instructionsExecuted, long elapsedMs) {
+        super(describe(budget, limit, instructionsExecuted, elapsedMs));
+        this.mBudget = budget;
+        this.mLimit = limit;
+        this.mInstructionsExecuted = instructionsExecuted;
+        this.mElapsedMs = elapsedMs;
+    }
+
+    private static String describe(Budget budget, long limit, long instructionsExecuted, long elapsedMs) {
+        String exceeded;
+        switch (budget) {
+            case INSTRUCTIONS:
+                exceeded = "its budget of " + limit + " instructions";
+                break;
+            case READ_BYTES:
+                exceeded = "its budget of " + limit + " bytes read from files";
+                break;
+            default:
+                exceeded = "its deadline of " + limit + " ms";
+        }
+        return "Script was stopped because it exceeded " + exceeded + " after executing "
+                + instructionsExecuted + " instructions in " + elapsedMs + " ms";
+    }
+
+    /**
+     * @return which of the limits was exceeded
+     */
+    public Budget getBudget() {
+        return mBudget;
+    }
+
+    public long getLimit() {
+        return mLimit;
+    }
+
+    public long getInstructionsExecuted() {
+        return mInstructionsExecuted;
+    }
+
+    public long getElapsedMs() {
+        return mElapsedMs;
+    }
+}
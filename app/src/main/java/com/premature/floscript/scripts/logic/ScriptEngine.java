@@ -1,12 +1,29 @@
 package com.premature.floscript.scripts.logic;
 
 import android.content.Context;
+import android.database.sqlite.SQLiteException;
+import android.support.annotation.Nullable;
 import android.util.Log;
 
+import com.premature.floscript.db.ScriptsDao;
+import com.premature.floscript.db.SuspendedRunsDao;
+import com.premature.floscript.scripts.logic.nodes.NodeProgram;
+import com.premature.floscript.scripts.logic.nodes.NodeRuntime;
+import com.premature.floscript.util.ResourceAndFileUtils;
+
+import org.mozilla.javascript.ContinuationPending;
 import org.mozilla.javascript.Scriptable;
 import org.mozilla.javascript.ScriptableObject;
+import org.mozilla.javascript.Undefined;
+import org.mozilla.javascript.debug.Debugger;
 
-import java.io.StringWriter;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Created by martin on 02/01/15.
@@ -16,46 +33,531 @@ import java.io.StringWriter;
 public class ScriptEngine {
 
     private static final String TAG = "SCRIPT_ENGINE";
-    private final StringWriter writer;
+    private static final int ASYNC_WORKERS = 2;
+    private static final long ASYNC_WORKER_KEEP_ALIVE_SEC = 30;
+    private static final String LINE_PROFILE_DIR = "line_profiles";
+    // a row has to fit into the 2 MB cursor window to be read back, with the source and the rest of it
+    private static final int MAX_PRECOMPILED_BYTES = 512 * 1024;
     private final Context ctx;
     private final FloJsApi floJsApi;
     private final FloJsHelper floJsHelper;
+    private final CompiledScriptCache mCompiledScripts;
+    private final FloContextFactory mContextFactory;
+    private final ScriptsDao mScriptsDao;
+    private final SuspendedRunsDao mSuspendedRunsDao;
+
+    private static class AsyncExecutorHolder {
+        // the async runs from all engines share these workers, each of which keeps its rhino context entered
+        private static final ThreadPoolExecutor EXECUTOR = createAsyncExecutor();
+
+        private static ThreadPoolExecutor createAsyncExecutor() {
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(ASYNC_WORKERS, ASYNC_WORKERS,
+                    ASYNC_WORKER_KEEP_ALIVE_SEC, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                    new ScriptThreadFactory("ScriptAsync"));
+            executor.allowCoreThreadTimeOut(true);
+            return executor;
+        }
+    }
+
+    // the standard objects are built once per engine and sealed so that runs can share them
+    @Nullable
+    private volatile ScriptableObject mSharedScope;
 
     public ScriptEngine(Context ctx) {
-        this.writer = new StringWriter();
         this.floJsApi = new FloJsApi(ctx);
         this.floJsHelper = new FloJsHelper();
         this.ctx = ctx;
+        this.mCompiledScripts = CompiledScriptCache.getInstance();
+        this.mContextFactory = FloContextFactory.getInstance();
+        this.mScriptsDao = new ScriptsDao(ctx);
+        this.mSuspendedRunsDao = new SuspendedRunsDao(ctx);
+    }
+
+    public ScriptResult runScript(com.premature.floscript.scripts.logic.Script script) throws ScriptExecutionException {
+        return runScript(script, ScriptRunOptions.DEFAULT);
+    }
+
+    /**
+     * Execute the script, aborting it with a {@link ScriptBudgetExceededException} once it runs past
+     * any of the limits in the provided options
+     */
+    public ScriptResult runScript(com.premature.floscript.scripts.logic.Script script, ScriptRunOptions options) throws ScriptExecutionException {
+        return execute(new ScriptRun(script, options), null, null);
+    }
+
+    /**
+     * Like {@link #runScript(Script, ScriptRunOptions)}, but the script may give up its thread in
+     * <code>floApi.sleep</code> or <code>floApi.waitForEvent</code>. The run is then saved and this throws a
+     * {@link ScriptSuspendedException}, whose catcher has to arrange for {@link #resumeScript(long)} to be
+     * called once the run should wake up. Only saved scripts can be suspended
+     *
+     * @param jobName the job the run belongs to, which the suspended run remembers, or <code>null</code>
+     */
+    public ScriptResult runSuspendableScript(Script script, ScriptRunOptions options, @Nullable String jobName)
+            throws ScriptExecutionException {
+        ScriptRun run = new ScriptRun(script, options);
+        run.setJobName(jobName);
+        // the line profiler's debug frames can't be serialized along with the continuation
+        run.setSuspendable(script.getId() != null && !options.isLineProfiling());
+        return execute(run, null, null);
+    }
+
+    /**
+     * Continue a suspended run from where it left off. The limits of the run apply afresh, so a run
+     * that keeps waiting only has to stay within them between two suspensions
+     *
+     * @throws ScriptSuspendedException if the run suspended itself again
+     */
+    public ScriptResult resumeScript(long suspendedRunId) throws ScriptExecutionException {
+        SuspendedRun suspended = mSuspendedRunsDao.takeSuspendedRun(suspendedRunId);
+        if (suspended == null) {
+            throw new ScriptExecutionException("Suspended run " + suspendedRunId + " was already resumed");
+        }
+        Script script = mScriptsDao.getScriptById(suspended.getScriptId());
+        if (script == null) {
+            throw new ScriptExecutionException("The script of suspended run " + suspendedRunId + " no longer exists");
+        }
+        ScriptRun run = new ScriptRun(script, suspended.getOptions());
+        run.setSuspendable(true);
+        run.setJobName(suspended.getJobName());
+        return execute(run, null, suspended);
+    }
+
+    /**
+     * Like {@link #runScript(Script, ScriptRunOptions)}, but every host call the script makes is written into
+     * the trace file together with what it returned, as are the clock and <code>Math.random</code> reads.
+     * The trace is written even if the run fails, so that the failure can be replayed
+     */
+    public ScriptResult recordScript(Script script, ScriptRunOptions options, File traceFile)
+            throws ScriptExecutionException {
+        ScriptRun run = new ScriptRun(script, options);
+        ScriptTrace trace = ScriptTrace.forRecording();
+        run.setTrace(trace);
+        try {
+            return execute(run, null, null);
+        } finally {
+            try {
+                trace.write(traceFile);
+                Log.d(TAG, "Wrote trace of script " + script.getName() + " with " + trace.getEntryCount()
+                        + " entries to " + traceFile);
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to write the trace of script " + script.getName() + " to " + traceFile, e);
+            }
+        }
+    }
+
+    /**
+     * Run the script against a trace written by {@link #recordScript}. The script sees the same host call
+     * results, time and random numbers as the recorded run did, but no host call reaches the outside, so
+     * nothing is notified, stored or opened. This makes for a repeatable workload to measure the engine with
+     *
+     * @throws ScriptExecutionException also if the script no longer makes the calls it made when recorded
+     */
+    public ScriptResult replayScript(Script script, ScriptRunOptions options, File traceFile)
+            throws ScriptExecutionException {
+        ScriptTrace trace;
+        try {
+            trace = ScriptTrace.read(traceFile);
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to read trace " + traceFile, e);
+            throw new ScriptExecutionException("Unable to read the trace: " + e.getMessage());
+        }
+        ScriptRun run = new ScriptRun(script, options);
+        run.setTrace(trace);
+        ScriptResult result = execute(run, null, null);
+        if (trace.getRemainingEntries() > 0) {
+            Log.w(TAG, "Replay of script " + script.getName() + " finished with " + trace.getRemainingEntries()
+                    + " recorded entries left over");
+        }
+        return result;
     }
 
-    public String runScript(com.premature.floscript.scripts.logic.Script script) throws ScriptExecutionException {
+    /**
+     * @return true if the script may suspend itself, which the java nodes of a {@link NodeProgram} can't do
+     */
+    public static boolean maySuspend(Script script) {
+        String source = script.getSourceCode();
+        return source != null && (source.contains("floApi.sleep") || source.contains("floApi.waitForEvent"));
+    }
+
+    /**
+     * Execute a diagram compiled into java nodes. Only the elements with custom javascript are run by rhino.
+     * The limits in the options apply just like they would to the javascript version of the diagram
+     */
+    public ScriptResult runProgram(NodeProgram program, ScriptRunOptions options) throws ScriptExecutionException {
+        return execute(new ScriptRun(program.getScript(), options), program, null);
+    }
+
+    /**
+     * Execute the script on a background thread. The callback is notified on the main thread, first with
+     * periodic progress updates and then with exactly one of the result, the error or the cancellation.
+     *
+     * @return a handle which can be used to cancel the run
+     */
+    public ScriptRunHandle runScriptAsync(Script script, ScriptRunOptions options, ScriptRunCallback callback) {
+        return runScriptAsync(script, options, null, callback);
+    }
+
+    /**
+     * Like {@link #runScriptAsync(Script, ScriptRunOptions, ScriptRunCallback)}, but a script compiled with
+     * {@link DiagramToScriptCompiler#compileInstrumented} records the time spent in each element into the profile.
+     * The profile is complete once the callback receives the result
+     */
+    public ScriptRunHandle runScriptAsync(Script script, ScriptRunOptions options, @Nullable ExecutionProfile profile,
+                                          ScriptRunCallback callback) {
+        final ScriptRunHandle handle = new ScriptRunHandle(script, options, profile, callback);
+        final ScriptRun run = handle.getRun();
+        AsyncExecutorHolder.EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (run.isCancelled()) {
+                    handle.postCancelled();
+                    return;
+                }
+                try {
+                    handle.postResult(execute(run, null, null));
+                } catch (ScriptExecutionException e) {
+                    handle.postError(e);
+                } catch (RuntimeException e) {
+                    // there is nobody up the stack of a pool thread to handle this
+                    Log.e(TAG, "unexpected failure running script " + run.getScript().getName(), e);
+                    handle.postError(new ScriptExecutionException(e.getMessage()));
+                }
+            }
+        });
+        return handle;
+    }
+
+    private ScriptResult execute(ScriptRun run, @Nullable NodeProgram program, @Nullable SuspendedRun resumed)
+            throws ScriptExecutionException {
+        Script script = run.getScript();
         // Creates and enters a Context. The Context stores information
         // about the execution environment of a script.
-        org.mozilla.javascript.Context cx = org.mozilla.javascript.Context.enter();
-        cx.setOptimizationLevel(-1); // turn off because otherwise it does jit generating jvm bytecode not dalvik
+        FloContextFactory.FloContext cx = (FloContextFactory.FloContext) mContextFactory.enterContext();
+        // a host call may run another script on this thread, so we put the outer run back afterwards
+        ScriptRun outerRun = cx.getRun();
+        cx.setRun(run);
+        // the line profiler is only ever attached when asked for, so normal runs don't pay for the debug hooks
+        LineProfiler lineProfiler = program == null && run.getOptions().isLineProfiling() ? new LineProfiler() : null;
+        Debugger outerDebugger = cx.getDebugger();
+        Object outerDebuggerData = cx.getDebuggerContextData();
+        boolean outerGeneratingDebug = cx.isGeneratingDebug();
+        run.start();
         try {
-            // Initialize the standard objects (Object, Function, etc.)
-            // This must be done before scripts can be executed. Returns
-            // a scope object that we use in later calls.
-            Scriptable scope = cx.initStandardObjects();
-            ScriptableObject.putProperty(scope, "floApi", org.mozilla.javascript.Context.javaToJS(floJsApi, scope));
-            ScriptableObject.putProperty(scope, "floHelper", org.mozilla.javascript.Context.javaToJS(floJsHelper, scope));
-            // Now evaluate the string we've collected.
-            String code = script.getSourceCode();
-            if (Script.Type.FUNCTION == script.getType()) {
-                code = "(" + code + ")();";
+            if (program != null) {
+                return ScriptResult.of(run, program.execute(new ProgramRuntime(cx, run)));
             }
+            if (resumed != null) {
+                return ScriptResult.of(run, resumeContinuation(cx, resumed));
+            }
+            ScriptTrace trace = run.getTrace();
+            if (trace != null && !trace.bindSource(PrecompiledScripts.sourceHash(cx, script.getSourceCode()))) {
+                throw new ScriptExecutionException("The trace was recorded from a different version of script "
+                        + script.getName());
+            }
+            Scriptable scope = createRunScope(cx);
+            if (trace != null) {
+                // so that recorded runs can capture the time and random numbers and replays can feed them back
+                TracedInputs.install((ScriptableObject) scope);
+            }
+            org.mozilla.javascript.Script compiled;
+            if (lineProfiler != null) {
+                // the cached scripts were compiled without the line hooks the debugger needs
+                cx.setGeneratingDebug(true);
+                cx.setDebugger(lineProfiler, null);
+                compiled = compileScript(cx, script);
+            } else {
+                // Now execute the compiled script, only parsing the source if we haven't done so recently
+                compiled = getCompiledScript(cx, script);
+            }
+            // only runs started with continuations can capture them, which costs nothing until they do
+            Object result = run.isSuspendable()
+                    ? cx.executeScriptWithContinuations(compiled, scope)
+                    : compiled.exec(cx, scope);
 
-            Object result = cx.evaluateString(scope, code, "<test-script>", 1, null);
-
-            // Convert the result to a string and print it.
-            return org.mozilla.javascript.Context.toString(result);
+            return ScriptResult.of(run, result);
+        } catch (ContinuationPending pending) {
+            throw suspend(cx, run, pending);
+        } catch (ScriptRun.BudgetExceededError budgetError) {
+            ScriptBudgetExceededException exceeded = budgetError.toException();
+            Log.e(TAG, "execution of script " + script.getName() + " aborted: " + exceeded.getMessage());
+            throw exceeded;
+        } catch (ScriptTrace.DivergedError diverged) {
+            Log.e(TAG, "replay of script " + script.getName() + " diverged: " + diverged.getMessage());
+            throw new ScriptExecutionException("Replay diverged from the trace: " + diverged.getMessage());
+        } catch (ScriptRun.CancelledError cancelled) {
+            Log.d(TAG, "execution of script " + script.getName() + " was cancelled");
+            throw new ScriptExecutionException("Script run was cancelled after " + run.getElapsedMs() + " ms");
         } catch (org.mozilla.javascript.RhinoException ee) {
             Log.e(TAG, "execution of script failed with exception: " + Log.getStackTraceString(ee));
             throw new ScriptExecutionException(ee.getMessage());
         } finally {
+            run.closeResources();
+            flushState(run);
+            NotificationDispatcher.Batch notifications = run.getNotifications();
+            if (notifications != null) {
+                // whatever the run output goes out as a single summary
+                notifications.close();
+            }
+            cx.setRun(outerRun);
+            if (lineProfiler != null) {
+                cx.setDebugger(outerDebugger, outerDebuggerData);
+                cx.setGeneratingDebug(outerGeneratingDebug);
+                writeLineProfileReport(script, lineProfiler, run.getElapsedMs());
+            }
             // Exit from the context.
             org.mozilla.javascript.Context.exit();
         }
     }
+
+    private Object resumeContinuation(org.mozilla.javascript.Context cx, SuspendedRun resumed)
+            throws ScriptExecutionException {
+        ScriptableObject sharedScope = getSharedScope(cx);
+        Object continuation;
+        try {
+            continuation = SuspendedContinuations.deserialize(resumed.getContinuation(), sharedScope);
+        } catch (IOException | ClassNotFoundException e) {
+            Log.e(TAG, "Unable to restore suspended run " + resumed, e);
+            throw new ScriptExecutionException("Unable to restore the suspended run: " + e.getMessage());
+        }
+        // waitForEvent returns the event the run was woken by
+        Object wakeResult = resumed.getWakeEvent() != null ? resumed.getWakeEvent() : Undefined.instance;
+        return cx.resumeContinuation(continuation, sharedScope, wakeResult);
+    }
+
+    /**
+     * Save the continuation the run captured in floApi.sleep or floApi.waitForEvent
+     *
+     * @return the exception to throw to the caller of the run
+     */
+    private ScriptExecutionException suspend(org.mozilla.javascript.Context cx, ScriptRun run, ContinuationPending pending) {
+        Script script = run.getScript();
+        byte[] continuation;
+        try {
+            continuation = SuspendedContinuations.serialize(pending.getContinuation(), getSharedScope(cx));
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to suspend script " + script.getName(), e);
+            return new ScriptExecutionException("Script can't be suspended while it holds on to open files, "
+                    + "queries or number buffers: " + e.getMessage());
+        }
+        SuspendedRun suspended = new SuspendedRun(null, script.getId(), run.getOptions(), continuation,
+                run.getWakeAtMs(), run.getWakeEvent(), run.getJobName());
+        suspended = suspended.withId(mSuspendedRunsDao.saveSuspendedRun(suspended));
+        Log.d(TAG, "Suspended script " + script.getName() + " as " + suspended);
+        return new ScriptSuspendedException(suspended);
+    }
+
+    /**
+     * Write back whatever the run put into floApi.store. A failure here shouldn't turn a successful run into
+     * a failed one, so we only log it
+     */
+    private void flushState(ScriptRun run) {
+        ScriptState state = run.getState();
+        if (state == null) {
+            return;
+        }
+        try {
+            if (!state.flush()) {
+                Log.e(TAG, "Failed to save the store of script " + run.getScript().getName());
+            }
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Failed to save the store of script " + run.getScript().getName(), e);
+        }
+    }
+
+    /**
+     * Creates the lightweight scope a single run executes in. Its prototype is the sealed shared scope
+     * holding the standard objects, so only the bindings that are specific to this run get allocated
+     */
+    private Scriptable createRunScope(org.mozilla.javascript.Context cx) {
+        ScriptableObject sharedScope = getSharedScope(cx);
+        Scriptable scope = cx.newObject(sharedScope);
+        scope.setPrototype(sharedScope);
+        scope.setParentScope(null);
+        Scriptable env = cx.newObject(scope);
+        ScriptableObject.putProperty(env, "vars", cx.newObject(scope));
+        ScriptableObject.putProperty(scope, "env", env);
+        return scope;
+    }
+
+    private ScriptableObject getSharedScope(org.mozilla.javascript.Context cx) {
+        ScriptableObject sharedScope = mSharedScope;
+        if (sharedScope == null) {
+            synchronized (this) {
+                sharedScope = mSharedScope;
+                if (sharedScope == null) {
+                    // Initialize the standard objects (Object, Function, etc.) and seal them so that
+                    // no run can modify what the next one sees
+                    sharedScope = cx.initStandardObjects(null, true);
+                    // the host objects look up anything specific to a run through the context, so every run can share them
+                    FloHostObjects.install(sharedScope, floJsApi, floJsHelper, ctx);
+                    FloStdLib.install(cx, sharedScope, ctx);
+                    sharedScope.sealObject();
+                    mSharedScope = sharedScope;
+                }
+            }
+        }
+        return sharedScope;
+    }
+
+    /**
+     * @return the file which holds the report of the latest line profiled run of the script
+     */
+    public static File getLineProfileReport(Context ctx, Script script) {
+        String name = script.getId() != null ? "script_" + script.getId() : "script_unsaved";
+        return new File(new File(ctx.getFilesDir(), LINE_PROFILE_DIR), name + ".txt");
+    }
+
+    private void writeLineProfileReport(Script script, LineProfiler lineProfiler, long elapsedMs) {
+        File report = getLineProfileReport(ctx, script);
+        if (ResourceAndFileUtils.writeFile(report, lineProfiler.createReport(script, elapsedMs))) {
+            Log.d(TAG, "Wrote line profile of script " + script.getName() + " to " + report);
+        }
+    }
+
+    private org.mozilla.javascript.Script getCompiledScript(org.mozilla.javascript.Context cx, Script script) {
+        org.mozilla.javascript.Script compiled = mCompiledScripts.get(script);
+        if (compiled == null) {
+            if (isPrecompilable(script)) {
+                // after process death the stored form saves us parsing the source again
+                String sourceHash = PrecompiledScripts.sourceHash(cx, script.getSourceCode());
+                compiled = loadPrecompiledScript(script.getId(), sourceHash);
+                if (compiled == null) {
+                    compiled = compileScript(cx, script);
+                    storePrecompiledScript(script.getId(), sourceHash, compiled);
+                }
+            } else {
+                compiled = compileScript(cx, script);
+            }
+            mCompiledScripts.put(script, compiled);
+        }
+        return compiled;
+    }
+
+    /**
+     * Only saved diagram scripts have a row to store the compiled form in
+     */
+    private static boolean isPrecompilable(Script script) {
+        return script.getId() != null && Script.Type.FUNCTION == script.getType();
+    }
+
+    @Nullable
+    private org.mozilla.javascript.Script loadPrecompiledScript(long scriptId, String sourceHash) {
+        byte[] serialized;
+        try {
+            serialized = mScriptsDao.getCompiledForm(scriptId, sourceHash);
+        } catch (SQLiteException | IllegalStateException e) {
+            // a row that doesn't fit into the cursor window fails like this, compiling the source still works
+            Log.w(TAG, "Unable to load precompiled script " + scriptId + ": " + e.getMessage());
+            return null;
+        }
+        if (serialized == null) {
+            return null;
+        }
+        org.mozilla.javascript.Script compiled = PrecompiledScripts.deserialize(serialized);
+        if (compiled != null) {
+            Log.d(TAG, "Loaded precompiled script " + scriptId);
+        }
+        return compiled;
+    }
+
+    private void storePrecompiledScript(long scriptId, String sourceHash, org.mozilla.javascript.Script compiled) {
+        byte[] serialized = PrecompiledScripts.serialize(compiled);
+        if (serialized == null) {
+            return;
+        }
+        if (serialized.length > MAX_PRECOMPILED_BYTES) {
+            Log.d(TAG, "Not storing precompiled script " + scriptId + " of " + serialized.length + " bytes");
+            return;
+        }
+        try {
+            mScriptsDao.saveCompiledForm(scriptId, sourceHash, serialized);
+        } catch (SQLiteException e) {
+            // the stored form only saves time, the run goes on with what we just compiled
+            Log.w(TAG, "Unable to store precompiled script " + scriptId + ": " + e.getMessage());
+        }
+    }
+
+    private org.mozilla.javascript.Script compileScript(org.mozilla.javascript.Context cx, Script script) {
+        String code = script.getSourceCode();
+        if (Script.Type.FUNCTION == script.getType()) {
+            code = "(" + code + ")(env);";
+        }
+        return cx.compileString(code, "<test-script>", 1, null);
+    }
+
+    /**
+     * Connects a {@link NodeProgram} run to this engine. The rhino scope is only created if the program
+     * has to run an element in javascript
+     */
+    private final class ProgramRuntime implements NodeRuntime {
+        // roughly what the interpreter executes for a template element, so that budgets mean the same thing
+        private static final int NODE_INSTRUCTIONS = 200;
+
+        private final FloContextFactory.FloContext mCx;
+        private final ScriptRun mRun;
+        private final Map<String, Object> mVars = new HashMap<>();
+        @Nullable
+        private Scriptable mScope;
+
+        private ProgramRuntime(FloContextFactory.FloContext cx, ScriptRun run) {
+            this.mCx = cx;
+            this.mRun = run;
+        }
+
+        @Override
+        public Map<String, Object> getVars() {
+            return mVars;
+        }
+
+        @Override
+        public FloJsApi getApi() {
+            return floJsApi;
+        }
+
+        @Override
+        public void onNodeExecuted() {
+            mRun.onInstructionsExecuted(NODE_INSTRUCTIONS);
+        }
+
+        @Override
+        public org.mozilla.javascript.Script compileJs(String source, String sourceName) {
+            return mCx.compileString(source, sourceName, 1, null);
+        }
+
+        @Override
+        public Object execJs(org.mozilla.javascript.Script compiled) {
+            if (mScope == null) {
+                mScope = createRunScope(mCx);
+            }
+            Scriptable env = (Scriptable) ScriptableObject.getProperty(mScope, "env");
+            Scriptable jsVars = mCx.newObject(mScope);
+            for (Map.Entry<String, Object> var : mVars.entrySet()) {
+                ScriptableObject.putProperty(jsVars, var.getKey(), var.getValue());
+            }
+            ScriptableObject.putProperty(env, "vars", jsVars);
+            Object result = compiled.exec(mCx, mScope);
+            // the script may have replaced env.vars altogether, so we read it back from env
+            Object updatedVars = ScriptableObject.getProperty(env, "vars");
+            mVars.clear();
+            if (updatedVars instanceof Scriptable) {
+                Scriptable updated = (Scriptable) updatedVars;
+                for (Object id : updated.getIds()) {
+                    String key = id.toString();
+                    // rhino keeps keys like "1" as indexes
+                    Object value = id instanceof Integer
+                            ? ScriptableObject.getProperty(updated, (Integer) id)
+                            : ScriptableObject.getProperty(updated, key);
+                    if (value instanceof Number) {
+                        mVars.put(key, ((Number) value).doubleValue());
+                    } else if (value instanceof CharSequence) {
+                        mVars.put(key, value.toString());
+                    } else if (value != Undefined.instance && value != Scriptable.NOT_FOUND) {
+                        mVars.put(key, value);
+                    }
+                }
+            }
+            return result;
+        }
+    }
 }
@@ -0,0 +1,111 @@
+package com.premature.floscript.scripts.logic;
+
+import android.support.annotation.Nullable;
+
+import org.mozilla.javascript.ScriptRuntime;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.Undefined;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The outcome of a script run that finished. It holds what the script returned as a plain java value, how
+ * long the run took and the last {@link #MAX_LOG_LINES} lines the script logged through
+ * <code>floApi.logMessage</code> and <code>floApi.errorMessage</code>.
+ */
+public final class ScriptResult {
+
+    public static final int MAX_LOG_LINES = 100;
+
+    @Nullable
+    private final Object mValue;
+    private final long mDurationMs;
+    private final long mInstructionsExecuted;
+    private final List<String> mLogLines;
+    private final int mDroppedLogLines;
+
+    ScriptResult(@Nullable Object value, long durationMs, long instructionsExecuted, List<String> logLines,
+                 int droppedLogLines) {
+        this.mValue = value;
+        this.mDurationMs = durationMs;
+        this.mInstructionsExecuted = instructionsExecuted;
+        this.mLogLines = Collections.unmodifiableList(logLines);
+        this.mDroppedLogLines = droppedLogLines;
+    }
+
+    static ScriptResult of(ScriptRun run, @Nullable Object jsValue) {
+        return new ScriptResult(toJavaValue(jsValue), run.getElapsedMs(), run.getInstructionsExecuted(),
+                run.getLogLines(), run.getDroppedLogLines());
+    }
+
+    /**
+     * Booleans and strings stay what they are and every number becomes a {@link Double}. Objects and arrays
+     * are converted to their javascript string form, since nothing they reference may outlive the run
+     */
+    @Nullable
+    private static Object toJavaValue(@Nullable Object jsValue) {
+        if (jsValue == null || jsValue == Undefined.instance) {
+            return null;
+        }
+        if (jsValue instanceof Boolean || jsValue instanceof String) {
+            return jsValue;
+        }
+        if (jsValue instanceof Number) {
+            return ((Number) jsValue).doubleValue();
+        }
+        if (jsValue instanceof CharSequence || jsValue instanceof Scriptable) {
+            return ScriptRuntime.toString(jsValue);
+        }
+        return jsValue.toString();
+    }
+
+    /**
+     * @return a {@link Boolean}, {@link Double} or {@link String}, or <code>null</code> if the script
+     * returned nothing
+     */
+    @Nullable
+    public Object getValue() {
+        return mValue;
+    }
+
+    /**
+     * @return the value the way javascript would print it
+     */
+    public String getDisplayValue() {
+        return mValue == null ? "undefined" : ScriptRuntime.toString(mValue);
+    }
+
+    public long getDurationMs() {
+        return mDurationMs;
+    }
+
+    public long getInstructionsExecuted() {
+        return mInstructionsExecuted;
+    }
+
+    /**
+     * @return the newest log lines of the run, oldest first
+     */
+    public List<String> getLogLines() {
+        return mLogLines;
+    }
+
+    /**
+     * @return how many older log lines didn't fit into {@link #getLogLines()}
+     */
+    public int getDroppedLogLines() {
+        return mDroppedLogLines;
+    }
+
+    @Override
+    public String toString() {
+        return "ScriptResult{" +
+                "mValue=" + mValue +
+                ", mDurationMs=" + mDurationMs +
+                ", mInstructionsExecuted=" + mInstructionsExecuted +
+                ", mLogLines=" + mLogLines.size() +
+                ", mDroppedLogLines=" + mDroppedLogLines +
+                '}';
+    }
+}
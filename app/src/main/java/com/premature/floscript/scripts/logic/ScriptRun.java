@@ -0,0 +1,332 @@
+package com.premature.floscript.scripts.logic;
+
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The bookkeeping for a single execution of a {@link Script}. The {@link FloContextFactory} reports the
+ * instructions rhino executes to the run attached to the current context, which is where the limits from
+ * the {@link ScriptRunOptions} get enforced.
+ */
+final class ScriptRun {
+
+    private static final String TAG = "SCRIPT_RUN";
+
+    private final Script mScript;
+    private final ScriptRunOptions mOptions;
+    @Nullable
+    private final ProgressListener mProgressListener;
+    @Nullable
+    private final ExecutionProfile mProfile;
+    // the newest lines the script logged, only touched by the executing thread
+    private final Deque<String> mLogLines = new ArrayDeque<>();
+    private int mDroppedLogLines;
+    // attached the first time the script outputs a message, only touched by the executing thread
+    @Nullable
+    private NotificationDispatcher.Batch mNotifications;
+    // attached the first time the script uses floApi.store, only touched by the executing thread
+    @Nullable
+    private ScriptState mState;
+    private long mStartedNanos;
+    private long mInstructionsExecuted;
+    private long mBytesRead;
+    // files and the like the script opened, closed when the run ends. Only touched by the executing thread
+    private final List<Closeable> mResources = new ArrayList<>();
+    // set from whichever thread wants to stop the run, read by the thread executing it
+    private volatile boolean mCancelled;
+    // only runs executed with continuations can give up their thread in floApi.sleep and floApi.waitForEvent
+    private boolean mSuspendable;
+    // what a suspended run is waiting for, either a wall clock time or an event alias
+    private long mWakeAtMs;
+    @Nullable
+    private String mWakeEvent;
+    // the job a suspended run belongs to, which it keeps across suspensions
+    @Nullable
+    private String mJobName;
+    // the diagram variables the templates pass to floHelper, kept with the json they were parsed from
+    @Nullable
+    private String mGlobalsJson;
+    @Nullable
+    private Map<String, String> mGlobals;
+    // set for runs that are recorded or replayed, see ScriptEngine#recordScript
+    @Nullable
+    private ScriptTrace mTrace;
+
+    /**
+     * Notified on the executing thread every time rhino reports another batch of instructions
+     */
+    interface ProgressListener {
+        void onProgress(ScriptRun run);
+    }
+
+    ScriptRun(Script script, ScriptRunOptions options) {
+        this(script, options, null);
+    }
+
+    ScriptRun(Script script, ScriptRunOptions options, @Nullable ProgressListener progressListener) {
+        this(script, options, progressListener, null);
+    }
+
+    ScriptRun(Script script, ScriptRunOptions options, @Nullable ProgressListener progressListener,
+              @Nullable ExecutionProfile profile) {
+        this.mScript = script;
+        this.mOptions = options;
+        this.mProgressListener = progressListener;
+        this.mProfile = profile;
+        this.mStartedNanos = System.nanoTime();
+    }
+
+    /**
+     * Restart the clock, so that time a run spent queued up doesn't count towards its deadline
+     */
+    void start() {
+        mStartedNanos = System.nanoTime();
+    }
+
+    /**
+     * Ask the run to stop. It does so the next time rhino reports executed instructions
+     */
+    void cancel() {
+        mCancelled = true;
+    }
+
+    boolean isCancelled() {
+        return mCancelled;
+    }
+
+    Script getScript() {
+        return mScript;
+    }
+
+    ScriptRunOptions getOptions() {
+        return mOptions;
+    }
+
+    /**
+     * @return the profile the instrumented element functions of this run report to, if it is being profiled
+     */
+    @Nullable
+    ExecutionProfile getProfile() {
+        return mProfile;
+    }
+
+    boolean isSuspendable() {
+        return mSuspendable;
+    }
+
+    void setSuspendable(boolean suspendable) {
+        this.mSuspendable = suspendable;
+    }
+
+    @Nullable
+    String getJobName() {
+        return mJobName;
+    }
+
+    void setJobName(@Nullable String jobName) {
+        this.mJobName = jobName;
+    }
+
+    /**
+     * Remember that the run wants to be resumed once the wall clock reaches wakeAtMs
+     */
+    void suspendUntil(long wakeAtMs) {
+        this.mWakeAtMs = wakeAtMs;
+        this.mWakeEvent = null;
+    }
+
+    /**
+     * Remember that the run wants to be resumed once the event with this alias fires
+     */
+    void suspendUntilEvent(String eventAlias) {
+        this.mWakeAtMs = 0;
+        this.mWakeEvent = eventAlias;
+    }
+
+    long getWakeAtMs() {
+        return mWakeAtMs;
+    }
+
+    @Nullable
+    String getWakeEvent() {
+        return mWakeEvent;
+    }
+
+    /**
+     * Keep the line for the result of the run, dropping the oldest line once there are too many
+     */
+    void addLogLine(String line) {
+        mLogLines.addLast(line);
+        if (mLogLines.size() > ScriptResult.MAX_LOG_LINES) {
+            mLogLines.removeFirst();
+            mDroppedLogLines++;
+        }
+    }
+
+    List<String> getLogLines() {
+        return new ArrayList<>(mLogLines);
+    }
+
+    int getDroppedLogLines() {
+        return mDroppedLogLines;
+    }
+
+    @Nullable
+    ScriptTrace getTrace() {
+        return mTrace;
+    }
+
+    void setTrace(ScriptTrace trace) {
+        this.mTrace = trace;
+    }
+
+    /**
+     * The templates hand the same variables to every expansion until one of them changes, so the json is
+     * only parsed again when it differs from the last one
+     */
+    Map<String, String> getGlobals(String globalsJson) {
+        if (mGlobals == null || !globalsJson.equals(mGlobalsJson)) {
+            mGlobals = FloJsHelper.parseGlobals(globalsJson);
+            mGlobalsJson = globalsJson;
+        }
+        return mGlobals;
+    }
+
+    @Nullable
+    NotificationDispatcher.Batch getNotifications() {
+        return mNotifications;
+    }
+
+    void setNotifications(NotificationDispatcher.Batch notifications) {
+        this.mNotifications = notifications;
+    }
+
+    @Nullable
+    ScriptState getState() {
+        return mState;
+    }
+
+    void setState(ScriptState state) {
+        this.mState = state;
+    }
+
+    long getInstructionsExecuted() {
+        return mInstructionsExecuted;
+    }
+
+    long getElapsedMs() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - mStartedNanos);
+    }
+
+    /**
+     * Called from the instruction observer every time rhino executed another batch of instructions
+     *
+     * @throws CancelledError if the run was cancelled
+     * @throws BudgetExceededError if the run should not be allowed to continue
+     */
+    void onInstructionsExecuted(int instructionCount) {
+        if (mCancelled) {
+            throw new CancelledError();
+        }
+        mInstructionsExecuted += instructionCount;
+        if (mProgressListener != null) {
+            mProgressListener.onProgress(this);
+        }
+        if (mOptions.hasInstructionBudget() && mInstructionsExecuted > mOptions.getInstructionBudget()) {
+            throw new BudgetExceededError(ScriptBudgetExceededException.Budget.INSTRUCTIONS,
+                    mOptions.getInstructionBudget());
+        }
+        if (mOptions.hasWallDeadline()) {
+            long elapsedMs = getElapsedMs();
+            if (elapsedMs > mOptions.getWallDeadlineMs()) {
+                throw new BudgetExceededError(ScriptBudgetExceededException.Budget.WALL_TIME,
+                        mOptions.getWallDeadlineMs(), elapsedMs);
+            }
+        }
+    }
+
+    /**
+     * Called by the file readers of the run every time they read another chunk of a file
+     *
+     * @throws BudgetExceededError if the run read more than it is allowed to
+     */
+    void onBytesRead(long byteCount) {
+        mBytesRead += byteCount;
+        if (mOptions.hasReadByteBudget() && mBytesRead > mOptions.getReadByteBudget()) {
+            throw new BudgetExceededError(ScriptBudgetExceededException.Budget.READ_BYTES,
+                    mOptions.getReadByteBudget());
+        }
+    }
+
+    long getBytesRead() {
+        return mBytesRead;
+    }
+
+    /**
+     * Make sure the resource gets closed once the run is over, even if the script never closes it
+     */
+    void addResource(Closeable resource) {
+        mResources.add(resource);
+    }
+
+    /**
+     * Close everything the script left open
+     */
+    void closeResources() {
+        for (Closeable resource : mResources) {
+            try {
+                resource.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to close " + resource, e);
+            }
+        }
+        mResources.clear();
+    }
+
+    /**
+     * Unwinds the script stack once a limit was exceeded. This has to be an {@link Error} because rhino
+     * lets scripts catch anything that is an exception, which would let a misbehaving script swallow
+     * the abort and keep on running
+     */
+    final class BudgetExceededError extends Error {
+        private final ScriptBudgetExceededException.Budget mBudget;
+        private final long mLimit;
+        private final long mInstructionsAtAbort;
+        private final long mElapsedMsAtAbort;
+
+        private BudgetExceededError(ScriptBudgetExceededException.Budget budget, long limit) {
+            this(budget, limit, getElapsedMs());
+        }
+
+        private BudgetExceededError(ScriptBudgetExceededException.Budget budget, long limit, long elapsedMs) {
+            super("Script budget exceeded: " + budget);
+            this.mBudget = budget;
+            this.mLimit = limit;
+            this.mInstructionsAtAbort = mInstructionsExecuted;
+            this.mElapsedMsAtAbort = elapsedMs;
+        }
+
+        ScriptBudgetExceededException toException() {
+            return new ScriptBudgetExceededException(mBudget, mLimit, mInstructionsAtAbort, mElapsedMsAtAbort);
+        }
+    }
+
+    /**
+     * Unwinds the script stack of a cancelled run. Like {@link BudgetExceededError} it must not be
+     * catchable from the script
+     */
+    static final class CancelledError extends Error {
+        private CancelledError() {
+            super("Script run cancelled");
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package com.premature.floscript.scripts.logic;
+
+/**
+ * Receives the outcome of a script started with {@link ScriptEngine#runScriptAsync}. All methods are
+ * called on the main thread and exactly one of {@link #onResult}, {@link #onError} or {@link #onCancelled}
+ * is called for each run.
+ */
+public interface ScriptRunCallback {
+
+    /**
+     * Called periodically while the script is running
+     */
+    void onProgress(long instructionsExecuted, long elapsedMs);
+
+    void onResult(ScriptResult result);
+
+    void onError(ScriptExecutionException error);
+
+    void onCancelled();
+}
@@ -0,0 +1,116 @@
+package com.premature.floscript.scripts.logic;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.Nullable;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A handle to a script running in the background, returned by {@link ScriptEngine#runScriptAsync}.
+ * It relays what happens to the run to the {@link ScriptRunCallback} on the main thread.
+ */
+public final class ScriptRunHandle implements ScriptRun.ProgressListener {
+
+    // how often at most we bother the main thread with progress updates
+    private static final long PROGRESS_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(250);
+    private static final Handler MAIN_HANDLER = new Handler(Looper.getMainLooper());
+
+    private final ScriptRunCallback mCallback;
+    private final ScriptRun mRun;
+    private volatile boolean mDone;
+    // only touched by the thread executing the run
+    private long mLastProgressNanos;
+
+    ScriptRunHandle(Script script, ScriptRunOptions options, @Nullable ExecutionProfile profile, ScriptRunCallback callback) {
+        this.mCallback = callback;
+        this.mRun = new ScriptRun(script, options, this, profile);
+        this.mLastProgressNanos = System.nanoTime();
+    }
+
+    ScriptRun getRun() {
+        return mRun;
+    }
+
+    /**
+     * Stop the run. A script which hasn't started yet never starts and a running one is interrupted the
+     * next time the instruction observer fires. The callback then receives {@link ScriptRunCallback#onCancelled()},
+     * unless the run already finished
+     */
+    public void cancel() {
+        mRun.cancel();
+    }
+
+    public boolean isCancelled() {
+        return mRun.isCancelled();
+    }
+
+    /**
+     * @return true once the outcome of the run was delivered to the callback
+     */
+    public boolean isDone() {
+        return mDone;
+    }
+
+    @Override
+    public void onProgress(ScriptRun run) {
+        long now = System.nanoTime();
+        if (now - mLastProgressNanos < PROGRESS_INTERVAL_NANOS) {
+            return;
+        }
+        mLastProgressNanos = now;
+        final long instructions = run.getInstructionsExecuted();
+        final long elapsedMs = run.getElapsedMs();
+        MAIN_HANDLER.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!mDone && !mRun.isCancelled()) {
+                    mCallback.onProgress(instructions, elapsedMs);
+                }
+            }
+        });
+    }
+
+    void postResult(final ScriptResult result) {
+        MAIN_HANDLER.post(new Runnable() {
+            @Override
+            public void run() {
+                // a cancel from the main thread wins over a result that is still in flight
+                if (mRun.isCancelled()) {
+                    deliverCancelled();
+                } else {
+                    mDone = true;
+                    mCallback.onResult(result);
+                }
+            }
+        });
+    }
+
+    void postError(final ScriptExecutionException error) {
+        MAIN_HANDLER.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mRun.isCancelled()) {
+                    deliverCancelled();
+                } else {
+                    mDone = true;
+                    mCallback.onError(error);
+                }
+            }
+        });
+    }
+
+    void postCancelled() {
+        MAIN_HANDLER.post(new Runnable() {
+            @Override
+            public void run() {
+                deliverCancelled();
+            }
+        });
+    }
+
+    private void deliverCancelled() {
+        mDone = true;
+        mCallback.onCancelled();
+    }
+}
@@ -0,0 +1,154 @@
+package com.premature.floscript.scripts.logic;
+
+/**
+ * The limits a single execution of a {@link Script} runs under. A limit of {@link #NO_LIMIT} switches
+ * that particular check off. The options also decide whether the run is line profiled.
+ * <p/>
+ * Usage:
+ * <br />
+ * <code>
+ * ScriptRunOptions options = ScriptRunOptions.builder().withInstructionBudget(..).withWallDeadline(..).build();
+ * </code>
+ */
+public final class ScriptRunOptions {
+
+    public static final long NO_LIMIT = 0;
+    public static final long DEFAULT_INSTRUCTION_BUDGET = 5000000;
+    public static final long DEFAULT_WALL_DEADLINE_MS = 30000;
+    public static final long DEFAULT_READ_BYTE_BUDGET = 128 * 1024 * 1024;
+    public static final ScriptRunOptions DEFAULT = builder().build();
+
+    private final long mInstructionBudget;
+    private final long mWallDeadlineMs;
+    private final long mReadByteBudget;
+    private final boolean mLineProfiling;
+
+    private ScriptRunOptions(long instructionBudget, long wallDeadlineMs, long readByteBudget, boolean lineProfiling) {
+        this.mInstructionBudget = instructionBudget;
+        this.mWallDeadlineMs = wallDeadlineMs;
+        this.mReadByteBudget = readByteBudget;
+        this.mLineProfiling = lineProfiling;
+    }
+
+    /**
+     * @return the number of interpreted instructions a run may execute before it is aborted
+     */
+    public long getInstructionBudget() {
+        return mInstructionBudget;
+    }
+
+    /**
+     * @return the number of milliseconds a run may take before it is aborted
+     */
+    public long getWallDeadlineMs() {
+        return mWallDeadlineMs;
+    }
+
+    /**
+     * @return the number of bytes a run may read from files through <code>floApi</code> before it is aborted
+     */
+    public long getReadByteBudget() {
+        return mReadByteBudget;
+    }
+
+    /**
+     * @return <code>true</code> if the time spent on each line of the script should be recorded. Such runs
+     * are slower and write a report into the {@link ScriptEngine#getLineProfileReport line profile directory}
+     */
+    public boolean isLineProfiling() {
+        return mLineProfiling;
+    }
+
+    public boolean hasInstructionBudget() {
+        return mInstructionBudget != NO_LIMIT;
+    }
+
+    public boolean hasWallDeadline() {
+        return mWallDeadlineMs != NO_LIMIT;
+    }
+
+    public boolean hasReadByteBudget() {
+        return mReadByteBudget != NO_LIMIT;
+    }
+
+    public Builder toBuilder() {
+        return builder().withInstructionBudget(mInstructionBudget).withWallDeadline(mWallDeadlineMs)
+                .withReadByteBudget(mReadByteBudget).withLineProfiling(mLineProfiling);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        ScriptRunOptions that = (ScriptRunOptions) o;
+        return mInstructionBudget == that.mInstructionBudget && mWallDeadlineMs == that.mWallDeadlineMs
+                && mReadByteBudget == that.mReadByteBudget && mLineProfiling == that.mLineProfiling;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = (int) (mInstructionBudget ^ (mInstructionBudget >>> 32));
+        result = 31 * result + (int) (mWallDeadlineMs ^ (mWallDeadlineMs >>> 32));
+        result = 31 * result + (int) (mReadByteBudget ^ (mReadByteBudget >>> 32));
+        result = 31 * result + (mLineProfiling ? 1 : 0);
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "ScriptRunOptions{" +
+                "mInstructionBudget=" + mInstructionBudget +
+                ", mWallDeadlineMs=" + mWallDeadlineMs +
+                ", mReadByteBudget=" + mReadByteBudget +
+                ", mLineProfiling=" + mLineProfiling +
+                '}';
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public static class Builder {
+        private long mInstructionBudget = DEFAULT_INSTRUCTION_BUDGET;
+        private long mWallDeadlineMs = DEFAULT_WALL_DEADLINE_MS;
+        private long mReadByteBudget = DEFAULT_READ_BYTE_BUDGET;
+        private boolean mLineProfiling = false;
+
+        private Builder() {
+        }
+
+        public Builder withInstructionBudget(long instructionBudget) {
+            if (instructionBudget < 0) {
+                throw new IllegalArgumentException("Instruction budget cannot be negative " + instructionBudget);
+            }
+            mInstructionBudget = instructionBudget;
+            return this;
+        }
+
+        public Builder withWallDeadline(long wallDeadlineMs) {
+            if (wallDeadlineMs < 0) {
+                throw new IllegalArgumentException("Wall deadline cannot be negative " + wallDeadlineMs);
+            }
+            mWallDeadlineMs = wallDeadlineMs;
+            return this;
+        }
+
+        public Builder withReadByteBudget(long readByteBudget) {
+            if (readByteBudget < 0) {
+                throw new IllegalArgumentException("Read byte budget cannot be negative " + readByteBudget);
+            }
+            mReadByteBudget = readByteBudget;
+            return this;
+        }
+
+        public Builder withLineProfiling(boolean lineProfiling) {
+            mLineProfiling = lineProfiling;
+            return this;
+        }
+
+        public ScriptRunOptions build() {
+            return new ScriptRunOptions(mInstructionBudget, mWallDeadlineMs, mReadByteBudget, mLineProfiling);
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package com.premature.floscript.scripts.logic;
+
+import android.support.annotation.Nullable;
+
+import com.premature.floscript.db.ScriptStateDao;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The values one script keeps between its runs. Reads and writes only touch memory, the changes are
+ * written back to the database when a run that used the state {@link #flush() flushes} it at its end.
+ * <p/>
+ * The values are kept as json text so that a script can never hold on to an object another run sees.
+ */
+final class ScriptState {
+
+    private final String mNamespace;
+    private final ScriptStateDao mDao;
+    // loaded on first use
+    @Nullable
+    private Map<String, String> mValues;
+    // the keys changed since the last flush, a null value marks a removed key
+    private final Map<String, String> mChanged = new HashMap<>();
+    // keeps concurrent flushes from reaching the database in a different order than they took their changes
+    private final Object mFlushLock = new Object();
+
+    ScriptState(String namespace, ScriptStateDao dao) {
+        this.mNamespace = namespace;
+        this.mDao = dao;
+    }
+
+    @Nullable
+    synchronized String get(String key) {
+        return values().get(key);
+    }
+
+    synchronized void put(String key, String json) {
+        values().put(key, json);
+        mChanged.put(key, json);
+    }
+
+    synchronized void remove(String key) {
+        values().remove(key);
+        mChanged.put(key, null);
+    }
+
+    /**
+     * Write the changes made since the last flush to the database. Changes that couldn't be written are kept
+     * for the next flush
+     *
+     * @return false if the changes couldn't be written
+     */
+    boolean flush() {
+        synchronized (mFlushLock) {
+            Map<String, String> changed;
+            synchronized (this) {
+                if (mChanged.isEmpty()) {
+                    return true;
+                }
+                changed = new HashMap<>(mChanged);
+            }
+            if (!mDao.saveValues(mNamespace, changed)) {
+                return false;
+            }
+            synchronized (this) {
+                // another run may have changed some of the keys again while we were writing
+                for (Map.Entry<String, String> change : changed.entrySet()) {
+                    String key = change.getKey();
+                    if (mChanged.containsKey(key) && equal(mChanged.get(key), change.getValue())) {
+                        mChanged.remove(key);
+                    }
+                }
+            }
+            return true;
+        }
+    }
+
+    private static boolean equal(@Nullable String first, @Nullable String second) {
+        return first == null ? second == null : first.equals(second);
+    }
+
+    private Map<String, String> values() {
+        if (mValues == null) {
+            mValues = mDao.getValues(mNamespace);
+        }
+        return mValues;
+    }
+}
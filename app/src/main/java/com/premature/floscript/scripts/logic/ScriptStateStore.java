@@ -0,0 +1,51 @@
+package com.premature.floscript.scripts.logic;
+
+import android.content.Context;
+
+import com.premature.floscript.db.ScriptStateDao;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Hands out the {@link ScriptState} of each script. There is one store per process so that all the engines,
+ * and therefore all the concurrently running jobs, see the same values.
+ */
+public final class ScriptStateStore {
+
+    private static ScriptStateStore sInstance;
+
+    private final ScriptStateDao mDao;
+    private final Map<String, ScriptState> mStates = new HashMap<>();
+
+    private ScriptStateStore(Context ctx) {
+        this.mDao = new ScriptStateDao(ctx);
+    }
+
+    public static synchronized ScriptStateStore getInstance(Context ctx) {
+        if (sInstance == null) {
+            sInstance = new ScriptStateStore(ctx.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * The state is shared by all scripts with the same name, which for diagrams means by all the saved
+     * versions of the diagram
+     */
+    synchronized ScriptState forScript(Script script) {
+        ScriptState state = mStates.get(script.getName());
+        if (state == null) {
+            state = new ScriptState(script.getName(), mDao);
+            mStates.put(script.getName(), state);
+        }
+        return state;
+    }
+
+    /**
+     * Forget everything read from the database. This should be called whenever the state table is cleared
+     */
+    public synchronized void invalidateAll() {
+        mStates.clear();
+    }
+}
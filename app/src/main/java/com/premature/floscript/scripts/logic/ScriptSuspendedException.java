@@ -0,0 +1,28 @@
+package com.premature.floscript.scripts.logic;
+
+import java.util.Date;
+
+/**
+ * Thrown when a script run didn't finish because it suspended itself to wait for a time or an event.
+ * The run was saved and whoever started it is responsible for scheduling its resumption.
+ */
+public class ScriptSuspendedException extends ScriptExecutionException {
+
+    private final SuspendedRun mSuspendedRun;
+
+    public ScriptSuspendedException(SuspendedRun suspendedRun) {
+        super(describe(suspendedRun));
+        this.mSuspendedRun = suspendedRun;
+    }
+
+    private static String describe(SuspendedRun suspendedRun) {
+        if (suspendedRun.getWakeEvent() != null) {
+            return "Script was suspended until the event " + suspendedRun.getWakeEvent();
+        }
+        return "Script was suspended until " + new Date(suspendedRun.getWakeAtMs());
+    }
+
+    public SuspendedRun getSuspendedRun() {
+        return mSuspendedRun;
+    }
+}
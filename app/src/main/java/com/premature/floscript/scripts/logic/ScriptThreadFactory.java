@@ -0,0 +1,38 @@
+package com.premature.floscript.scripts.logic;
+
+import android.os.Process;
+import android.support.annotation.NonNull;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Makes background threads meant for running scripts. Each thread enters a rhino context from the
+ * {@link FloContextFactory} once and keeps it for its whole life, so the scripts executed on a pooled
+ * thread reuse that context instead of creating and tearing down a new one for every run.
+ */
+public final class ScriptThreadFactory implements ThreadFactory {
+
+    private final String mNamePrefix;
+    private final AtomicInteger mThreadCount = new AtomicInteger(1);
+
+    public ScriptThreadFactory(String namePrefix) {
+        this.mNamePrefix = namePrefix;
+    }
+
+    @Override
+    public Thread newThread(@NonNull final Runnable runnable) {
+        return new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                FloContextFactory.getInstance().enterContext();
+                try {
+                    runnable.run();
+                } finally {
+                    org.mozilla.javascript.Context.exit();
+                }
+            }
+        }, mNamePrefix + "-" + mThreadCount.getAndIncrement());
+    }
+}
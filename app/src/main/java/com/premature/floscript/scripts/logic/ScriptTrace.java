@@ -0,0 +1,284 @@
+package com.premature.floscript.scripts.logic;
+
+import android.support.annotation.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Everything a run took in from outside of the script: the host calls it made with what they returned, and
+ * each read of the clock or of <code>Math.random</code>. A recorded trace lets
+ * {@link ScriptEngine#replayScript} run the script again with exactly the same inputs and without any of
+ * the side effects of the host calls.
+ * <p/>
+ * Calls to host functions that only compute something from their arguments, like the number buffers, are
+ * kept without their value. The replay runs them for real and only checks that they come in the same order.
+ */
+final class ScriptTrace {
+
+    // bump this whenever the file layout or the meaning of the host function ids changes
+    private static final int FORMAT_VERSION = 1;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // the function ids of the entries that aren't host calls
+    static final int CLOCK = -1;
+    static final int RANDOM = -2;
+
+    static final byte VALUE_NONE = 0;
+    static final byte VALUE_UNDEFINED = 1;
+    static final byte VALUE_NULL = 2;
+    static final byte VALUE_TRUE = 3;
+    static final byte VALUE_FALSE = 4;
+    static final byte VALUE_NUMBER = 5;
+    static final byte VALUE_STRING = 6;
+    static final byte VALUE_JSON = 7;
+    // the handles returned by floApi.readLines/readRecords and floApi.query, whose contents are the
+    // values of the calls made on them
+    static final byte VALUE_RECORDS = 8;
+    static final byte VALUE_ROWS = 9;
+    // the host call threw an error with the text as its message
+    static final byte VALUE_ERROR = 10;
+
+    private final boolean mReplaying;
+    @Nullable
+    private String mSourceHash;
+    private final List<Entry> mEntries;
+    private int mNextEntry;
+
+    private ScriptTrace(boolean replaying, @Nullable String sourceHash, List<Entry> entries) {
+        this.mReplaying = replaying;
+        this.mSourceHash = sourceHash;
+        this.mEntries = entries;
+    }
+
+    static ScriptTrace forRecording() {
+        return new ScriptTrace(false, null, new ArrayList<Entry>());
+    }
+
+    /**
+     * @return the trace of the run on the context's thread, or null if the run isn't recorded or replayed
+     */
+    @Nullable
+    static ScriptTrace current(org.mozilla.javascript.Context cx) {
+        ScriptRun run = cx instanceof FloContextFactory.FloContext ? ((FloContextFactory.FloContext) cx).getRun() : null;
+        return run != null ? run.getTrace() : null;
+    }
+
+    boolean isReplaying() {
+        return mReplaying;
+    }
+
+    /**
+     * Ties the trace to the source it is recorded from, or checks that a replay runs the same source
+     *
+     * @return false if the trace was recorded from a different source
+     */
+    boolean bindSource(String sourceHash) {
+        if (!mReplaying) {
+            mSourceHash = sourceHash;
+            return true;
+        }
+        return sourceHash.equals(mSourceHash);
+    }
+
+    /**
+     * Reserve the entry of a host call before the call is made, so the entries stay in the order the calls
+     * were started in even if the call runs script code of its own
+     *
+     * @return the slot to pass to {@link #completeCall}
+     */
+    int beginCall(int functionId) {
+        mEntries.add(new Entry(functionId, VALUE_NONE, 0, null));
+        return mEntries.size() - 1;
+    }
+
+    void completeCall(int slot, byte valueType, double number, @Nullable String text) {
+        mEntries.set(slot, new Entry(mEntries.get(slot).mFunctionId, valueType, number, text));
+    }
+
+    void addClock(long timeMs) {
+        mEntries.add(new Entry(CLOCK, VALUE_NUMBER, timeMs, null));
+    }
+
+    void addRandom(double random) {
+        mEntries.add(new Entry(RANDOM, VALUE_NUMBER, random, null));
+    }
+
+    /**
+     * @return the next entry of the replay, which has to be for the given function
+     */
+    Entry take(int functionId) {
+        if (mNextEntry >= mEntries.size()) {
+            throw new DivergedError("the script made more calls than the " + mEntries.size() + " recorded");
+        }
+        Entry entry = mEntries.get(mNextEntry);
+        if (entry.mFunctionId != functionId) {
+            throw new DivergedError("entry " + mNextEntry + " was recorded for " + describe(entry.mFunctionId)
+                    + " but the script called " + describe(functionId));
+        }
+        mNextEntry++;
+        return entry;
+    }
+
+    /**
+     * @return the number of recorded entries a replay didn't get to
+     */
+    int getRemainingEntries() {
+        return mReplaying ? mEntries.size() - mNextEntry : 0;
+    }
+
+    int getEntryCount() {
+        return mEntries.size();
+    }
+
+    private static String describe(int functionId) {
+        switch (functionId) {
+            case CLOCK:
+                return "the clock";
+            case RANDOM:
+                return "Math.random";
+            default:
+                return "host function " + functionId;
+        }
+    }
+
+    void write(File file) throws IOException {
+        File dir = file.getParentFile();
+        if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Unable to create " + dir);
+        }
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new GZIPOutputStream(new FileOutputStream(file))));
+        try {
+            out.writeInt(FORMAT_VERSION);
+            writeString(out, mSourceHash != null ? mSourceHash : "");
+            out.writeInt(mEntries.size());
+            for (Entry entry : mEntries) {
+                out.writeInt(entry.mFunctionId);
+                out.writeByte(entry.mValueType);
+                if (entry.mValueType == VALUE_NUMBER) {
+                    out.writeDouble(entry.mNumber);
+                } else if (hasText(entry.mValueType)) {
+                    writeString(out, entry.mText);
+                }
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * @return the trace in the file, ready to be replayed
+     */
+    static ScriptTrace read(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new GZIPInputStream(new FileInputStream(file))));
+        try {
+            int version = in.readInt();
+            if (version != FORMAT_VERSION) {
+                throw new IOException("Unsupported trace format " + version);
+            }
+            String sourceHash = readString(in);
+            int count = in.readInt();
+            if (count < 0) {
+                throw new IOException("Corrupt trace with " + count + " entries");
+            }
+            List<Entry> entries = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                int functionId = in.readInt();
+                byte valueType = in.readByte();
+                double number = 0;
+                String text = null;
+                if (valueType == VALUE_NUMBER) {
+                    number = in.readDouble();
+                } else if (hasText(valueType)) {
+                    text = readString(in);
+                }
+                entries.add(new Entry(functionId, valueType, number, text));
+            }
+            return new ScriptTrace(true, sourceHash, entries);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static boolean hasText(byte valueType) {
+        return valueType == VALUE_STRING || valueType == VALUE_JSON || valueType == VALUE_ERROR;
+    }
+
+    // writeUTF can't hold more than 64k, which a line of a file easily exceeds
+    private static void writeString(DataOutputStream out, String text) throws IOException {
+        byte[] bytes = text.getBytes(UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            throw new IOException("Corrupt trace with a string of length " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    @Override
+    public String toString() {
+        return "ScriptTrace{" +
+                "mReplaying=" + mReplaying +
+                ", mSourceHash='" + mSourceHash + '\'' +
+                ", mEntries=" + mEntries.size() +
+                ", mNextEntry=" + mNextEntry +
+                '}';
+    }
+
+    static final class Entry {
+        private final int mFunctionId;
+        private final byte mValueType;
+        private final double mNumber;
+        @Nullable
+        private final String mText;
+
+        private Entry(int functionId, byte valueType, double number, @Nullable String text) {
+            this.mFunctionId = functionId;
+            this.mValueType = valueType;
+            this.mNumber = number;
+            this.mText = text;
+        }
+
+        byte getValueType() {
+            return mValueType;
+        }
+
+        double getNumber() {
+            return mNumber;
+        }
+
+        @Nullable
+        String getText() {
+            return mText;
+        }
+    }
+
+    /**
+     * Aborts a replay which made different calls than the recorded run. Like the budget errors of
+     * {@link ScriptRun} it is an {@link Error}, so the script can't catch it
+     */
+    static final class DivergedError extends Error {
+        private DivergedError(String message) {
+            super(message);
+        }
+    }
+}
@@ -21,6 +21,7 @@ public final class Scripts {
     }
 
     public static final Script ENTRY_POINT_SCRIPT = new Script("", "entryFunction");
+    public static final int NOT_PROFILED = -1;
 
     public static List<Script> getPreinstalledScripts(Context ctx) {
         List<Script> scripts = new ArrayList<>();
@@ -34,11 +35,80 @@ public final class Scripts {
 
     public static String createFunctionWrapper(Script codeToWrap, String functionName, @Nullable String yesOrDefaultScript, @Nullable String noScript)
             throws ScriptCompilationException {
+        return createFunctionWrapper(codeToWrap, functionName, yesOrDefaultScript, noScript, NOT_PROFILED);
+    }
+
+    /**
+     * Like {@link #createFunctionWrapper(Script, String, String, String)} but when a profile index is provided
+     * the function also reports entering and leaving to <code>floProfiler</code> under that index
+     */
+    public static String createFunctionWrapper(Script codeToWrap, String functionName, @Nullable String yesOrDefaultScript, @Nullable String noScript,
+                                               int profileIndex) throws ScriptCompilationException {
+        return createFunctionHeader(functionName)
+                + createFunctionBody(codeToWrap, functionName, yesOrDefaultScript, noScript, profileIndex);
+    }
+
+    /**
+     * Wraps the element code for a diagram whose control flow is generated as structured javascript. Instead
+     * of scheduling its successor with <code>env.execute</code> the function leaves the choice to its caller,
+     * to whom a branching element returns its <code>result</code>
+     */
+    public static String createStructuredFunctionWrapper(Script codeToWrap, String functionName, boolean hasSuccessor,
+                                                         boolean isBranch, int profileIndex) throws ScriptCompilationException {
+        return createFunctionHeader(functionName)
+                + createStructuredFunctionBody(codeToWrap, functionName, hasSuccessor, isBranch, profileIndex);
+    }
+
+    static String createFunctionHeader(String functionName) {
+        return "function " + functionName + " (env) {\n";
+    }
+
+    /**
+     * @return what {@link #createFunctionWrapper(Script, String, String, String, int)} puts after the
+     * {@link #createFunctionHeader function header}
+     */
+    static String createFunctionBody(Script codeToWrap, String functionName, @Nullable String yesOrDefaultScript,
+                                     @Nullable String noScript, int profileIndex) throws ScriptCompilationException {
+        StringBuilder bob = openFunction(codeToWrap, functionName, yesOrDefaultScript != null, profileIndex);
+        if (yesOrDefaultScript != null && noScript != null) {
+            bob.append("  if (result === true) { ").append("\n")
+                    .append("    env.execute(" + yesOrDefaultScript).append(");").append("\n")
+                    .append("  }").append("\n");
+            bob.append("  else if (result === false) { ").append("\n")
+                    .append("    env.execute(" + noScript).append(");").append("\n")
+                    .append("  }").append("\n");
+        } else if (yesOrDefaultScript != null) {
+            bob.append("  env.execute(" + yesOrDefaultScript).append(");").append("\n");
+        } else {
+            ;
+        }
+        return closeFunction(bob, profileIndex);
+    }
+
+    /**
+     * @return what {@link #createStructuredFunctionWrapper} puts after the {@link #createFunctionHeader function
+     * header}, which unlike the body of the trampolined function doesn't mention the successors
+     */
+    static String createStructuredFunctionBody(Script codeToWrap, String functionName, boolean hasSuccessor,
+                                               boolean isBranch, int profileIndex) throws ScriptCompilationException {
+        StringBuilder bob = openFunction(codeToWrap, functionName, hasSuccessor, profileIndex);
+        if (isBranch) {
+            bob.append("  return result;\n");
+        }
+        return closeFunction(bob, profileIndex);
+    }
+
+    private static StringBuilder openFunction(Script codeToWrap, String functionName, boolean hasSuccessor, int profileIndex)
+            throws ScriptCompilationException {
         if (codeToWrap == null) {
             throw new ScriptCompilationException(CompilationErrorCode.ELEMENT_WITHOUT_SCRIPT, "[" + functionName + "]");
         }
-        StringBuilder bob = new StringBuilder("function " + functionName + " (env) {\n");
-        if (yesOrDefaultScript != null) {
+        StringBuilder bob = new StringBuilder();
+        if (profileIndex != NOT_PROFILED) {
+            // the finally makes sure the time is recorded even when the element code throws
+            bob.append("  floProfiler.enter(").append(profileIndex).append(");\n  try {\n");
+        }
+        if (hasSuccessor) {
             bob.append("  var result = true;\n");
         }
         if (codeToWrap.getVariables() != null && !codeToWrap.getVariables().isEmpty()) {
@@ -54,17 +124,12 @@ public final class Scripts {
             }
             bob.append("\n");
         }
-        if (yesOrDefaultScript != null && noScript != null) {
-            bob.append("  if (result === true) { ").append("\n")
-                    .append("    env.execute(" + yesOrDefaultScript).append(");").append("\n")
-                    .append("  }").append("\n");
-            bob.append("  else if (result === false) { ").append("\n")
-                    .append("    env.execute(" + noScript).append(");").append("\n")
-                    .append("  }").append("\n");
-        } else if (yesOrDefaultScript != null) {
-            bob.append("  env.execute(" + yesOrDefaultScript).append(");").append("\n");
-        } else {
-            ;
+        return bob;
+    }
+
+    private static String closeFunction(StringBuilder bob, int profileIndex) {
+        if (profileIndex != NOT_PROFILED) {
+            bob.append("  } finally {\n    floProfiler.exit(").append(profileIndex).append(");\n  }\n");
         }
         bob.append("}").append("\n");
         return bob.toString();
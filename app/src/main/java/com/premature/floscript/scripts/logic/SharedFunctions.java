@@ -0,0 +1,133 @@
+package com.premature.floscript.scripts.logic;
+
+import android.support.annotation.Nullable;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * Emits the code that several elements of a diagram share, which is what a template used in many places
+ * turns into, only once as a function that takes the variables as a parameter. Each of the elements then
+ * calls that function with its own variables instead of carrying a copy of the code.
+ * <p/>
+ * The shared function is named after its code rather than after where it first appears, so that adding or
+ * removing elements doesn't rename the shared functions the other elements call.
+ */
+final class SharedFunctions {
+
+    // leaving the function or looking at its arguments means something else once the code has its own function
+    private static final Pattern NEEDS_ELEMENT_FUNCTION = Pattern.compile("\\b(return|arguments)\\b");
+    // shorter code isn't any bigger than the call that would replace it
+    private static final int MIN_SHARED_LENGTH = 64;
+
+    // the call sites are held weakly, they go away with the scripts of the elements. A script used by elements
+    // with and without a successor has a call site for each, indexed by whether there is a successor
+    private final Map<Script, CallSite[]> mCallSites = new WeakHashMap<>();
+
+    /**
+     * Appends the shared functions for the code that more than one of the scripts has
+     *
+     * @return the name of the shared function each script should call, <code>null</code> for the scripts that
+     * keep their own code
+     */
+    String[] emit(Script[] scripts, StringBuilder code) {
+        String[] keys = new String[scripts.length];
+        Map<String, Integer> uses = new HashMap<>();
+        for (int i = 0; i < scripts.length; i++) {
+            if (canShare(scripts[i])) {
+                keys[i] = keyOf(scripts[i]);
+                Integer count = uses.get(keys[i]);
+                uses.put(keys[i], count == null ? 1 : count + 1);
+            }
+        }
+        String[] result = new String[scripts.length];
+        Map<String, String> namesByKey = new HashMap<>();
+        Map<String, String> keysByName = new HashMap<>();
+        for (int i = 0; i < scripts.length; i++) {
+            if (keys[i] == null || uses.get(keys[i]) < 2) {
+                continue;
+            }
+            String name = namesByKey.get(keys[i]);
+            if (name == null) {
+                String hash = Integer.toHexString(keys[i].hashCode());
+                name = "shared_" + hash;
+                // two different pieces of code with the same hash code
+                for (int suffix = 1; keysByName.containsKey(name); suffix++) {
+                    name = "shared_" + hash + "_" + suffix;
+                }
+                namesByKey.put(keys[i], name);
+                keysByName.put(name, keys[i]);
+                appendFunction(scripts[i], name, code);
+            }
+            result[i] = name;
+        }
+        return result;
+    }
+
+    /**
+     * @return a script that calls the shared function with the variables of the script, which is the same
+     * object for as long as the script and the call stay the same
+     */
+    Script callSite(Script script, String sharedName, boolean hasSuccessor) {
+        CallSite[] callSites = mCallSites.get(script);
+        if (callSites == null) {
+            callSites = new CallSite[2];
+            mCallSites.put(script, callSites);
+        }
+        int index = hasSuccessor ? 1 : 0;
+        if (callSites[index] == null || !callSites[index].matches(script, sharedName)) {
+            callSites[index] = new CallSite(script, sharedName, hasSuccessor);
+        }
+        return callSites[index].mScript;
+    }
+
+    private static boolean canShare(@Nullable Script script) {
+        if (script == null || script.getSourceCode().length() < MIN_SHARED_LENGTH) {
+            return false;
+        }
+        // the code of a function script is a function already, what happens in it stays in it
+        return script.getType() == Script.Type.FUNCTION
+                || !NEEDS_ELEMENT_FUNCTION.matcher(script.getSourceCode()).find();
+    }
+
+    private static String keyOf(Script script) {
+        return (script.getType() == Script.Type.FUNCTION ? "f" : "c") + script.getSourceCode();
+    }
+
+    private static void appendFunction(Script script, String name, StringBuilder code) {
+        code.append("function ").append(name).append(" (env, vars, result) {\n");
+        if (script.getType() == Script.Type.FUNCTION) {
+            code.append("(").append(script.getSourceCode()).append(")(env);\n");
+        } else {
+            code.append(script.getSourceCode()).append("\n");
+        }
+        code.append("  return result;\n}\n");
+    }
+
+    private static final class CallSite {
+        @Nullable
+        private final String mVariables;
+        private final String mSharedName;
+        private final Script mScript;
+
+        private CallSite(Script script, String sharedName, boolean hasSuccessor) {
+            this.mVariables = script.getVariables();
+            this.mSharedName = sharedName;
+            String variables = script.getVariables() != null && !script.getVariables().isEmpty()
+                    ? script.getVariables() : "undefined";
+            // only an element with a successor declares result, the others don't care what the code sets it to
+            String call = hasSuccessor
+                    ? "  result = " + sharedName + "(env, " + variables + ", result);"
+                    : "  " + sharedName + "(env, " + variables + ");";
+            this.mScript = new Script(call, script.getName(), Script.Type.BLOCK, null, null, script.getDescription());
+        }
+
+        private boolean matches(Script script, String sharedName) {
+            String variables = script.getVariables();
+            return (mVariables == null ? variables == null : mVariables.equals(variables))
+                    && mSharedName.equals(sharedName);
+        }
+    }
+}
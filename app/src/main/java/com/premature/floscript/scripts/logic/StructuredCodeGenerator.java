@@ -0,0 +1,566 @@
+package com.premature.floscript.scripts.logic;
+
+import android.support.annotation.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Generates the control flow between the element functions of a diagram as plain javascript
+ * <code>if</code>/<code>else</code> and <code>while</code> statements, so the script calls each element
+ * directly instead of pushing it onto the <code>function_stack</code> of the script shell.
+ * <p/>
+ * This follows "Beyond Relooper" (N. Ramsey, 2022). Walking the dominator tree, an element that can be
+ * reached along more than one forward arrow gets a labeled block, whose end it follows, and the loop
+ * headers get a labeled <code>while (true)</code>. An element that a loop exits to is placed after the loop,
+ * following a labeled block around it, so that loops one after the other don't nest. An arrow then either
+ * runs the element it points to in place, breaks out of the block that element follows, or continues the
+ * loop that element heads. This
+ * works for every diagram whose loops have a single entry, which is what any diagram drawn with
+ * decisions and arrows back to them looks like. Diagrams that jump into the middle of a loop get
+ * <code>null</code> and have to use the script shell.
+ * <p/>
+ * Everything is done with explicit stacks, since the diagrams can be far deeper than the java stack. A
+ * decision nests the smaller of its branches, so that the code of long chains of decisions stays flat.
+ */
+final class StructuredCodeGenerator {
+
+    // where control goes when it falls off the end of the code, beyond the last element
+    private static final int END = -2;
+    // for code that mustn't fall off its end, since other code follows it
+    private static final int EXPLICIT = -3;
+    private static final String INDENT = "  ";
+    // deeper code isn't indented any further, so that the indentation can't dwarf the code
+    private static final int MAX_INDENT = 16;
+    // the rhino parser recurses once per nested statement, so deeper code is left to the script shell
+    private static final int MAX_NESTING = 100;
+
+    private final ControlFlowGraph mGraph;
+    private final String[] mFunctionNames;
+    // reverse postorder number of each element
+    private final int[] mRpo;
+    private final int[] mIdom;
+    private final boolean[] mLoopHeader;
+    private final boolean[] mMergeNode;
+    // the dominator tree children that are merge nodes, the one latest in reverse postorder first
+    private final int[][] mMergeChildren;
+    // the innermost loop header of each element, which is the element itself for a header
+    private final int[] mLoopOf;
+    // the header of the loop each loop is nested in
+    private final int[] mParentLoop;
+    // the header of the outermost loop an element is the exit of, the element follows that loop
+    private final int[] mExitOf;
+    // the exits each loop header is followed by, the one latest in reverse postorder first
+    private final int[][] mExitChildren;
+    // the number of elements each element dominates, itself included
+    private final int[] mSubtreeSizes;
+
+    private StructuredCodeGenerator(ControlFlowGraph graph, String[] functionNames) {
+        int size = graph.size();
+        this.mGraph = graph;
+        this.mFunctionNames = functionNames;
+        this.mRpo = new int[size];
+        this.mIdom = new int[size];
+        this.mLoopHeader = new boolean[size];
+        this.mMergeNode = new boolean[size];
+        this.mMergeChildren = new int[size][];
+        this.mLoopOf = new int[size];
+        this.mParentLoop = new int[size];
+        this.mExitOf = new int[size];
+        this.mExitChildren = new int[size][];
+        this.mSubtreeSizes = new int[size];
+    }
+
+    /**
+     * @param functionNames the name of the function of each element of the graph
+     * @return the statements that run the element functions in the order the arrows of the diagram
+     * prescribe, or <code>null</code> if the diagram has a loop that can be entered in more than one place or
+     * the statements would nest too deeply, as they do for loops nested in each other a hundred times
+     */
+    @Nullable
+    static String generate(ControlFlowGraph graph, String[] functionNames) {
+        StructuredCodeGenerator generator = new StructuredCodeGenerator(graph, functionNames);
+        int[] order = generator.computeReversePostorder();
+        int[][] predecessors = generator.computePredecessors();
+        generator.computeDominators(order, predecessors);
+        if (!generator.classifyArrows()) {
+            return null;
+        }
+        generator.computeLoops(order, predecessors);
+        generator.collectMergeChildren(order);
+        return generator.emit();
+    }
+
+    /**
+     * @return the elements in reverse postorder
+     */
+    private int[] computeReversePostorder() {
+        int size = mGraph.size();
+        int[] order = new int[size];
+        int position = size;
+        boolean[] seen = new boolean[size];
+        // each entry is an element and the number of its successors we have already looked at
+        ArrayDeque<int[]> stack = new ArrayDeque<>();
+        stack.push(new int[]{0, 0});
+        seen[0] = true;
+        while (!stack.isEmpty()) {
+            int[] top = stack.peek();
+            int elem = top[0];
+            if (top[1] < mGraph.getSuccessorCount(elem)) {
+                int successor = mGraph.getSuccessor(elem, top[1]++);
+                if (!seen[successor]) {
+                    seen[successor] = true;
+                    stack.push(new int[]{successor, 0});
+                }
+            } else {
+                stack.pop();
+                order[--position] = elem;
+            }
+        }
+        for (int i = 0; i < size; i++) {
+            mRpo[order[i]] = i;
+        }
+        return order;
+    }
+
+    /**
+     * The iterative algorithm from "A Simple, Fast Dominance Algorithm" (Cooper, Harvey and Kennedy)
+     */
+    private void computeDominators(int[] order, int[][] predecessors) {
+        int size = mGraph.size();
+        Arrays.fill(mIdom, ControlFlowGraph.NONE);
+        mIdom[0] = 0;
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int i = 1; i < size; i++) {
+                int elem = order[i];
+                int newIdom = ControlFlowGraph.NONE;
+                for (int predecessor : predecessors[elem]) {
+                    if (mIdom[predecessor] == ControlFlowGraph.NONE) {
+                        continue;
+                    }
+                    newIdom = newIdom == ControlFlowGraph.NONE ? predecessor : intersect(predecessor, newIdom);
+                }
+                if (mIdom[elem] != newIdom) {
+                    mIdom[elem] = newIdom;
+                    changed = true;
+                }
+            }
+        }
+    }
+
+    private int[][] computePredecessors() {
+        int size = mGraph.size();
+        int[] counts = new int[size];
+        for (int elem = 0; elem < size; elem++) {
+            for (int s = 0; s < mGraph.getSuccessorCount(elem); s++) {
+                counts[mGraph.getSuccessor(elem, s)]++;
+            }
+        }
+        int[][] predecessors = new int[size][];
+        for (int elem = 0; elem < size; elem++) {
+            predecessors[elem] = new int[counts[elem]];
+            counts[elem] = 0;
+        }
+        for (int elem = 0; elem < size; elem++) {
+            for (int s = 0; s < mGraph.getSuccessorCount(elem); s++) {
+                int successor = mGraph.getSuccessor(elem, s);
+                predecessors[successor][counts[successor]++] = elem;
+            }
+        }
+        return predecessors;
+    }
+
+    private int intersect(int first, int second) {
+        while (first != second) {
+            while (mRpo[first] > mRpo[second]) {
+                first = mIdom[first];
+            }
+            while (mRpo[second] > mRpo[first]) {
+                second = mIdom[second];
+            }
+        }
+        return first;
+    }
+
+    private boolean dominates(int dominator, int elem) {
+        while (elem != dominator && elem != 0) {
+            elem = mIdom[elem];
+        }
+        return elem == dominator;
+    }
+
+    /**
+     * Finds the loop headers and the merge nodes
+     *
+     * @return false if an arrow goes back to an element that doesn't dominate where it comes from
+     */
+    private boolean classifyArrows() {
+        int size = mGraph.size();
+        int[] forwardArrows = new int[size];
+        for (int elem = 0; elem < size; elem++) {
+            for (int s = 0; s < mGraph.getSuccessorCount(elem); s++) {
+                int successor = mGraph.getSuccessor(elem, s);
+                if (mRpo[successor] > mRpo[elem]) {
+                    forwardArrows[successor]++;
+                } else if (dominates(successor, elem)) {
+                    mLoopHeader[successor] = true;
+                } else {
+                    return false;
+                }
+            }
+        }
+        for (int elem = 0; elem < size; elem++) {
+            mMergeNode[elem] = forwardArrows[elem] > 1;
+        }
+        return true;
+    }
+
+    /**
+     * Finds the elements of each loop, going through the headers from the innermost loops out, and then the
+     * elements that a loop exits to. Each loop found is collapsed into its header, so that the outer loops
+     * only walk across it once
+     */
+    private void computeLoops(int[] order, int[][] predecessors) {
+        int size = mGraph.size();
+        Arrays.fill(mLoopOf, ControlFlowGraph.NONE);
+        Arrays.fill(mParentLoop, ControlFlowGraph.NONE);
+        Arrays.fill(mExitOf, ControlFlowGraph.NONE);
+        // the header of the outermost loop found so far that each element belongs to
+        int[] collapsed = new int[size];
+        for (int i = 0; i < size; i++) {
+            collapsed[i] = i;
+        }
+        ArrayDeque<Integer> toVisit = new ArrayDeque<>();
+        // a loop nested in another has a header that comes later in reverse postorder
+        for (int i = size - 1; i >= 0; i--) {
+            int header = order[i];
+            if (!mLoopHeader[header]) {
+                continue;
+            }
+            mLoopOf[header] = header;
+            for (int predecessor : predecessors[header]) {
+                if (mRpo[predecessor] >= mRpo[header]) {
+                    toVisit.push(predecessor);
+                }
+            }
+            while (!toVisit.isEmpty()) {
+                int elem = find(collapsed, toVisit.pop());
+                if (elem == header) {
+                    continue;
+                }
+                collapsed[elem] = header;
+                if (mLoopOf[elem] == ControlFlowGraph.NONE) {
+                    mLoopOf[elem] = header;
+                } else {
+                    // the header of a loop nested in this one
+                    mParentLoop[elem] = header;
+                }
+                for (int predecessor : predecessors[elem]) {
+                    toVisit.push(predecessor);
+                }
+            }
+        }
+        for (int i = 1; i < order.length; i++) {
+            int elem = order[i];
+            // the loops an element is in, other than its own, are the loops its immediate dominator is in too
+            int common = mLoopHeader[elem] ? mParentLoop[elem] : mLoopOf[elem];
+            int exited = mLoopOf[mIdom[elem]];
+            if (exited == common) {
+                continue;
+            }
+            while (mParentLoop[exited] != common) {
+                exited = mParentLoop[exited];
+            }
+            mExitOf[elem] = exited;
+            // the loop is left with a break out of the block the exit follows, like for a merge node
+            mMergeNode[elem] = true;
+        }
+    }
+
+    private static int find(int[] collapsed, int elem) {
+        int root = elem;
+        while (collapsed[root] != root) {
+            root = collapsed[root];
+        }
+        while (collapsed[elem] != root) {
+            int next = collapsed[elem];
+            collapsed[elem] = root;
+            elem = next;
+        }
+        return root;
+    }
+
+    private void collectMergeChildren(int[] order) {
+        int size = mGraph.size();
+        // a dominator comes before the elements it dominates in reverse postorder
+        Arrays.fill(mSubtreeSizes, 1);
+        for (int i = size - 1; i > 0; i--) {
+            mSubtreeSizes[mIdom[order[i]]] += mSubtreeSizes[order[i]];
+        }
+        List<List<Integer>> children = new ArrayList<>(size);
+        List<List<Integer>> exits = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            children.add(null);
+            exits.add(null);
+        }
+        // going through the elements backwards in reverse postorder leaves each list sorted the way we want it
+        for (int i = size - 1; i > 0; i--) {
+            int elem = order[i];
+            if (mExitOf[elem] != ControlFlowGraph.NONE) {
+                add(exits, mExitOf[elem], elem);
+            } else if (mMergeNode[elem]) {
+                add(children, mIdom[elem], elem);
+            }
+        }
+        for (int elem = 0; elem < size; elem++) {
+            mMergeChildren[elem] = toArray(children.get(elem));
+            mExitChildren[elem] = toArray(exits.get(elem));
+        }
+    }
+
+    private static void add(List<List<Integer>> lists, int index, int elem) {
+        List<Integer> list = lists.get(index);
+        if (list == null) {
+            list = new ArrayList<>();
+            lists.set(index, list);
+        }
+        list.add(elem);
+    }
+
+    private static int[] toArray(@Nullable List<Integer> list) {
+        int[] array = new int[list == null ? 0 : list.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = list.get(i);
+        }
+        return array;
+    }
+
+    @Nullable
+    private String emit() {
+        StringBuilder code = new StringBuilder("env.vars = env.vars || {};\nvar result;\n");
+        ArrayDeque<Task> tasks = new ArrayDeque<>();
+        tasks.push(Task.tree(0, END, 0));
+        while (!tasks.isEmpty()) {
+            Task task = tasks.pop();
+            switch (task.mKind) {
+                case Task.TEXT:
+                    if (task.mIndent > MAX_NESTING) {
+                        return null;
+                    }
+                    for (int i = 0; i < Math.min(task.mIndent, MAX_INDENT); i++) {
+                        code.append(INDENT);
+                    }
+                    code.append(task.mText).append('\n');
+                    break;
+                case Task.TREE:
+                    expandTree(task, tasks);
+                    break;
+                case Task.LOOP:
+                    expandLoop(task, tasks);
+                    break;
+                case Task.WITHIN:
+                    expandWithin(task, tasks);
+                    break;
+                case Task.ELEMENT:
+                    expandElement(task, tasks);
+                    break;
+                case Task.BRANCH:
+                    expandBranch(task, tasks);
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown task " + task.mKind);
+            }
+        }
+        return code.append("return true;\n").toString();
+    }
+
+    // the tasks are pushed in reverse, so they are run in the opposite order to how they appear below
+
+    private void expandTree(Task task, ArrayDeque<Task> tasks) {
+        int elem = task.mElem;
+        if (mLoopHeader[elem]) {
+            tasks.push(Task.loop(elem, 0, task.mFallThrough, task.mIndent));
+        } else {
+            tasks.push(Task.within(elem, 0, task.mFallThrough, task.mIndent));
+        }
+    }
+
+    /**
+     * The loop nested in the blocks of its exits, each exit following its block and so not nested any deeper
+     * than the loop itself
+     */
+    private void expandLoop(Task task, ArrayDeque<Task> tasks) {
+        int elem = task.mElem;
+        int[] exits = mExitChildren[elem];
+        if (task.mMergeIndex == exits.length) {
+            tasks.push(Task.text("}", task.mIndent));
+            // falling off the end of the body goes round the loop again
+            tasks.push(Task.within(elem, 0, elem, task.mIndent + 1));
+            tasks.push(Task.text(loopLabel(elem) + ": while (true) {", task.mIndent));
+            return;
+        }
+        int exit = exits[task.mMergeIndex];
+        tasks.push(Task.tree(exit, task.mFallThrough, task.mIndent));
+        tasks.push(Task.text("}", task.mIndent));
+        tasks.push(Task.loop(elem, task.mMergeIndex + 1, exit, task.mIndent + 1));
+        tasks.push(Task.text(joinLabel(exit) + ": {", task.mIndent));
+    }
+
+    private void expandWithin(Task task, ArrayDeque<Task> tasks) {
+        int elem = task.mElem;
+        int[] merges = mMergeChildren[elem];
+        if (task.mMergeIndex == merges.length) {
+            tasks.push(Task.element(elem, task.mFallThrough, task.mIndent));
+            return;
+        }
+        int merge = merges[task.mMergeIndex];
+        tasks.push(Task.tree(merge, task.mFallThrough, task.mIndent));
+        tasks.push(Task.text("}", task.mIndent));
+        tasks.push(Task.within(elem, task.mMergeIndex + 1, merge, task.mIndent + 1));
+        tasks.push(Task.text(joinLabel(merge) + ": {", task.mIndent));
+    }
+
+    private void expandElement(Task task, ArrayDeque<Task> tasks) {
+        int elem = task.mElem;
+        String call = mFunctionNames[elem] + "(env);";
+        int indent = task.mIndent;
+        switch (mGraph.getSuccessorCount(elem)) {
+            case 0:
+                if (task.mFallThrough != END) {
+                    tasks.push(Task.text("return true;", indent));
+                }
+                tasks.push(Task.text(call, indent));
+                break;
+            case 1:
+                tasks.push(Task.branch(elem, mGraph.getNext(elem), task.mFallThrough, indent));
+                tasks.push(Task.text(call, indent));
+                break;
+            default:
+                expandDecision(task, tasks, call);
+        }
+    }
+
+    /**
+     * One branch of a decision goes inside the <code>if</code> and has to end in a jump, the other one follows
+     * the <code>if</code>. The branch inside is the one that is only a jump, or else the one with fewer
+     * elements, so each level of nesting at most halves what is left and long chains of decisions stay flat.
+     */
+    private void expandDecision(Task task, ArrayDeque<Task> tasks, String call) {
+        int elem = task.mElem;
+        int indent = task.mIndent;
+        int yes = mGraph.getNext(elem);
+        int no = mGraph.getNo(elem);
+        boolean nestYes;
+        if (isJump(elem, yes, task.mFallThrough) != isJump(elem, no, task.mFallThrough)) {
+            nestYes = isJump(elem, yes, task.mFallThrough);
+        } else {
+            nestYes = mSubtreeSizes[yes] <= mSubtreeSizes[no];
+        }
+        int nested = nestYes ? yes : no;
+        int following = nestYes ? no : yes;
+        String nestedValue = nestYes ? "true" : "false";
+        String followingValue = nestYes ? "false" : "true";
+
+        tasks.push(Task.branch(elem, following, task.mFallThrough, indent));
+        tasks.push(Task.text("}", indent));
+        // like the shell, a decision that is neither true nor false ends the script
+        tasks.push(Task.text("return true;", indent + 1));
+        tasks.push(Task.text("} else if (result !== " + followingValue + ") {", indent));
+        tasks.push(Task.branch(elem, nested, EXPLICIT, indent + 1));
+        tasks.push(Task.text("if (result === " + nestedValue + ") {", indent));
+        tasks.push(Task.text("result = " + call, indent));
+    }
+
+    /**
+     * @return true if following the arrow is no more than a jump, because the element it points to is
+     * placed elsewhere
+     */
+    private boolean isJump(int from, int to, int fallThrough) {
+        return to == fallThrough || mRpo[to] <= mRpo[from] || mMergeNode[to];
+    }
+
+    private void expandBranch(Task task, ArrayDeque<Task> tasks) {
+        int from = task.mElem;
+        int to = task.mTarget;
+        if (to == task.mFallThrough) {
+            // the code that follows is the target already
+            return;
+        }
+        if (mRpo[to] <= mRpo[from]) {
+            tasks.push(Task.text("continue " + loopLabel(to) + ";", task.mIndent));
+        } else if (mMergeNode[to]) {
+            tasks.push(Task.text("break " + joinLabel(to) + ";", task.mIndent));
+        } else {
+            tasks.push(Task.tree(to, task.mFallThrough, task.mIndent));
+        }
+    }
+
+    private static String loopLabel(int elem) {
+        return "loop" + elem;
+    }
+
+    private static String joinLabel(int elem) {
+        return "join" + elem;
+    }
+
+    private static final class Task {
+        private static final int TEXT = 0;
+        // the code of an element and of all the elements it immediately dominates
+        private static final int TREE = 1;
+        // the code of an element nested in the blocks of the merge nodes it immediately dominates
+        private static final int WITHIN = 2;
+        // the call of an element followed by its arrows
+        private static final int ELEMENT = 3;
+        private static final int BRANCH = 4;
+        // the loop an element heads nested in the blocks of the elements it exits to
+        private static final int LOOP = 5;
+
+        private final int mKind;
+        private final int mElem;
+        private final int mTarget;
+        private final int mMergeIndex;
+        // the element control reaches by falling off the end of this code
+        private final int mFallThrough;
+        private final int mIndent;
+        @Nullable
+        private final String mText;
+
+        private Task(int kind, int elem, int target, int mergeIndex, int fallThrough, int indent, @Nullable String text) {
+            this.mKind = kind;
+            this.mElem = elem;
+            this.mTarget = target;
+            this.mMergeIndex = mergeIndex;
+            this.mFallThrough = fallThrough;
+            this.mIndent = indent;
+            this.mText = text;
+        }
+
+        static Task text(String text, int indent) {
+            return new Task(TEXT, ControlFlowGraph.NONE, ControlFlowGraph.NONE, 0, END, indent, text);
+        }
+
+        static Task tree(int elem, int fallThrough, int indent) {
+            return new Task(TREE, elem, ControlFlowGraph.NONE, 0, fallThrough, indent, null);
+        }
+
+        static Task loop(int elem, int exitIndex, int fallThrough, int indent) {
+            return new Task(LOOP, elem, ControlFlowGraph.NONE, exitIndex, fallThrough, indent, null);
+        }
+
+        static Task within(int elem, int mergeIndex, int fallThrough, int indent) {
+            return new Task(WITHIN, elem, ControlFlowGraph.NONE, mergeIndex, fallThrough, indent, null);
+        }
+
+        static Task element(int elem, int fallThrough, int indent) {
+            return new Task(ELEMENT, elem, ControlFlowGraph.NONE, 0, fallThrough, indent, null);
+        }
+
+        static Task branch(int from, int to, int fallThrough, int indent) {
+            return new Task(BRANCH, from, to, 0, fallThrough, indent, null);
+        }
+    }
+}
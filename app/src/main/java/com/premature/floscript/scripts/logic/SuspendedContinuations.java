@@ -0,0 +1,49 @@
+package com.premature.floscript.scripts.logic;
+
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.serialize.ScriptableInputStream;
+import org.mozilla.javascript.serialize.ScriptableOutputStream;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+/**
+ * Helpers for turning the rhino continuation of a suspended run into bytes we can store and back.
+ * <p/>
+ * The continuation holds the interpreter frames of the run and with them everything the script can reach.
+ * The sealed shared scope and the host objects in it are written as references by name, which get resolved
+ * against the shared scope of whichever engine resumes the run, so only the state of the run itself is stored.
+ */
+final class SuspendedContinuations {
+
+    private SuspendedContinuations() {
+    }
+
+    /**
+     * @throws IOException if the run holds on to something that can't be serialized, like an open file
+     */
+    static byte[] serialize(Object continuation, Scriptable sharedScope) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ScriptableOutputStream out = new ScriptableOutputStream(bytes, sharedScope);
+        try {
+            FloHostObjects.excludeFromSerialization(out, sharedScope);
+            out.writeObject(continuation);
+        } finally {
+            out.close();
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Must be called while a rhino context is entered, which provides the class loader for the rhino classes
+     */
+    static Object deserialize(byte[] serialized, Scriptable sharedScope) throws IOException, ClassNotFoundException {
+        ScriptableInputStream in = new ScriptableInputStream(new ByteArrayInputStream(serialized), sharedScope);
+        try {
+            return in.readObject();
+        } finally {
+            in.close();
+        }
+    }
+}
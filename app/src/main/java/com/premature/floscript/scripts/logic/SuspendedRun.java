@@ -0,0 +1,94 @@
+package com.premature.floscript.scripts.logic;
+
+import android.support.annotation.Nullable;
+
+/**
+ * A script run that gave up its thread in <code>floApi.sleep</code> or <code>floApi.waitForEvent</code>.
+ * It holds the serialized rhino continuation of the run, which {@link ScriptEngine#resumeScript(long)} picks
+ * up again once the run is woken. Exactly one of the wake time and the wake event is set.
+ */
+public final class SuspendedRun {
+
+    @Nullable
+    private final Long mId;
+    private final long mScriptId;
+    private final ScriptRunOptions mOptions;
+    private final byte[] mContinuation;
+    private final long mWakeAtMs;
+    @Nullable
+    private final String mWakeEvent;
+    @Nullable
+    private final String mJobName;
+
+    public SuspendedRun(@Nullable Long id, long scriptId, ScriptRunOptions options, byte[] continuation,
+                        long wakeAtMs, @Nullable String wakeEvent, @Nullable String jobName) {
+        this.mId = id;
+        this.mScriptId = scriptId;
+        this.mOptions = options;
+        this.mContinuation = continuation;
+        this.mWakeAtMs = wakeAtMs;
+        this.mWakeEvent = wakeEvent;
+        this.mJobName = jobName;
+    }
+
+    /**
+     * @return the database id, or <code>null</code> if the run hasn't been saved yet
+     */
+    @Nullable
+    public Long getId() {
+        return mId;
+    }
+
+    public SuspendedRun withId(long id) {
+        return new SuspendedRun(id, mScriptId, mOptions, mContinuation, mWakeAtMs, mWakeEvent, mJobName);
+    }
+
+    public long getScriptId() {
+        return mScriptId;
+    }
+
+    /**
+     * @return the limits of the run, which apply afresh to every stretch it runs between suspensions
+     */
+    public ScriptRunOptions getOptions() {
+        return mOptions;
+    }
+
+    public byte[] getContinuation() {
+        return mContinuation;
+    }
+
+    /**
+     * @return the wall clock time in ms at which the run should be resumed, or 0 if it waits for an event
+     */
+    public long getWakeAtMs() {
+        return mWakeAtMs;
+    }
+
+    /**
+     * @return the alias of the event the run waits for, or <code>null</code> if it waits for a time
+     */
+    @Nullable
+    public String getWakeEvent() {
+        return mWakeEvent;
+    }
+
+    /**
+     * @return the name of the job the run belongs to, or <code>null</code> if it wasn't started by a job
+     */
+    @Nullable
+    public String getJobName() {
+        return mJobName;
+    }
+
+    @Override
+    public String toString() {
+        return "SuspendedRun{" +
+                "mId=" + mId +
+                ", mScriptId=" + mScriptId +
+                ", mWakeAtMs=" + mWakeAtMs +
+                ", mWakeEvent='" + mWakeEvent + '\'' +
+                ", mJobName='" + mJobName + '\'' +
+                '}';
+    }
+}
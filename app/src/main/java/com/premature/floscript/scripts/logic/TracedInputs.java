@@ -0,0 +1,149 @@
+package com.premature.floscript.scripts.logic;
+
+import org.mozilla.javascript.BaseFunction;
+import org.mozilla.javascript.Function;
+import org.mozilla.javascript.NativeObject;
+import org.mozilla.javascript.ScriptRuntime;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
+
+/**
+ * Shadows <code>Date</code> and <code>Math</code> in the scope of a recorded or replayed run with versions that
+ * read the clock and the random numbers through the {@link ScriptTrace} of the run. Other runs see the standard
+ * objects of the shared scope untouched. The library code in the shared scope reads the clock through
+ * <code>floHelper.currentTimeMillis</code>, which goes through {@link #currentTimeMillis} as well.
+ * <p/>
+ * The rest of both objects is left to the standard ones, <code>Math</code> by being the prototype of our
+ * version and <code>Date</code> by our constructor handing everything but the current time over to it.
+ */
+final class TracedInputs {
+
+    private static final String DATE = "Date";
+    private static final String MATH = "Math";
+
+    private TracedInputs() {
+    }
+
+    /**
+     * @param scope the scope of a single run, whose prototype is the shared scope with the standard objects
+     */
+    static void install(ScriptableObject scope) {
+        Function date = (Function) ScriptableObject.getProperty(scope, DATE);
+        ClockDate clockDate = new ClockDate(date, ScriptableObject.getProperty(date, "prototype"));
+        ScriptRuntime.setFunctionProtoAndParent(clockDate, scope);
+        clockDate.defineProperty("now", newInputFunction(scope, InputFunction.NOW), ScriptableObject.DONTENUM);
+        clockDate.defineProperty("parse", ScriptableObject.getProperty(date, "parse"), ScriptableObject.DONTENUM);
+        clockDate.defineProperty("UTC", ScriptableObject.getProperty(date, "UTC"), ScriptableObject.DONTENUM);
+        clockDate.sealObject();
+        ScriptableObject.defineProperty(scope, DATE, clockDate, ScriptableObject.DONTENUM);
+
+        NativeObject math = new NativeObject();
+        math.setPrototype((Scriptable) ScriptableObject.getProperty(scope, MATH));
+        math.setParentScope(scope);
+        math.defineProperty("random", newInputFunction(scope, InputFunction.RANDOM), ScriptableObject.DONTENUM);
+        math.sealObject();
+        ScriptableObject.defineProperty(scope, MATH, math, ScriptableObject.DONTENUM);
+    }
+
+    private static InputFunction newInputFunction(Scriptable scope, int input) {
+        InputFunction function = new InputFunction(input);
+        ScriptRuntime.setFunctionProtoAndParent(function, scope);
+        function.sealObject();
+        return function;
+    }
+
+    static long currentTimeMillis(org.mozilla.javascript.Context cx) {
+        ScriptTrace trace = ScriptTrace.current(cx);
+        if (trace == null) {
+            return System.currentTimeMillis();
+        }
+        if (trace.isReplaying()) {
+            return (long) trace.take(ScriptTrace.CLOCK).getNumber();
+        }
+        long now = System.currentTimeMillis();
+        trace.addClock(now);
+        return now;
+    }
+
+    private static double random(org.mozilla.javascript.Context cx) {
+        ScriptTrace trace = ScriptTrace.current(cx);
+        if (trace == null) {
+            return Math.random();
+        }
+        if (trace.isReplaying()) {
+            return trace.take(ScriptTrace.RANDOM).getNumber();
+        }
+        double random = Math.random();
+        trace.addRandom(random);
+        return random;
+    }
+
+    /**
+     * The <code>Date</code> constructor. Only a date without arguments, or <code>Date()</code> called as a
+     * function, depends on the clock
+     */
+    private static final class ClockDate extends BaseFunction {
+        private final Function mDate;
+
+        private ClockDate(Function date, Object datePrototype) {
+            this.mDate = date;
+            // instanceof Date and Date.prototype keep working with the dates the standard constructor makes
+            setImmunePrototypeProperty(datePrototype);
+        }
+
+        @Override
+        public Scriptable construct(org.mozilla.javascript.Context cx, Scriptable scope, Object[] args) {
+            if (args.length == 0) {
+                args = new Object[]{(double) currentTimeMillis(cx)};
+            }
+            return mDate.construct(cx, scope, args);
+        }
+
+        @Override
+        public Object call(org.mozilla.javascript.Context cx, Scriptable scope, Scriptable thisObj, Object[] args) {
+            // Date() ignores its arguments and returns the current time as a string
+            return ScriptRuntime.toString(mDate.construct(cx, scope, new Object[]{(double) currentTimeMillis(cx)}));
+        }
+
+        @Override
+        public String getFunctionName() {
+            return DATE;
+        }
+
+        @Override
+        public int getArity() {
+            return 7;
+        }
+
+        @Override
+        public int getLength() {
+            return 7;
+        }
+    }
+
+    private static final class InputFunction extends BaseFunction {
+        private static final int NOW = 1;
+        private static final int RANDOM = 2;
+
+        private final int mInput;
+
+        private InputFunction(int input) {
+            this.mInput = input;
+        }
+
+        @Override
+        public Object call(org.mozilla.javascript.Context cx, Scriptable scope, Scriptable thisObj, Object[] args) {
+            return mInput == NOW ? (double) currentTimeMillis(cx) : random(cx);
+        }
+
+        @Override
+        public Scriptable construct(org.mozilla.javascript.Context cx, Scriptable scope, Object[] args) {
+            throw ScriptRuntime.typeError(getFunctionName() + " is not a constructor");
+        }
+
+        @Override
+        public String getFunctionName() {
+            return mInput == NOW ? "now" : "random";
+        }
+    }
+}
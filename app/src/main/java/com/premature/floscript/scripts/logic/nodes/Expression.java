@@ -0,0 +1,496 @@
+package com.premature.floscript.scripts.logic.nodes;
+
+import com.premature.floscript.scripts.logic.ScriptExecutionException;
+
+import org.mozilla.javascript.ScriptRuntime;
+
+import java.util.Map;
+
+/**
+ * A precompiled form of the expressions users type into the arithmetic and if-else templates. It covers
+ * the javascript those templates are used with: number, string and boolean literals, <code>$var</code>
+ * references to the diagram variables, arithmetic, comparisons, logical operators and the conditional
+ * operator. Values follow the javascript conversion rules, which we borrow from rhino's {@link ScriptRuntime}.
+ * <p/>
+ * The javascript templates textually substitute the variable values into the expression before evaluating
+ * it, so a variable holding a string is treated as the source of a literal, just like it would be there.
+ */
+final class Expression {
+
+    private final String mSource;
+    private final Expr mRoot;
+    private final boolean mUsesVariables;
+
+    private Expression(String source, Expr root, boolean usesVariables) {
+        this.mSource = source;
+        this.mRoot = root;
+        this.mUsesVariables = usesVariables;
+    }
+
+    /**
+     * @throws ExpressionParseException if the expression uses anything we can't evaluate without rhino
+     */
+    static Expression parse(String source) throws ExpressionParseException {
+        Parser parser = new Parser(source, true);
+        Expr root = parser.parseAll();
+        return new Expression(source, root, parser.mUsesVariables);
+    }
+
+    String getSource() {
+        return mSource;
+    }
+
+    /**
+     * @return false if the expression is made up of literals only, so its value is known before the diagram runs
+     */
+    boolean usesVariables() {
+        return mUsesVariables;
+    }
+
+    /**
+     * @return a {@link Double}, {@link Boolean} or {@link String} value
+     */
+    Object evaluate(Map<String, Object> vars) throws ScriptExecutionException {
+        return mRoot.eval(vars);
+    }
+
+    @Override
+    public String toString() {
+        return "Expression{" + mSource + '}';
+    }
+
+    private static Object valueOfVariable(String name, Map<String, Object> vars) throws ScriptExecutionException {
+        Object value = vars.get(name);
+        if (value instanceof Boolean || value instanceof Double) {
+            return value;
+        }
+        if (value instanceof Number) {
+            return ((Number) value).doubleValue();
+        }
+        if (value == null) {
+            throw new ScriptExecutionException("Variable $" + name + " is not defined");
+        }
+        // this is what the variable text turns into once it is pasted into the expression
+        String text = value.toString();
+        try {
+            return new Parser(text, false).parseAll().eval(vars);
+        } catch (ExpressionParseException e) {
+            throw new ScriptExecutionException("Value [" + text + "] of variable $" + name + " can't be used in an expression");
+        }
+    }
+
+    private static double toNumber(Object value) {
+        return value instanceof Double ? (Double) value : ScriptRuntime.toNumber(value);
+    }
+
+    /* ******************************** */
+    /* THE NODES OF THE EXPRESSION TREE */
+    /* ******************************** */
+
+    private abstract static class Expr {
+        abstract Object eval(Map<String, Object> vars) throws ScriptExecutionException;
+    }
+
+    private static final class Literal extends Expr {
+        private final Object mValue;
+
+        private Literal(Object value) {
+            this.mValue = value;
+        }
+
+        @Override
+        Object eval(Map<String, Object> vars) {
+            return mValue;
+        }
+    }
+
+    private static final class VarRef extends Expr {
+        private final String mName;
+
+        private VarRef(String name) {
+            this.mName = name;
+        }
+
+        @Override
+        Object eval(Map<String, Object> vars) throws ScriptExecutionException {
+            return valueOfVariable(mName, vars);
+        }
+    }
+
+    private static final class Unary extends Expr {
+        private final char mOp;
+        private final Expr mOperand;
+
+        private Unary(char op, Expr operand) {
+            this.mOp = op;
+            this.mOperand = operand;
+        }
+
+        @Override
+        Object eval(Map<String, Object> vars) throws ScriptExecutionException {
+            Object value = mOperand.eval(vars);
+            switch (mOp) {
+                case '!':
+                    return !ScriptRuntime.toBoolean(value);
+                case '-':
+                    return -toNumber(value);
+                default:
+                    return toNumber(value);
+            }
+        }
+    }
+
+    private static final class Binary extends Expr {
+        private final String mOp;
+        private final Expr mLeft;
+        private final Expr mRight;
+
+        private Binary(String op, Expr left, Expr right) {
+            this.mOp = op;
+            this.mLeft = left;
+            this.mRight = right;
+        }
+
+        @Override
+        Object eval(Map<String, Object> vars) throws ScriptExecutionException {
+            Object left = mLeft.eval(vars);
+            // && and || only evaluate the right side when they need it and return one of the operands
+            switch (mOp) {
+                case "&&":
+                    return ScriptRuntime.toBoolean(left) ? mRight.eval(vars) : left;
+                case "||":
+                    return ScriptRuntime.toBoolean(left) ? left : mRight.eval(vars);
+            }
+            Object right = mRight.eval(vars);
+            switch (mOp) {
+                case "+":
+                    if (left instanceof String || right instanceof String) {
+                        return ScriptRuntime.toString(left).concat(ScriptRuntime.toString(right));
+                    }
+                    return toNumber(left) + toNumber(right);
+                case "-":
+                    return toNumber(left) - toNumber(right);
+                case "*":
+                    return toNumber(left) * toNumber(right);
+                case "/":
+                    return toNumber(left) / toNumber(right);
+                case "%":
+                    return toNumber(left) % toNumber(right);
+                case "<":
+                    return ScriptRuntime.cmp_LT(left, right);
+                case "<=":
+                    return ScriptRuntime.cmp_LE(left, right);
+                case ">":
+                    return ScriptRuntime.cmp_LT(right, left);
+                case ">=":
+                    return ScriptRuntime.cmp_LE(right, left);
+                case "==":
+                    return ScriptRuntime.eq(left, right);
+                case "!=":
+                    return !ScriptRuntime.eq(left, right);
+                case "===":
+                    return ScriptRuntime.shallowEq(left, right);
+                case "!==":
+                    return !ScriptRuntime.shallowEq(left, right);
+                default:
+                    throw new IllegalStateException("Unknown operator " + mOp);
+            }
+        }
+    }
+
+    private static final class Conditional extends Expr {
+        private final Expr mTest;
+        private final Expr mThen;
+        private final Expr mOtherwise;
+
+        private Conditional(Expr test, Expr then, Expr otherwise) {
+            this.mTest = test;
+            this.mThen = then;
+            this.mOtherwise = otherwise;
+        }
+
+        @Override
+        Object eval(Map<String, Object> vars) throws ScriptExecutionException {
+            return ScriptRuntime.toBoolean(mTest.eval(vars)) ? mThen.eval(vars) : mOtherwise.eval(vars);
+        }
+    }
+
+    /* ********** */
+    /* THE PARSER */
+    /* ********** */
+
+    /**
+     * A recursive descent parser following the javascript operator precedence
+     */
+    private static final class Parser {
+        private final String mText;
+        private final boolean mAllowVariables;
+        private int mPos;
+        private boolean mUsesVariables;
+
+        private Parser(String text, boolean allowVariables) {
+            this.mText = text;
+            this.mAllowVariables = allowVariables;
+        }
+
+        private Expr parseAll() throws ExpressionParseException {
+            Expr expr = parseConditional();
+            skipWhitespace();
+            // the templates append a semicolon after the expression, so a trailing one is harmless
+            while (mPos < mText.length() && mText.charAt(mPos) == ';') {
+                mPos++;
+                skipWhitespace();
+            }
+            if (mPos != mText.length()) {
+                throw error("Unexpected input");
+            }
+            return expr;
+        }
+
+        private Expr parseConditional() throws ExpressionParseException {
+            Expr test = parseBinary(0);
+            if (consume("?")) {
+                Expr then = parseConditional();
+                expect(":");
+                Expr otherwise = parseConditional();
+                return new Conditional(test, then, otherwise);
+            }
+            return test;
+        }
+
+        // operators grouped by precedence, lowest first. Longer operators come first so that they match greedily
+        private static final String[][] BINARY_OPERATORS = {
+                {"||"},
+                {"&&"},
+                {"===", "!==", "==", "!="},
+                {"<=", ">=", "<", ">"},
+                {"+", "-"},
+                {"*", "/", "%"}
+        };
+
+        private Expr parseBinary(int level) throws ExpressionParseException {
+            if (level == BINARY_OPERATORS.length) {
+                return parseUnary();
+            }
+            Expr left = parseBinary(level + 1);
+            String op;
+            while ((op = consumeAny(BINARY_OPERATORS[level])) != null) {
+                Expr right = parseBinary(level + 1);
+                left = new Binary(op, left, right);
+            }
+            return left;
+        }
+
+        private Expr parseUnary() throws ExpressionParseException {
+            skipWhitespace();
+            if (mPos < mText.length()) {
+                char c = mText.charAt(mPos);
+                if ((c == '-' || c == '+') && mText.startsWith(String.valueOf(c), mPos + 1)) {
+                    throw error("Increment and decrement aren't supported");
+                }
+                // don't mistake the start of != for a negation
+                if ((c == '!' && !lookingAt("!=")) || c == '-' || c == '+') {
+                    mPos++;
+                    return new Unary(c, parseUnary());
+                }
+            }
+            return parsePrimary();
+        }
+
+        private Expr parsePrimary() throws ExpressionParseException {
+            skipWhitespace();
+            if (mPos >= mText.length()) {
+                throw error("Unexpected end of expression");
+            }
+            char c = mText.charAt(mPos);
+            if (c == '(') {
+                mPos++;
+                Expr inner = parseConditional();
+                expect(")");
+                return inner;
+            }
+            if (c == '$') {
+                if (!mAllowVariables) {
+                    throw error("Variables aren't allowed here");
+                }
+                mPos++;
+                String name = readWhile(true);
+                if (name.isEmpty()) {
+                    throw error("Missing variable name");
+                }
+                mUsesVariables = true;
+                return new VarRef(name);
+            }
+            if (c == '\'' || c == '"') {
+                return new Literal(readString(c));
+            }
+            if (Character.isDigit(c) || c == '.') {
+                return new Literal(readNumber());
+            }
+            String word = readWhile(false);
+            if ("true".equals(word)) {
+                return new Literal(Boolean.TRUE);
+            }
+            if ("false".equals(word)) {
+                return new Literal(Boolean.FALSE);
+            }
+            throw error(word.isEmpty() ? "Unexpected character " + c : "Unsupported identifier " + word);
+        }
+
+        private Double readNumber() throws ExpressionParseException {
+            int start = mPos;
+            while (mPos < mText.length() && Character.isDigit(mText.charAt(mPos))) {
+                mPos++;
+            }
+            if (mPos < mText.length() && mText.charAt(mPos) == '.') {
+                mPos++;
+                while (mPos < mText.length() && Character.isDigit(mText.charAt(mPos))) {
+                    mPos++;
+                }
+            }
+            if (mPos < mText.length() && (mText.charAt(mPos) == 'e' || mText.charAt(mPos) == 'E')) {
+                mPos++;
+                if (mPos < mText.length() && (mText.charAt(mPos) == '+' || mText.charAt(mPos) == '-')) {
+                    mPos++;
+                }
+                while (mPos < mText.length() && Character.isDigit(mText.charAt(mPos))) {
+                    mPos++;
+                }
+            }
+            // something like 0x1F or 3px isn't a number we understand
+            if (mPos < mText.length() && Character.isLetterOrDigit(mText.charAt(mPos))) {
+                throw error("Unsupported number literal");
+            }
+            try {
+                return Double.valueOf(mText.substring(start, mPos));
+            } catch (NumberFormatException e) {
+                throw error("Malformed number");
+            }
+        }
+
+        private String readString(char quote) throws ExpressionParseException {
+            StringBuilder value = new StringBuilder();
+            mPos++;
+            while (mPos < mText.length()) {
+                char c = mText.charAt(mPos++);
+                if (c == quote) {
+                    return value.toString();
+                }
+                if (c == '$') {
+                    // the javascript templates would substitute variables even inside of string literals
+                    throw error("Variable inside a string literal");
+                }
+                if (c == '\\') {
+                    if (mPos >= mText.length()) {
+                        break;
+                    }
+                    char escaped = mText.charAt(mPos++);
+                    switch (escaped) {
+                        case 'n':
+                            value.append('\n');
+                            break;
+                        case 't':
+                            value.append('\t');
+                            break;
+                        case '\\':
+                        case '\'':
+                        case '"':
+                            value.append(escaped);
+                            break;
+                        default:
+                            throw error("Unsupported escape sequence");
+                    }
+                } else {
+                    value.append(c);
+                }
+            }
+            throw error("Unterminated string");
+        }
+
+        /**
+         * Reads a variable name (the same characters the javascript helper's $[A-Za-z0-9]+ pattern accepts)
+         * or an identifier
+         */
+        private String readWhile(boolean variableName) {
+            int start = mPos;
+            while (mPos < mText.length()) {
+                char c = mText.charAt(mPos);
+                boolean accepted = variableName
+                        ? (c < 128 && Character.isLetterOrDigit(c))
+                        : Character.isJavaIdentifierPart(c);
+                if (!accepted) {
+                    break;
+                }
+                mPos++;
+            }
+            return mText.substring(start, mPos);
+        }
+
+        private void skipWhitespace() {
+            while (mPos < mText.length() && Character.isWhitespace(mText.charAt(mPos))) {
+                mPos++;
+            }
+        }
+
+        private boolean lookingAt(String token) {
+            return mText.startsWith(token, mPos);
+        }
+
+        private boolean consume(String token) {
+            skipWhitespace();
+            if (lookingAt(token)) {
+                mPos += token.length();
+                return true;
+            }
+            return false;
+        }
+
+        private String consumeAny(String[] tokens) {
+            skipWhitespace();
+            for (String token : tokens) {
+                // make sure a shorter operator isn't the prefix of a longer one, like < in <= or = in ==
+                if (lookingAt(token) && !continuesOperator(token)) {
+                    mPos += token.length();
+                    return token;
+                }
+            }
+            return null;
+        }
+
+        private boolean continuesOperator(String token) {
+            int next = mPos + token.length();
+            if (next >= mText.length()) {
+                return false;
+            }
+            char c = mText.charAt(next);
+            switch (token) {
+                case "&&":
+                case "||":
+                case "===":
+                case "!==":
+                    return false;
+                case "==":
+                case "!=":
+                case "<":
+                case ">":
+                    return c == '=';
+                case "<=":
+                case ">=":
+                    return false;
+                default:
+                    // = after an arithmetic operator would be an assignment, doubled +/- an increment
+                    return c == '=' || (c == token.charAt(0) && (c == '+' || c == '-'));
+            }
+        }
+
+        private void expect(String token) throws ExpressionParseException {
+            if (!consume(token)) {
+                throw error("Expected " + token);
+            }
+        }
+
+        private ExpressionParseException error(String problem) {
+            return new ExpressionParseException(mText, mPos, problem);
+        }
+    }
+}
@@ -0,0 +1,11 @@
+package com.premature.floscript.scripts.logic.nodes;
+
+/**
+ * Thrown when a template expression uses javascript that the {@link Expression} evaluator doesn't support.
+ * The element is then executed by rhino instead.
+ */
+class ExpressionParseException extends Exception {
+    ExpressionParseException(String expression, int position, String problem) {
+        super(problem + " at " + position + " in [" + expression + "]");
+    }
+}
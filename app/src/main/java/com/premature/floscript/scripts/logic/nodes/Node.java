@@ -0,0 +1,70 @@
+package com.premature.floscript.scripts.logic.nodes;
+
+import android.support.annotation.Nullable;
+
+import com.premature.floscript.scripts.logic.ScriptExecutionException;
+
+/**
+ * One diagram element of a {@link NodeProgram} together with the elements that follow it. The branching
+ * rules are the same as the ones {@link com.premature.floscript.scripts.logic.Scripts#createFunctionWrapper}
+ * generates: a single successor is always executed, while with two the element result must be exactly
+ * <code>true</code> or <code>false</code> to pick one of them.
+ */
+final class Node {
+
+    private final String mName;
+    private final NodeAction mAction;
+    @Nullable
+    private Node mYesOrNext;
+    @Nullable
+    private Node mNo;
+    private boolean mConditional;
+
+    Node(String name, NodeAction action) {
+        this.mName = name;
+        this.mAction = action;
+    }
+
+    void linkNext(Node next) {
+        this.mYesOrNext = next;
+        this.mNo = null;
+        this.mConditional = false;
+    }
+
+    void linkBranches(Node yes, Node no) {
+        this.mYesOrNext = yes;
+        this.mNo = no;
+        this.mConditional = true;
+    }
+
+    /**
+     * @return the node to execute next or <code>null</code> if the program ends here
+     */
+    @Nullable
+    Node execute(NodeRuntime runtime) throws ScriptExecutionException {
+        Object result = mAction.execute(runtime);
+        if (!mConditional) {
+            return mYesOrNext;
+        }
+        if (Boolean.TRUE.equals(result)) {
+            return mYesOrNext;
+        }
+        if (Boolean.FALSE.equals(result)) {
+            return mNo;
+        }
+        return null;
+    }
+
+    String getName() {
+        return mName;
+    }
+
+    boolean isNative() {
+        return mAction.isNative();
+    }
+
+    @Override
+    public String toString() {
+        return "Node{" + mName + ", " + mAction + '}';
+    }
+}
@@ -0,0 +1,19 @@
+package com.premature.floscript.scripts.logic.nodes;
+
+import com.premature.floscript.scripts.logic.ScriptExecutionException;
+
+/**
+ * The work a single diagram element does when it is executed
+ */
+interface NodeAction {
+
+    /**
+     * @return the element result, which decides the branch taken out of a diamond
+     */
+    Object execute(NodeRuntime runtime) throws ScriptExecutionException;
+
+    /**
+     * @return false if this action hands the element over to rhino
+     */
+    boolean isNative();
+}
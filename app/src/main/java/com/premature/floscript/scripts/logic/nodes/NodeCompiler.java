@@ -0,0 +1,151 @@
+package com.premature.floscript.scripts.logic.nodes;
+
+import android.content.Context;
+import android.util.Log;
+import android.util.Pair;
+
+import com.premature.floscript.scripts.logic.ArrowCondition;
+import com.premature.floscript.scripts.logic.CompilationErrorCode;
+import com.premature.floscript.scripts.logic.Script;
+import com.premature.floscript.scripts.logic.ScriptCompilationException;
+import com.premature.floscript.scripts.logic.Scripts;
+import com.premature.floscript.scripts.logic.VariablesParser;
+import com.premature.floscript.scripts.ui.diagram.ArrowUiElement;
+import com.premature.floscript.scripts.ui.diagram.ConnectableDiagramElement;
+import com.premature.floscript.scripts.ui.diagram.Diagram;
+import com.premature.floscript.scripts.ui.diagram.StartUiElement;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class turns a diagram into a {@link NodeProgram}. Elements that use one of the preinstalled templates
+ * unchanged get a java implementation of the template, everything else is left to rhino.
+ * <p/>
+ * It reports the same compilation errors as the {@link com.premature.floscript.scripts.logic.DiagramToScriptCompiler}.
+ */
+public final class NodeCompiler {
+    private static final String TAG = "NODE_COMPILER";
+
+    // template code section -> template, an instantiated template keeps the code of the template it came from
+    private final Map<String, Template> mTemplatesBySource = new HashMap<>();
+
+    public NodeCompiler(Context ctx) {
+        this(Scripts.getPreinstalledScripts(ctx));
+    }
+
+    NodeCompiler(List<Script> preinstalledScripts) {
+        for (Script script : preinstalledScripts) {
+            Template template = Template.fromScriptName(script.getName());
+            if (template != null) {
+                mTemplatesBySource.put(script.getSourceCode(), template);
+            }
+        }
+    }
+
+    /**
+     * @param compiledDiagram the javascript the diagram was compiled into, which runs and budgets are reported against
+     */
+    public NodeProgram compile(Diagram diagram, Script compiledDiagram) throws ScriptCompilationException {
+        StartUiElement entryElement = diagram.getEntryElement();
+        if (entryElement == null) {
+            throw new ScriptCompilationException(CompilationErrorCode.DIAGRAM_MUST_HAVE_ENTRY_ELEM);
+        }
+        if (entryElement.getConnectedElements().size() > 1) {
+            throw new ScriptCompilationException(CompilationErrorCode.ENTRY_MUST_HAVE_SINGLE_CHILD);
+        }
+        Map<ConnectableDiagramElement, String> names = generateNames(diagram.getConnectables());
+
+        // first create a node for every reachable element, then link them up, since diagrams may have loops
+        Map<ConnectableDiagramElement, Node> nodes = new HashMap<>();
+        Map<ConnectableDiagramElement, List<Pair<ConnectableDiagramElement, ArrowUiElement>>> successors = new HashMap<>();
+        ArrayDeque<ConnectableDiagramElement> toVisit = new ArrayDeque<>();
+        toVisit.push(entryElement);
+        int nativeNodes = 0;
+        int rhinoNodes = 0;
+        while (!toVisit.isEmpty()) {
+            ConnectableDiagramElement elem = toVisit.pop();
+            if (nodes.containsKey(elem)) {
+                continue;
+            }
+            Node node = createNode(elem, names.get(elem));
+            nodes.put(elem, node);
+            if (node.isNative()) {
+                nativeNodes++;
+            } else {
+                rhinoNodes++;
+            }
+            List<Pair<ConnectableDiagramElement, ArrowUiElement>> connected = elem.getConnectedElements();
+            successors.put(elem, connected);
+            // like the javascript compiler we only ever follow the first two arrows
+            for (int i = 0; i < Math.min(2, connected.size()); i++) {
+                toVisit.push(connected.get(i).first);
+            }
+        }
+
+        for (Map.Entry<ConnectableDiagramElement, Node> entry : nodes.entrySet()) {
+            link(entry.getValue(), successors.get(entry.getKey()), nodes);
+        }
+        NodeProgram program = new NodeProgram(compiledDiagram, nodes.get(entryElement), nativeNodes, rhinoNodes);
+        Log.d(TAG, "Compiled diagram " + diagram.getName() + " into " + program);
+        return program;
+    }
+
+    /**
+     * Names the nodes like the javascript compiler names the element functions, so that errors look the same
+     */
+    private static Map<ConnectableDiagramElement, String> generateNames(List<ConnectableDiagramElement> connectables) {
+        Map<ConnectableDiagramElement, String> result = new HashMap<>();
+        int counter = 0;
+        for (ConnectableDiagramElement elem : connectables) {
+            if (StartUiElement.TYPE_TOKEN.equals(elem.getTypeDesc())) {
+                result.put(elem, Scripts.ENTRY_POINT_SCRIPT.getName());
+            } else {
+                result.put(elem, "function" + (++counter));
+            }
+        }
+        return result;
+    }
+
+    private Node createNode(ConnectableDiagramElement elem, String name) throws ScriptCompilationException {
+        Script script = elem.getScript();
+        if (script == null) {
+            throw new ScriptCompilationException(CompilationErrorCode.ELEMENT_WITHOUT_SCRIPT, "[" + name + "]");
+        }
+        return new Node(name, createAction(script, name));
+    }
+
+    private NodeAction createAction(Script script, String name) {
+        boolean hasVariables = script.getVariables() != null && !script.getVariables().isEmpty();
+        if (script.getSourceCode().isEmpty() && !hasVariables) {
+            return TemplateActions.PASS;
+        }
+        Template template = script.getType() == Script.Type.FUNCTION ? null : mTemplatesBySource.get(script.getSourceCode());
+        if (template != null) {
+            try {
+                return TemplateActions.create(template, VariablesParser.createVarValueMap(script));
+            } catch (ExpressionParseException e) {
+                Log.d(TAG, "Element " + name + " falls back to rhino: " + e.getMessage());
+            } catch (RuntimeException e) {
+                // gson failing on malformed variables, rhino will report that properly when the element runs
+                Log.d(TAG, "Element " + name + " has variables we can't parse: " + e.getMessage());
+            }
+        }
+        return new RhinoAction(name, script);
+    }
+
+    private static void link(Node node, List<Pair<ConnectableDiagramElement, ArrowUiElement>> connected,
+                             Map<ConnectableDiagramElement, Node> nodes) {
+        if (connected.size() == 1) {
+            node.linkNext(nodes.get(connected.get(0).first));
+        } else if (connected.size() > 1) {
+            Pair<ConnectableDiagramElement, ArrowUiElement> connected1 = connected.get(0);
+            Pair<ConnectableDiagramElement, ArrowUiElement> connected2 = connected.get(1);
+            ConnectableDiagramElement yes = (connected1.second.getCondition() == ArrowCondition.YES) ? connected1.first : connected2.first;
+            ConnectableDiagramElement no = (connected1.second.getCondition() == ArrowCondition.NO) ? connected1.first : connected2.first;
+            node.linkBranches(nodes.get(yes), nodes.get(no));
+        }
+    }
+}
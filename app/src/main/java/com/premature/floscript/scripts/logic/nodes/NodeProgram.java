@@ -0,0 +1,62 @@
+package com.premature.floscript.scripts.logic.nodes;
+
+import com.premature.floscript.scripts.logic.Script;
+import com.premature.floscript.scripts.logic.ScriptExecutionException;
+
+/**
+ * A diagram compiled into a graph of {@link Node nodes} which the {@link com.premature.floscript.scripts.logic.ScriptEngine}
+ * can execute directly in java. It behaves like the javascript produced by the
+ * {@link com.premature.floscript.scripts.logic.DiagramToScriptCompiler} for the same diagram. Like that
+ * javascript it has no step limit, a diagram that loops forever is stopped by the instruction budget
+ * of the run, which every executed node counts against.
+ */
+public final class NodeProgram {
+
+    private final Script mScript;
+    private final Node mEntry;
+    private final int mNativeNodes;
+    private final int mRhinoNodes;
+
+    NodeProgram(Script script, Node entry, int nativeNodes, int rhinoNodes) {
+        this.mScript = script;
+        this.mEntry = entry;
+        this.mNativeNodes = nativeNodes;
+        this.mRhinoNodes = rhinoNodes;
+    }
+
+    /**
+     * @return the javascript form of the same diagram
+     */
+    public Script getScript() {
+        return mScript;
+    }
+
+    public int getNativeNodeCount() {
+        return mNativeNodes;
+    }
+
+    public int getRhinoNodeCount() {
+        return mRhinoNodes;
+    }
+
+    /**
+     * @return true once the program ran to completion, which is the same value the javascript version returns
+     */
+    public boolean execute(NodeRuntime runtime) throws ScriptExecutionException {
+        Node current = mEntry;
+        while (current != null) {
+            runtime.onNodeExecuted();
+            current = current.execute(runtime);
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return "NodeProgram{" +
+                "mScript=" + mScript.getName() +
+                ", mNativeNodes=" + mNativeNodes +
+                ", mRhinoNodes=" + mRhinoNodes +
+                '}';
+    }
+}
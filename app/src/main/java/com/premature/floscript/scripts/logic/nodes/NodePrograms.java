@@ -0,0 +1,95 @@
+package com.premature.floscript.scripts.logic.nodes;
+
+import android.content.Context;
+import android.support.annotation.Nullable;
+import android.util.Log;
+import android.util.LruCache;
+
+import com.premature.floscript.db.DiagramDao;
+import com.premature.floscript.scripts.logic.Script;
+import com.premature.floscript.scripts.logic.ScriptCompilationException;
+import com.premature.floscript.scripts.ui.diagram.Diagram;
+
+/**
+ * Finds the {@link NodeProgram} for a saved script by loading the diagram it was compiled from. Programs
+ * are cached per script id, including the knowledge that a script has no usable program, so that
+ * repeatedly triggered jobs only pay for loading and compiling their diagram once.
+ */
+public final class NodePrograms {
+    private static final String TAG = "NODE_PROGRAMS";
+    private static final int MAX_CACHED_PROGRAMS = 32;
+
+    private static class ProgramCacheHolder {
+        // shared by everyone so that the daos can invalidate it
+        private static final LruCache<Long, Entry> CACHE = new LruCache<>(MAX_CACHED_PROGRAMS);
+    }
+
+    private final DiagramDao mDiagramDao;
+    private final NodeCompiler mCompiler;
+
+    public NodePrograms(Context ctx) {
+        this.mDiagramDao = new DiagramDao(ctx);
+        this.mCompiler = new NodeCompiler(ctx);
+    }
+
+    /**
+     * @return the program to run instead of the script, or <code>null</code> if the script should be run by rhino
+     * because we don't know its diagram. The elements the nodes can't do run in rhino one by one
+     */
+    @Nullable
+    public NodeProgram forScript(Script script) {
+        Long scriptId = script.getId();
+        if (scriptId == null || script.getType() != Script.Type.FUNCTION) {
+            return null;
+        }
+        String source = script.getSourceCode();
+        Entry entry = ProgramCacheHolder.CACHE.get(scriptId);
+        if (entry != null && entry.matches(source)) {
+            return entry.program;
+        }
+        NodeProgram program = compile(scriptId, script);
+        ProgramCacheHolder.CACHE.put(scriptId, new Entry(source, program));
+        return program;
+    }
+
+    @Nullable
+    private NodeProgram compile(long scriptId, Script script) {
+        Diagram diagram = mDiagramDao.getDiagramForScript(scriptId);
+        if (diagram == null) {
+            Log.d(TAG, "No diagram found for script " + scriptId);
+            return null;
+        }
+        try {
+            return mCompiler.compile(diagram, script);
+        } catch (ScriptCompilationException e) {
+            Log.w(TAG, "Diagram " + diagram.getName() + " can't be compiled into nodes", e);
+            return null;
+        }
+    }
+
+    public static void invalidate(@Nullable Long scriptId) {
+        if (scriptId != null) {
+            ProgramCacheHolder.CACHE.remove(scriptId);
+        }
+    }
+
+    public static void invalidateAll() {
+        ProgramCacheHolder.CACHE.evictAll();
+    }
+
+    private static final class Entry {
+        // the same string object the script holds, so remembering it costs nothing
+        private final String source;
+        @Nullable
+        private final NodeProgram program;
+
+        private Entry(String source, @Nullable NodeProgram program) {
+            this.source = source;
+            this.program = program;
+        }
+
+        private boolean matches(String source) {
+            return this.source.equals(source);
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package com.premature.floscript.scripts.logic.nodes;
+
+import com.premature.floscript.scripts.logic.FloJsApi;
+import com.premature.floscript.scripts.logic.ScriptExecutionException;
+
+import java.util.Map;
+
+/**
+ * What a {@link NodeProgram} needs from the engine executing it. An instance lives for a single run.
+ */
+public interface NodeRuntime {
+
+    /**
+     * @return the diagram variables, which is what <code>env.vars</code> is in the javascript backend
+     */
+    Map<String, Object> getVars();
+
+    FloJsApi getApi();
+
+    /**
+     * Charge an executed node to the run. This is where budgets and cancellation are enforced, so it may
+     * abort the run by throwing
+     */
+    void onNodeExecuted();
+
+    /**
+     * Compile the source of an element that we have to leave to rhino
+     */
+    org.mozilla.javascript.Script compileJs(String source, String sourceName);
+
+    /**
+     * Execute a compiled element with <code>env.vars</code> holding the current variables. Any changes the
+     * script makes to them are copied back
+     *
+     * @return the value of the element's <code>result</code>
+     */
+    Object execJs(org.mozilla.javascript.Script compiled) throws ScriptExecutionException;
+}
@@ -0,0 +1,60 @@
+package com.premature.floscript.scripts.logic.nodes;
+
+import com.premature.floscript.scripts.logic.Script;
+import com.premature.floscript.scripts.logic.ScriptExecutionException;
+
+/**
+ * Runs an element containing custom javascript in rhino. The element code is wrapped into a function
+ * which returns the element result instead of pushing the next element onto the trampoline.
+ */
+final class RhinoAction implements NodeAction {
+
+    private final String mName;
+    private final String mSource;
+    // compiled lazily on first execution, because compiling needs an entered rhino context
+    private volatile org.mozilla.javascript.Script mCompiled;
+
+    RhinoAction(String name, Script elementScript) {
+        this.mName = name;
+        this.mSource = wrap(elementScript);
+    }
+
+    private static String wrap(Script elementScript) {
+        StringBuilder bob = new StringBuilder("(function (env) {\n");
+        bob.append("  var result = true;\n");
+        if (elementScript.getVariables() != null && !elementScript.getVariables().isEmpty()) {
+            bob.append("  var vars = ").append(elementScript.getVariables()).append(";\n");
+        }
+        if (!elementScript.getSourceCode().isEmpty()) {
+            if (Script.Type.FUNCTION == elementScript.getType()) {
+                bob.append("(").append(elementScript.getSourceCode()).append(")(env);");
+            } else {
+                bob.append(elementScript.getSourceCode());
+            }
+            bob.append("\n");
+        }
+        bob.append("  return result;\n");
+        bob.append("})(env);\n");
+        return bob.toString();
+    }
+
+    @Override
+    public Object execute(NodeRuntime runtime) throws ScriptExecutionException {
+        org.mozilla.javascript.Script compiled = mCompiled;
+        if (compiled == null) {
+            compiled = runtime.compileJs(mSource, mName);
+            mCompiled = compiled;
+        }
+        return runtime.execJs(compiled);
+    }
+
+    @Override
+    public boolean isNative() {
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return "RhinoAction{" + mName + '}';
+    }
+}
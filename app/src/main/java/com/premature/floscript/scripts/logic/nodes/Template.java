@@ -0,0 +1,31 @@
+package com.premature.floscript.scripts.logic.nodes;
+
+import android.support.annotation.Nullable;
+
+/**
+ * The preinstalled templates from res/raw that the {@link NodeCompiler} knows how to execute without rhino.
+ * They are recognized by the name in the Name Section of their script file.
+ */
+enum Template {
+    OUTPUT_MSG("Output Message Template"),
+    BETWEEN_TIME("Between Time Template"),
+    OPEN_BROWSER("Open Browser Template"),
+    ARITHMETIC("Arithmetic Template"),
+    IF_ELSE("If-Else Template");
+
+    private final String mScriptName;
+
+    Template(String scriptName) {
+        this.mScriptName = scriptName;
+    }
+
+    @Nullable
+    static Template fromScriptName(String scriptName) {
+        for (Template template : values()) {
+            if (template.mScriptName.equals(scriptName)) {
+                return template;
+            }
+        }
+        return null;
+    }
+}
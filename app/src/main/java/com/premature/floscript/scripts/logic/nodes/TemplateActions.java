@@ -0,0 +1,198 @@
+package com.premature.floscript.scripts.logic.nodes;
+
+import com.premature.floscript.scripts.logic.FloJsHelper;
+import com.premature.floscript.scripts.logic.ScriptExecutionException;
+
+import org.mozilla.javascript.ScriptRuntime;
+
+import java.util.Calendar;
+import java.util.Map;
+
+/**
+ * Java implementations of the preinstalled templates. Each one does what the code section of the template
+ * script does, including the calls it makes to <code>floApi</code>.
+ */
+final class TemplateActions {
+
+    private TemplateActions() {
+    }
+
+    /**
+     * What an element without any code does, like the entry element
+     */
+    static final NodeAction PASS = new NodeAction() {
+        @Override
+        public Object execute(NodeRuntime runtime) {
+            return Boolean.TRUE;
+        }
+
+        @Override
+        public boolean isNative() {
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            return "Pass";
+        }
+    };
+
+    /**
+     * @param vars the values the user filled into the template
+     * @throws ExpressionParseException if the template uses an expression that only rhino can evaluate
+     */
+    static NodeAction create(Template template, Map<String, String> vars) throws ExpressionParseException {
+        switch (template) {
+            case OUTPUT_MSG:
+                return new OutputMessage(var(vars, "msg"));
+            case OPEN_BROWSER:
+                return new OpenBrowser(var(vars, "address"));
+            case BETWEEN_TIME:
+                return new BetweenTime(var(vars, "startHour"), var(vars, "startMinute"),
+                        var(vars, "endHour"), var(vars, "endMinute"));
+            case ARITHMETIC:
+                return new Arithmetic(var(vars, "result_var"), Expression.parse(var(vars, "expression")));
+            case IF_ELSE:
+                return new IfElse(Expression.parse(var(vars, "expression")));
+            default:
+                throw new IllegalArgumentException("Unknown template " + template);
+        }
+    }
+
+    private static String var(Map<String, String> vars, String name) {
+        String value = vars.get(name);
+        // this is what a missing property turns into when rhino passes it to java
+        return value != null ? value : "undefined";
+    }
+
+    private abstract static class NativeAction implements NodeAction {
+        @Override
+        public boolean isNative() {
+            return true;
+        }
+    }
+
+    private static final class OutputMessage extends NativeAction {
+        private final String mMsg;
+
+        private OutputMessage(String msg) {
+            this.mMsg = msg;
+        }
+
+        @Override
+        public Object execute(NodeRuntime runtime) {
+            runtime.getApi().floNotify(mMsg);
+            return Boolean.TRUE;
+        }
+
+        @Override
+        public String toString() {
+            return "OutputMessage{" + mMsg + '}';
+        }
+    }
+
+    private static final class OpenBrowser extends NativeAction {
+        private final String mAddress;
+
+        private OpenBrowser(String address) {
+            this.mAddress = address;
+        }
+
+        @Override
+        public Object execute(NodeRuntime runtime) {
+            runtime.getApi().openBrowser(mAddress);
+            return Boolean.TRUE;
+        }
+
+        @Override
+        public String toString() {
+            return "OpenBrowser{" + mAddress + '}';
+        }
+    }
+
+    private static final class BetweenTime extends NativeAction {
+        // the template compares the hours to strings, which javascript converts to numbers (maybe NaN)
+        private final double mStartHour;
+        private final double mStartMinute;
+        private final double mEndHour;
+        private final double mEndMinute;
+
+        private BetweenTime(String startHour, String startMinute, String endHour, String endMinute) {
+            this.mStartHour = ScriptRuntime.toNumber(startHour);
+            this.mStartMinute = ScriptRuntime.toNumber(startMinute);
+            this.mEndHour = ScriptRuntime.toNumber(endHour);
+            this.mEndMinute = ScriptRuntime.toNumber(endMinute);
+        }
+
+        @Override
+        public Object execute(NodeRuntime runtime) {
+            Calendar now = Calendar.getInstance();
+            int hours = now.get(Calendar.HOUR_OF_DAY);
+            int minutes = now.get(Calendar.MINUTE);
+            boolean result = hours > mStartHour || (hours == mStartHour && minutes > mStartMinute);
+            result = result && (hours < mEndHour || (hours == mEndHour && minutes < mEndMinute));
+            return result;
+        }
+
+        @Override
+        public String toString() {
+            return "BetweenTime{" + mStartHour + ":" + mStartMinute + " - " + mEndHour + ":" + mEndMinute + '}';
+        }
+    }
+
+    private static final class Arithmetic extends NativeAction {
+        private final String mResultVar;
+        private final Expression mExpression;
+
+        private Arithmetic(String resultVar, Expression expression) {
+            this.mResultVar = resultVar;
+            this.mExpression = expression;
+        }
+
+        @Override
+        public Object execute(NodeRuntime runtime) throws ScriptExecutionException {
+            Object value = mExpression.evaluate(runtime.getVars());
+            runtime.getVars().put(mResultVar, value);
+            runtime.getApi().logMessage(ScriptRuntime.toString(value));
+            return Boolean.TRUE;
+        }
+
+        @Override
+        public String toString() {
+            return "Arithmetic{" + mResultVar + " = " + mExpression.getSource() + '}';
+        }
+    }
+
+    private static final class IfElse extends NativeAction {
+        private final Expression mExpression;
+
+        private IfElse(Expression expression) {
+            this.mExpression = expression;
+        }
+
+        @Override
+        public Object execute(NodeRuntime runtime) throws ScriptExecutionException {
+            Object value = mExpression.evaluate(runtime.getVars());
+            // the template logs the expression with the values of its labels filled in
+            runtime.getApi().logMessage(expand(runtime.getVars()));
+            // the template does a loose comparison: true == value
+            return ScriptRuntime.eq(Boolean.TRUE, value);
+        }
+
+        private String expand(Map<String, Object> vars) throws ScriptExecutionException {
+            if (!mExpression.usesVariables()) {
+                return mExpression.getSource();
+            }
+            try {
+                return FloJsHelper.expandVariables(vars, mExpression.getSource());
+            } catch (IllegalArgumentException e) {
+                throw new ScriptExecutionException(e.getMessage());
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "IfElse{" + mExpression.getSource() + '}';
+        }
+    }
+}
@@ -0,0 +1,227 @@
+package com.premature.floscript.scripts.logic.nodes;
+
+import android.content.Context;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import com.premature.floscript.scripts.logic.Script;
+import com.premature.floscript.scripts.logic.ScriptExecutionException;
+import com.premature.floscript.scripts.logic.Scripts;
+
+import org.mozilla.javascript.ScriptRuntime;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Folds the variables of the elements that use one of the preinstalled templates unchanged into the template
+ * code, since the values the user filled in are fixed by the time the diagram is compiled. The folded code
+ * reads the values as literals instead of out of a <code>vars</code> object, and the expression of an
+ * arithmetic or if-else template that only has literals in it is evaluated right here. Such an if-else
+ * always takes the same branch, which the compiler uses to leave the other branch out.
+ * <p/>
+ * The folded code does what the template code does, including what it logs. Variables that aren't strings
+ * are left alone, since the template may treat them differently than their string form.
+ */
+public final class TemplateFolder {
+    private static final String TAG = "TEMPLATE_FOLDER";
+
+    // template code section -> template, an instantiated template keeps the code of the template it came from
+    private final Map<String, Template> mTemplatesBySource = new HashMap<>();
+    // the scripts are held weakly, so the foldings go away with the elements that use them
+    private final Map<Script, Folding> mFoldings = new WeakHashMap<>();
+    private final JsonParser mJsonParser = new JsonParser();
+
+    public TemplateFolder(Context ctx) {
+        this(Scripts.getPreinstalledScripts(ctx));
+    }
+
+    TemplateFolder(List<Script> preinstalledScripts) {
+        for (Script script : preinstalledScripts) {
+            Template template = Template.fromScriptName(script.getName());
+            if (template != null) {
+                mTemplatesBySource.put(script.getSourceCode(), template);
+            }
+        }
+    }
+
+    /**
+     * @return the script with its variables folded into its code, or the script itself if there is nothing
+     * to fold. The same script with the same variables always folds into the same object
+     */
+    @Nullable
+    public Script fold(@Nullable Script script) {
+        if (script == null) {
+            return null;
+        }
+        Script folded = folding(script).mScript;
+        return folded != null ? folded : script;
+    }
+
+    /**
+     * @return the result the decision always has, <code>null</code> if it depends on the run
+     */
+    @Nullable
+    public Boolean getConstantDecision(@Nullable Script script) {
+        return script != null ? folding(script).mDecision : null;
+    }
+
+    private Folding folding(Script script) {
+        Folding folding = mFoldings.get(script);
+        // templates are turned into elements by setting their variables, so they can change under us
+        if (folding == null || !equal(folding.mVariables, script.getVariables())) {
+            folding = createFolding(script);
+            mFoldings.put(script, folding);
+        }
+        return folding;
+    }
+
+    private Folding createFolding(Script script) {
+        Template template = script.getType() == Script.Type.FUNCTION ? null : mTemplatesBySource.get(script.getSourceCode());
+        Map<String, String> vars = template != null ? stringVariables(script) : null;
+        if (vars == null) {
+            return new Folding(script.getVariables(), null, null);
+        }
+        Boolean decision = null;
+        StringBuilder code = new StringBuilder();
+        switch (template) {
+            case OUTPUT_MSG:
+                code.append("floApi.floNotify(").append(literal(var(vars, "msg"))).append(");");
+                break;
+            case OPEN_BROWSER:
+                code.append("floApi.openBrowser(").append(literal(var(vars, "address"))).append(");");
+                break;
+            case BETWEEN_TIME:
+                code.append("result = floStd.time.isBetween(").append(literal(var(vars, "startHour"))).append(", ")
+                        .append(literal(var(vars, "startMinute"))).append(", ")
+                        .append(literal(var(vars, "endHour"))).append(", ")
+                        .append(literal(var(vars, "endMinute"))).append(");");
+                break;
+            case ARITHMETIC: {
+                String resultVar = "env.vars[" + literal(var(vars, "result_var")) + "]";
+                Object value = constantValue(var(vars, "expression"));
+                String expression = value != null ? literal(value)
+                        : "floStd.expr.evaluate(" + literal(var(vars, "expression")) + ", env.vars)";
+                code.append(resultVar).append(" = ").append(expression).append(";\n")
+                        .append("floApi.logMessage(").append(resultVar).append(");");
+                break;
+            }
+            case IF_ELSE: {
+                String expression = var(vars, "expression");
+                Object value = constantValue(expression);
+                if (value != null) {
+                    // without labels expanding the expression leaves it as it is
+                    decision = ScriptRuntime.eq(Boolean.TRUE, value);
+                    code.append("floApi.logMessage(").append(literal(expression)).append(");");
+                } else {
+                    code.append("var expanded = floStd.expr.expand(").append(literal(expression)).append(", env.vars);\n")
+                            .append("floApi.logMessage(expanded);\n")
+                            .append("result = true == floStd.expr.run(expanded);");
+                }
+                break;
+            }
+            default:
+                throw new IllegalArgumentException("Unknown template " + template);
+        }
+        Script folded = new Script(code.toString(), script.getName(), script.getType(), null, null, script.getDescription());
+        return new Folding(script.getVariables(), folded, decision);
+    }
+
+    /**
+     * @return the variables of the script, or <code>null</code> if some of them aren't strings
+     */
+    @Nullable
+    private Map<String, String> stringVariables(Script script) {
+        if (script.getVariables() == null || script.getVariables().isEmpty()) {
+            return null;
+        }
+        try {
+            JsonObject object = mJsonParser.parse(script.getVariables()).getAsJsonObject();
+            Map<String, String> vars = new HashMap<>();
+            for (Map.Entry<String, JsonElement> entry : object.entrySet()) {
+                JsonElement value = entry.getValue();
+                if (!value.isJsonPrimitive() || !((JsonPrimitive) value).isString()) {
+                    return null;
+                }
+                vars.put(entry.getKey(), value.getAsString());
+            }
+            return vars;
+        } catch (RuntimeException e) {
+            // gson failing on malformed variables, rhino will report that properly when the element runs
+            Log.d(TAG, "Script " + script.getName() + " has variables we can't parse: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * @return the value of an expression without any labels, <code>null</code> if it has some or is more than
+     * we can evaluate without rhino
+     */
+    @Nullable
+    private static Object constantValue(@Nullable String source) {
+        if (source == null) {
+            return null;
+        }
+        try {
+            Expression expression = Expression.parse(source);
+            return expression.usesVariables() ? null : expression.evaluate(new HashMap<String, Object>());
+        } catch (ExpressionParseException | ScriptExecutionException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return the value of the variable, <code>null</code> if the element doesn't set it
+     */
+    @Nullable
+    private static String var(Map<String, String> vars, String name) {
+        return vars.get(name);
+    }
+
+    /**
+     * @return the javascript literal for a {@link Double}, {@link Boolean} or {@link String} value, and
+     * <code>undefined</code> for a missing variable, which is what the template code would read
+     */
+    private static String literal(@Nullable Object value) {
+        if (value == null) {
+            return "undefined";
+        }
+        if (value instanceof Double) {
+            double number = (Double) value;
+            if (number == 0 && 1 / number < 0) {
+                return "-0";
+            }
+            return ScriptRuntime.numberToString(number, 10);
+        }
+        if (value instanceof Boolean) {
+            return value.toString();
+        }
+        return "\"" + ScriptRuntime.escapeString(value.toString(), '"') + "\"";
+    }
+
+    private static boolean equal(@Nullable String first, @Nullable String second) {
+        return first == null ? second == null : first.equals(second);
+    }
+
+    private static final class Folding {
+        @Nullable
+        private final String mVariables;
+        // null if there was nothing to fold, we can't hold on to the script itself or it would never be collected
+        @Nullable
+        private final Script mScript;
+        @Nullable
+        private final Boolean mDecision;
+
+        private Folding(@Nullable String variables, @Nullable Script script, @Nullable Boolean decision) {
+            this.mVariables = variables;
+            this.mScript = script;
+            this.mDecision = decision;
+        }
+    }
+}
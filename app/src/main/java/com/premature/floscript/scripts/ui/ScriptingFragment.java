@@ -1,6 +1,7 @@
 package com.premature.floscript.scripts.ui;
 
 import android.os.Bundle;
+import android.support.annotation.Nullable;
 import android.support.v4.app.Fragment;
 import android.util.Log;
 import android.view.LayoutInflater;
@@ -16,10 +17,15 @@ import com.premature.floscript.R;
 import com.premature.floscript.db.DiagramDao;
 import com.premature.floscript.db.FloDbHelper;
 import com.premature.floscript.scripts.logic.DiagramToScriptCompiler;
+import com.premature.floscript.scripts.logic.ExecutionProfile;
 import com.premature.floscript.scripts.logic.Script;
 import com.premature.floscript.scripts.logic.ScriptCompilationException;
 import com.premature.floscript.scripts.logic.ScriptEngine;
 import com.premature.floscript.scripts.logic.ScriptExecutionException;
+import com.premature.floscript.scripts.logic.ScriptResult;
+import com.premature.floscript.scripts.logic.ScriptRunCallback;
+import com.premature.floscript.scripts.logic.ScriptRunHandle;
+import com.premature.floscript.scripts.logic.ScriptRunOptions;
 import com.premature.floscript.scripts.logic.StringResolver;
 import com.premature.floscript.scripts.ui.diagram.ArrowUiElement;
 import com.premature.floscript.scripts.ui.diagram.Diagram;
@@ -76,6 +82,9 @@ public final class ScriptingFragment extends Fragment implements SaveDialog.OnSa
     private DiagramDao mDiagramDao;
     private DiagramToScriptCompiler mCompiler;
     private StringResolver stringResolver;
+    private ScriptEngine mScriptEngine;
+    @Nullable
+    private ScriptRunHandle mRunHandle;
 
     /**
      * Use this factory method to create a new instance of
@@ -143,6 +152,10 @@ public final class ScriptingFragment extends Fragment implements SaveDialog.OnSa
                 Log.d(TAG, "Testing code");
                 compileAndRunDiagram();
                 return true;
+            case R.id.action_profile:
+                Log.d(TAG, "Profiling code");
+                profileDiagram();
+                return true;
             case R.id.action_admin:
                 Log.d(TAG, "admin code");
                 adminCode();
@@ -160,6 +173,11 @@ public final class ScriptingFragment extends Fragment implements SaveDialog.OnSa
         TextPopupDialog.showErrorPopup(getFragmentManager(), stringResolver.resolve(validationEvent.errorCode), ERROR_COMPILING_DIAGRAM_POPUP_TITLE);
     }
 
+    @Subscribe
+    public void onDiagramElementChanged(FloEvents.DiagramElementChangedEvent changedEvent) {
+        mCompiler.markDirty(changedEvent.element);
+    }
+
     @Override
     public void loadClicked(String name) {
         new LoadDiagramTask(this).execute(name);
@@ -203,6 +221,12 @@ public final class ScriptingFragment extends Fragment implements SaveDialog.OnSa
         return view;
     }
 
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        cancelRunningDiagram();
+    }
+
     @Override
     public void onDestroyView() {
         super.onDestroyView();
@@ -242,17 +266,109 @@ public final class ScriptingFragment extends Fragment implements SaveDialog.OnSa
     }
 
     private void compileAndRunDiagram() {
+        final Script script;
         try {
-            Script script = mCompiler.compile(mDiagramEditorView.getDiagram());
-            String result = new ScriptEngine(getActivity().getApplicationContext()).runScript(script);
-            TextPopupDialog.showInfoPopup(getActivity().getSupportFragmentManager(), script.getSourceCode() +
-                    "\n\nWith result: " + result, DIAGRAM_CODE_POPUP_TITLE);
+            script = mCompiler.compile(mDiagramEditorView.getDiagram());
         } catch (ScriptCompilationException e) {
             TextPopupDialog.showErrorPopup(getActivity().getSupportFragmentManager(), e.getScriptCompilationMessage(stringResolver), ERROR_COMPILING_DIAGRAM_POPUP_TITLE);
             Log.e(TAG, "Compile exception", e);
-        } catch (ScriptExecutionException e) {
-            TextPopupDialog.showErrorPopup(getActivity().getSupportFragmentManager(), e.getMessage(), ERROR_RUNNING_DIAGRAM_POPUP_TITLE);
-            Log.e(TAG, "Execute exception", e);
+            return;
+        }
+        // the result of a run started for an older version of the diagram isn't interesting anymore
+        cancelRunningDiagram();
+        mRunHandle = mScriptEngine.runScriptAsync(script, ScriptRunOptions.DEFAULT, new ScriptRunCallback() {
+            @Override
+            public void onProgress(long instructionsExecuted, long elapsedMs) {
+                Log.d(TAG, "Diagram still running after " + elapsedMs + " ms and " + instructionsExecuted + " instructions");
+            }
+
+            @Override
+            public void onResult(ScriptResult result) {
+                mRunHandle = null;
+                if (isAdded()) {
+                    StringBuilder text = new StringBuilder(script.getSourceCode())
+                            .append("\n\nWith result: ").append(result.getDisplayValue())
+                            .append(" in ").append(result.getDurationMs()).append(" ms");
+                    if (!result.getLogLines().isEmpty()) {
+                        text.append("\n\nLog:");
+                        for (String line : result.getLogLines()) {
+                            text.append('\n').append(line);
+                        }
+                    }
+                    TextPopupDialog.showInfoPopup(getActivity().getSupportFragmentManager(), text.toString(),
+                            DIAGRAM_CODE_POPUP_TITLE);
+                }
+            }
+
+            @Override
+            public void onError(ScriptExecutionException e) {
+                mRunHandle = null;
+                Log.e(TAG, "Execute exception", e);
+                if (isAdded()) {
+                    TextPopupDialog.showErrorPopup(getActivity().getSupportFragmentManager(), e.getMessage(), ERROR_RUNNING_DIAGRAM_POPUP_TITLE);
+                }
+            }
+
+            @Override
+            public void onCancelled() {
+                Log.d(TAG, "Diagram run cancelled");
+            }
+        });
+    }
+
+    /**
+     * Runs an instrumented version of the diagram and then shows where the time went as a heatmap
+     * over the elements in the editor
+     */
+    private void profileDiagram() {
+        final Diagram diagram = mDiagramEditorView.getDiagram();
+        final ExecutionProfile profile = new ExecutionProfile(diagram);
+        final Script script;
+        try {
+            script = mCompiler.compileInstrumented(diagram, profile);
+        } catch (ScriptCompilationException e) {
+            TextPopupDialog.showErrorPopup(getActivity().getSupportFragmentManager(), e.getScriptCompilationMessage(stringResolver), ERROR_COMPILING_DIAGRAM_POPUP_TITLE);
+            Log.e(TAG, "Compile exception", e);
+            return;
+        }
+        cancelRunningDiagram();
+        mDiagramEditorView.setExecutionProfile(null);
+        mRunHandle = mScriptEngine.runScriptAsync(script, ScriptRunOptions.DEFAULT, profile, new ScriptRunCallback() {
+            @Override
+            public void onProgress(long instructionsExecuted, long elapsedMs) {
+                Log.d(TAG, "Profiled diagram still running after " + elapsedMs + " ms");
+            }
+
+            @Override
+            public void onResult(ScriptResult result) {
+                mRunHandle = null;
+                Log.d(TAG, "Profiled diagram finished with " + profile);
+                // the user may have switched to another diagram while it was running
+                if (isAdded() && mDiagramEditorView.getDiagram() == diagram) {
+                    mDiagramEditorView.setExecutionProfile(profile);
+                }
+            }
+
+            @Override
+            public void onError(ScriptExecutionException e) {
+                mRunHandle = null;
+                Log.e(TAG, "Execute exception", e);
+                if (isAdded()) {
+                    TextPopupDialog.showErrorPopup(getActivity().getSupportFragmentManager(), e.getMessage(), ERROR_RUNNING_DIAGRAM_POPUP_TITLE);
+                }
+            }
+
+            @Override
+            public void onCancelled() {
+                Log.d(TAG, "Profiled diagram run cancelled");
+            }
+        });
+    }
+
+    private void cancelRunningDiagram() {
+        if (mRunHandle != null) {
+            mRunHandle.cancel();
+            mRunHandle = null;
         }
     }
 
@@ -315,6 +431,7 @@ public final class ScriptingFragment extends Fragment implements SaveDialog.OnSa
 
     private void init() {
         this.mCompiler = new DiagramToScriptCompiler(getActivity());
+        this.mScriptEngine = new ScriptEngine(getActivity().getApplicationContext());
         this.mDiagramDao = new DiagramDao(getActivity());
         this.mDensity = getResources().getDisplayMetrics().density;
         this.mLogicBlockElement = new LogicBlockUiElement(null, (int) (40 * mDensity), (int) (40 * mDensity));
@@ -326,10 +443,8 @@ public final class ScriptingFragment extends Fragment implements SaveDialog.OnSa
     }
 
     private void compileDiagram() {
-        DiagramToScriptCompiler compiler = new DiagramToScriptCompiler(getActivity());
-
         try {
-            Script script = compiler.compile(mDiagramEditorView.getDiagram());
+            Script script = mCompiler.compile(mDiagramEditorView.getDiagram());
             TextPopupDialog.showInfoPopup(getActivity().getSupportFragmentManager(), script.getSourceCode(), DIAGRAM_CODE_POPUP_TITLE);
         } catch (ScriptCompilationException e) {
             TextPopupDialog.showErrorPopup(getActivity().getSupportFragmentManager(), e.getScriptCompilationMessage(stringResolver), ERROR_COMPILING_DIAGRAM_POPUP_TITLE);
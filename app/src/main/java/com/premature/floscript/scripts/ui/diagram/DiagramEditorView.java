@@ -4,11 +4,14 @@ import android.content.Context;
 import android.content.res.TypedArray;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.util.AttributeSet;
+import android.util.DisplayMetrics;
 import android.util.Log;
 import android.view.ContextMenu;
 import android.view.GestureDetector;
@@ -18,6 +21,7 @@ import android.view.View;
 import com.premature.floscript.R;
 import com.premature.floscript.db.DiagramDao;
 import com.premature.floscript.scripts.logic.ArrowCondition;
+import com.premature.floscript.scripts.logic.ExecutionProfile;
 import com.premature.floscript.scripts.logic.Script;
 import com.premature.floscript.scripts.logic.StringResolver;
 import com.premature.floscript.scripts.ui.OnElementSelectorListener;
@@ -28,6 +32,7 @@ import com.premature.floscript.util.FloColors;
 import com.premature.floscript.util.FloEvents;
 import com.squareup.otto.Subscribe;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
@@ -41,6 +46,8 @@ import java.util.List;
 public final class DiagramEditorView extends View implements OnElementSelectorListener {
 
     private static final String TAG = "DIAGRAM_EDITOR";
+    // the size of the heatmap labels in density independent pixels, like everything else we draw
+    private static final float HEAT_TEXT_SIZE_DIPS = 9;
     public static final DiagramEditorPopupButtonType[] ARROW_CMDS = {DiagramEditorPopupButtonType.YES_BTN,
             DiagramEditorPopupButtonType.NO_BTN, DiagramEditorPopupButtonType.DELETE_BTN};
     public static final DiagramEditorPopupButtonType[] ELEM_CMDS = {DiagramEditorPopupButtonType.SET_CODE_BTN, DiagramEditorPopupButtonType.EDIT_CODE_BTN,
@@ -66,6 +73,11 @@ public final class DiagramEditorView extends View implements OnElementSelectorLi
     private OnDiagramEditorListener mOnDiagramEditorListener;
     @Nullable
     private StringResolver stringResolver;
+    // when set we draw how expensive each element was in the last profiled run on top of the diagram
+    @Nullable
+    private ExecutionProfile mExecutionProfile;
+    private Paint mHeatPaint;
+    private Paint mHeatTextPaint;
 
     public DiagramEditorView(Context context) {
         super(context);
@@ -95,12 +107,22 @@ public final class DiagramEditorView extends View implements OnElementSelectorLi
         Log.d(TAG, "Calling set diagram");
         cleanEditingState();
         this.mDiagram = diagram;
+        this.mExecutionProfile = null;
         updateOffset(getWidth(), getHeight());
         this.invalidate();
 
         updateTitle(diagram.getName());
     }
 
+    /**
+     * Show a heatmap of the profile over the elements of the diagram, or hide it when the profile is <code>null</code>.
+     * The heatmap is hidden again as soon as the diagram is modified
+     */
+    public void setExecutionProfile(@Nullable ExecutionProfile profile) {
+        this.mExecutionProfile = profile;
+        invalidate();
+    }
+
     //TODO:
     //meant to be used for drawing a preview but currently unused
     public Drawable getDrawable() {
@@ -130,9 +152,10 @@ public final class DiagramEditorView extends View implements OnElementSelectorLi
     @Subscribe
     public void onScriptAvailable(FloEvents.ScriptAvailableEvent scriptAvailableEvent) {
         Log.d(TAG, "User chose the script with name " + scriptAvailableEvent.script.getName());
-        mElemPopupMenu.getTouchedElement().setScript(scriptAvailableEvent.script);
+        ConnectableDiagramElement element = mElemPopupMenu.getTouchedElement();
+        element.setScript(scriptAvailableEvent.script);
         mElemPopupMenu.setTouchedElement(null);
-        onDiagramModified();
+        onDiagramModified(element);
         invalidate();
     }
 
@@ -230,6 +253,9 @@ public final class DiagramEditorView extends View implements OnElementSelectorLi
         for (ConnectableDiagramElement element : mDiagram.getConnectables()) {
             element.draw(canvas, mXOffset, mYOffset);
         }
+        if (mExecutionProfile != null) {
+            drawHeatmap(canvas, mExecutionProfile);
+        }
         if (mElemPopupMenu.isActive()) {
             mElemPopupMenu.draw(canvas, mXOffset, mYOffset);
         }
@@ -239,6 +265,27 @@ public final class DiagramEditorView extends View implements OnElementSelectorLi
         canvas.restore();
     }
 
+    /**
+     * Tints every element that ran from yellow for the cheap ones to red for the most expensive one and
+     * writes the number of calls and the total time spent in it underneath
+     */
+    private void drawHeatmap(Canvas canvas, ExecutionProfile profile) {
+        for (ConnectableDiagramElement element : mDiagram.getConnectables()) {
+            int calls = profile.getCallCount(element);
+            if (calls == 0) {
+                continue;
+            }
+            float heat = profile.getHeat(element);
+            mHeatPaint.setColor(Color.argb(140, 255, (int) (230 * (1 - heat)), 0));
+            float left = element.getXPos() + mXOffset;
+            float top = element.getYPos() + mYOffset;
+            canvas.drawRect(left, top, left + element.getWidth(), top + element.getHeight(), mHeatPaint);
+            float millis = profile.getTotalNanos(element) / 1000000f;
+            canvas.drawText(calls + "x " + String.format("%.1f", millis) + "ms", left,
+                    top + element.getHeight() + mHeatTextPaint.getTextSize(), mHeatTextPaint);
+        }
+    }
+
     static <T extends DiagramElement> T findTouchedElement(Iterable<T> elements, int xPosDips, int yPosDips) {
         DiagramElement.ContainsResult smallestContainsResult = DiagramElement.NOT_CONTAINED;
         T closestElement = null;
@@ -310,8 +357,9 @@ public final class DiagramEditorView extends View implements OnElementSelectorLi
             mFloatingArrow.anchorEndPoint(end, touchEvent);
             mDiagram.addArrow(mFloatingArrow);
             mOnDiagramEditorListener.onElementPlaced();
+            // the element the arrow leaves from has a new successor
+            onDiagramModified(mFloatingArrow.getStartPoint());
             mFloatingArrow = null;
-            onDiagramModified();
             return true;
         }
         return false;
@@ -402,6 +450,14 @@ public final class DiagramEditorView extends View implements OnElementSelectorLi
 
         mDetector = new GestureDetector(getContext(), new DiagramGestureListener(this));
         mDiagramValidator = new DiagramValidator(this);
+
+        mHeatPaint = new Paint();
+        mHeatPaint.setStyle(Paint.Style.FILL);
+        mHeatTextPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        mHeatTextPaint.setColor(FloColors.highlightColor);
+        // onDraw already scales the canvas by the density, so only the font scale of the user is applied here
+        DisplayMetrics metrics = getResources().getDisplayMetrics();
+        mHeatTextPaint.setTextSize(HEAT_TEXT_SIZE_DIPS * metrics.scaledDensity / metrics.density);
     }
 
     private DiagramPopupMenu.OnDiagramMenuClickListener mConnectableMenuListener = new DiagramPopupMenu.OnDiagramMenuClickListener() {
@@ -413,10 +469,18 @@ public final class DiagramEditorView extends View implements OnElementSelectorLi
                 FloBus.getInstance().post(new FloEvents.ScriptCollectionRequestEvent(getDiagram().getName(), optionalExistingScript));
 
             } else if (DiagramEditorPopupButtonType.DELETE_BTN == buttonClicked && !(mElemPopupMenu.getTouchedElement() instanceof StartUiElement)) {
-                mDiagram.remove(mElemPopupMenu.getTouchedElement());
+                ConnectableDiagramElement removed = mElemPopupMenu.getTouchedElement();
+                // the elements with arrows to the removed element lose a successor
+                List<ConnectableDiagramElement> predecessors = new ArrayList<>();
+                for (ArrowUiElement arrow : mDiagram.getArrows()) {
+                    if (arrow.getEndPoint() == removed && arrow.getStartPoint() != null) {
+                        predecessors.add(arrow.getStartPoint());
+                    }
+                }
+                mDiagram.remove(removed);
                 mElemPopupMenu.setTouchedElement(null);
                 invalidate();
-                onDiagramModified();
+                onDiagramModified(predecessors.toArray(new ConnectableDiagramElement[predecessors.size()]));
             }
             Log.d(TAG, "Clicked on button" + buttonClicked);
         }
@@ -431,14 +495,15 @@ public final class DiagramEditorView extends View implements OnElementSelectorLi
         @Override
         public void onDiagramMenuItemClick(DiagramEditorPopupButtonType buttonClicked) {
             Log.d(TAG, "Clicked on button" + buttonClicked);
+            ArrowUiElement arrow = mArrowPopupMenu.getTouchedElement();
             if (DiagramEditorPopupButtonType.DELETE_BTN == buttonClicked) {
-                mDiagram.removeArrow(mArrowPopupMenu.getTouchedElement());
+                mDiagram.removeArrow(arrow);
             } else {
-                mArrowPopupMenu.getTouchedElement().setCondition(ArrowCondition.from(buttonClicked));
+                arrow.setCondition(ArrowCondition.from(buttonClicked));
             }
             mArrowPopupMenu.setTouchedElement(null);
             invalidate();
-            onDiagramModified();
+            onDiagramModified(arrow.getStartPoint());
         }
 
         @Override
@@ -472,9 +537,17 @@ public final class DiagramEditorView extends View implements OnElementSelectorLi
     }
 
     /**
-     * Used to updated notify about a change to the saved/unsaved state
+     * Used to updated notify about a change to the saved/unsaved state and about the elements whose code
+     * the change affected, so that only their code gets compiled again
      */
-    private void onDiagramModified() {
+    private void onDiagramModified(ConnectableDiagramElement... changedElements) {
+        // the profile describes the diagram as it was when it ran
+        mExecutionProfile = null;
+        for (ConnectableDiagramElement element : changedElements) {
+            if (element != null) {
+                FloBus.getInstance().post(new FloEvents.DiagramElementChangedEvent(element));
+            }
+        }
         String title = getDiagramDisplayTitle(getDiagram().getName());
         FloBus.getInstance().post(new FloEvents.CurrentDiagramNameChangeEvent(title, FloEvents.CurrentDiagramNameChangeEvent.DiagramEditingState.UNSAVED));
     }
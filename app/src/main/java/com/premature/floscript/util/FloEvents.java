@@ -6,6 +6,7 @@ import com.premature.floscript.jobs.logic.TimeTrigger;
 import com.premature.floscript.scripts.logic.CompilationErrorCode;
 import com.premature.floscript.scripts.logic.Script;
 import com.premature.floscript.scripts.ui.collection.ScriptCollectionPageType;
+import com.premature.floscript.scripts.ui.diagram.ConnectableDiagramElement;
 
 /**
  * This utility class serves only as a container for events and event related functions
@@ -85,6 +86,18 @@ public final class FloEvents {
         }
     }
 
+    /**
+     * Communication between {@link com.premature.floscript.scripts.ui.diagram.DiagramEditorView}
+     * and {@link com.premature.floscript.scripts.ui.ScriptingFragment#onDiagramElementChanged}
+     */
+    public static class DiagramElementChangedEvent {
+        public final ConnectableDiagramElement element;
+
+        public DiagramElementChangedEvent(ConnectableDiagramElement element) {
+            this.element = element;
+        }
+    }
+
     /**
      * Communication between {@link com.premature.floscript.scripts.ui.VariablesDialog} and
      * {@link com.premature.floscript.scripts.ui.collection.ScriptCollectionPageFragment}
@@ -5,8 +5,12 @@ import android.net.Uri;
 import android.util.Log;
 
 import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 
 /**
  * Created by martin on 16/01/15.
@@ -37,6 +41,36 @@ public final class ResourceAndFileUtils {
         return bob.toString();
     }
 
+    /**
+     * Replace the contents of the file, creating the directories leading up to it if needed
+     *
+     * @return <code>true</code> if the file was written
+     */
+    public static boolean writeFile(File file, String contents) {
+        File dir = file.getParentFile();
+        if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+            Log.e(TAG, "Unable to create directory " + dir);
+            return false;
+        }
+        Writer writer = null;
+        try {
+            writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+            writer.write(contents);
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Problem writing file " + file, e);
+            return false;
+        } finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "Problem closing file " + file, e);
+                }
+            }
+        }
+    }
+
     public static Uri getRawFileUri(String packageName, int rawResourceId) {
         String path = "android.resource://" + packageName + "/" + rawResourceId;
         return Uri.parse(path);
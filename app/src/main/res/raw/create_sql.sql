@@ -1,4 +1,6 @@
 -- a script object, which represents executable code (a function for example)
+-- compiled is the serialized rhino compiled form of the code and compiled_hash the hash of the source it was
+-- compiled from
 create table scripts (
     _id integer primary key autoincrement,
     name text not null,
@@ -9,7 +11,9 @@ create table scripts (
     type integer not null,
     variables text,
     var_types text,
-    code text
+    code text,
+    compiled blob,
+    compiled_hash text
 );
 
 -- a diagram represents the visualization of a floscript
@@ -51,7 +55,35 @@ create table arrows (
     foreign key (diagram_id) references diagrams(_id)
 );
 
+-- the values scripts keep between their runs through floApi.store, as json text
+create table script_state (
+    _id integer primary key autoincrement,
+    namespace text not null,
+    name text not null,
+    value text not null,
+    unique (namespace, name)
+);
+
+-- script runs which suspended themselves in floApi.sleep or floApi.waitForEvent until they are woken
+-- continuation is the serialized rhino continuation of the run, which waits for the wall clock time in ms
+-- in wake_at or for the event with the alias in wake_event. job_name is the job the run belongs to, if any
+create table suspended_runs (
+    _id integer primary key autoincrement,
+    script_id integer not null,
+    instruction_budget integer not null,
+    wall_deadline_ms integer not null,
+    read_byte_budget integer not null,
+    continuation blob not null,
+    wake_at integer not null,
+    wake_event text,
+    job_name text,
+    foreign key (script_id) references scripts(_id)
+);
+
 -- jobs for the job execution service to execute
+-- the per job execution limits (instruction_budget, wall_deadline_ms, read_byte_budget) are null when the
+-- engine defaults apply and 0 when unlimited
+-- line_profiling is 1 if the runs of the job should record where their time goes line by line
 create table jobs (
     _id integer primary key autoincrement,
     name text unique not null,
@@ -61,5 +93,9 @@ create table jobs (
     time_trigger text,
     event_trigger integer,
     comments text,
+    instruction_budget integer,
+    wall_deadline_ms integer,
+    read_byte_budget integer,
+    line_profiling integer not null default 0,
     foreign key (script_id) references scripts(_id)
 );
@@ -0,0 +1,82 @@
+// the floscript standard library, compiled once and installed frozen into the shared scope as floStd
+var floStd = (function () {
+
+    function toNumber(value, fallback) {
+        var number = Number(value);
+        return isNaN(number) ? fallback : number;
+    }
+
+    function pad(value, width, padChar) {
+        var text = String(value);
+        var fill = padChar === undefined ? " " : String(padChar);
+        while (text.length < width) {
+            text = fill + text;
+        }
+        return text;
+    }
+
+    function expand(expression, vars) {
+        return floHelper.expandPassedArgumentLabels(JSON.stringify(vars), expression);
+    }
+
+    function run(expandedExpression) {
+        return new Function("return ".concat(expandedExpression, ";"))();
+    }
+
+    return {
+        time: {
+            /**
+             * true if the time of day of date (or now) lies strictly between start and end, where hours
+             * and minutes may also be given as strings
+             */
+            isBetween: function (startHour, startMinute, endHour, endMinute, date) {
+                var now = date || new Date(floHelper.currentTimeMillis());
+                var hours = now.getHours();
+                var minutes = now.getMinutes();
+                var afterStart = hours > startHour || (hours == startHour && minutes > startMinute);
+                return afterStart && (hours < endHour || (hours == endHour && minutes < endMinute));
+            },
+            minutesOfDay: function (date) {
+                var now = date || new Date(floHelper.currentTimeMillis());
+                return now.getHours() * 60 + now.getMinutes();
+            },
+            format: function (date) {
+                var now = date || new Date(floHelper.currentTimeMillis());
+                return pad(now.getHours(), 2, "0") + ":" + pad(now.getMinutes(), 2, "0");
+            }
+        },
+        text: {
+            /**
+             * replaces {0}, {1}, .. in the pattern with the arguments that follow it
+             */
+            format: function (pattern) {
+                var args = arguments;
+                return String(pattern).replace(/\{(\d+)\}/g, function (match, index) {
+                    var arg = args[Number(index) + 1];
+                    return arg === undefined ? match : String(arg);
+                });
+            },
+            pad: pad
+        },
+        num: {
+            toNumber: toNumber,
+            clamp: function (value, min, max) {
+                return Math.min(Math.max(value, min), max);
+            },
+            round: function (value, digits) {
+                var scale = Math.pow(10, digits || 0);
+                return Math.round(value * scale) / scale;
+            }
+        },
+        expr: {
+            /**
+             * replaces the $labels in the expression with the values of the diagram variables
+             */
+            expand: expand,
+            run: run,
+            evaluate: function (expression, vars) {
+                return run(expand(expression, vars));
+            }
+        }
+    };
+})();